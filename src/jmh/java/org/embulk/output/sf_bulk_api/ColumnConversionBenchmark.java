@@ -0,0 +1,82 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.sforce.soap.partner.sobject.SObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-row conversion of an input record into an SObject. The PageReader is a
+ * stub-only mock, so compare results between revisions rather than reading them as absolute cost.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColumnConversionBenchmark {
+  private static final Type[] TYPES = {
+    Types.STRING, Types.LONG, Types.DOUBLE, Types.BOOLEAN, Types.TIMESTAMP
+  };
+
+  @Param({"5", "100"})
+  public int columnCount;
+
+  @Param({"true", "false"})
+  public boolean ignoreNulls;
+
+  private PageReader pageReader;
+  private List<Column> columns;
+
+  @SuppressWarnings("deprecation") // For the use of org.embulk.spi.time.Timestamp
+  @Setup
+  public void setup() {
+    columns = new ArrayList<>();
+    for (int i = 0; i < columnCount; i++) {
+      columns.add(new Column(i, "Field" + i + "__c", TYPES[i % TYPES.length]));
+    }
+    pageReader = mock(PageReader.class, withSettings().stubOnly());
+    when(pageReader.getSchema()).thenReturn(new Schema(columns));
+    when(pageReader.isNull(any(Column.class))).thenReturn(false);
+    when(pageReader.getString(any(Column.class))).thenReturn("a typical text value");
+    when(pageReader.getLong(any(Column.class))).thenReturn(1234567L);
+    when(pageReader.getDouble(any(Column.class))).thenReturn(1234.5);
+    when(pageReader.getBoolean(any(Column.class))).thenReturn(true);
+    when(pageReader.getTimestamp(any(Column.class)))
+        .thenReturn(org.embulk.spi.time.Timestamp.ofEpochMilli(1700000000000L));
+  }
+
+  @Benchmark
+  public SObject convertRow() {
+    final SObject record = new SObject();
+    record.setType("Benchmark__c");
+    final SForceColumnVisitor visitor = new SForceColumnVisitor(record, pageReader, ignoreNulls);
+    for (Column column : columns) {
+      column.visit(visitor);
+    }
+    record.setFieldsToNull(visitor.getFieldsToNull());
+    return record;
+  }
+}
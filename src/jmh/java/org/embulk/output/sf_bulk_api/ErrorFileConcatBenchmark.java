@@ -0,0 +1,93 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.embulk.output.sf_bulk_api.SfBulkApiOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the concatenation of per-task error files performed by cleanup(). */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ErrorFileConcatBenchmark {
+  private static final String LINE =
+      "{\"record_data\":{\"Name\":\"name\",\"Amount__c\":1.5},"
+          + "\"error_code\":\"REQUIRED_FIELD_MISSING\",\"error_message\":\"Required fields\"}";
+
+  @Param({"4", "32"})
+  public int taskCount;
+
+  @Param({"1000", "50000"})
+  public int linesPerTask;
+
+  private final SfBulkApiOutputPlugin plugin = new SfBulkApiOutputPlugin();
+  private Path tempDirectory;
+  private Path errorFile;
+  private TaskSource taskSource;
+
+  @SuppressWarnings("deprecation") // For the use of task.dump()
+  @Setup(Level.Trial)
+  public void setupTask() throws IOException {
+    tempDirectory = Files.createTempDirectory("sf_bulk_api_bench");
+    errorFile = tempDirectory.resolve("errors.jsonl");
+    final ConfigSource config =
+        CONFIG_MAPPER_FACTORY
+            .newConfigSource()
+            .set("object", "Benchmark__c")
+            .set("action_type", "insert")
+            .set("error_records_detail_output_file", errorFile.toString());
+    taskSource = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class).dump();
+  }
+
+  @Setup(Level.Invocation)
+  public void writeTaskFiles() throws IOException {
+    for (int task = 0; task < taskCount; task++) {
+      final Path taskFile =
+          tempDirectory.resolve(String.format("errors.jsonl_task%03d.jsonl", task));
+      try (BufferedWriter writer = Files.newBufferedWriter(taskFile, StandardCharsets.UTF_8)) {
+        for (int line = 0; line < linesPerTask; line++) {
+          writer.write(LINE);
+          writer.newLine();
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteOutput() throws IOException {
+    Files.deleteIfExists(errorFile);
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteDirectory() throws IOException {
+    Files.deleteIfExists(tempDirectory);
+  }
+
+  @Benchmark
+  public void concatenateErrorFiles() {
+    plugin.cleanup(taskSource, null, taskCount, Collections.emptyList());
+  }
+}
@@ -0,0 +1,106 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.SaveResult;
+import com.sforce.soap.partner.StatusCode;
+import com.sforce.soap.partner.sobject.SObject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures ErrorHandler.handleErrors for a 200-row batch at various failure ratios. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ErrorHandlerBenchmark {
+  private static final int BATCH_SIZE = 200;
+
+  @Param({"0.0", "0.01", "0.5", "1.0"})
+  public double failureRatio;
+
+  @Param({"true", "false"})
+  public boolean errorFile;
+
+  private Path tempDirectory;
+  private ErrorHandler errorHandler;
+  private List<SObject> records;
+  private SaveResult[] results;
+
+  @Setup
+  public void setup() throws IOException {
+    final List<Column> columns = new ArrayList<>();
+    columns.add(new Column(0, "Name", Types.STRING));
+    columns.add(new Column(1, "Amount__c", Types.DOUBLE));
+    columns.add(new Column(2, "Active__c", Types.BOOLEAN));
+    final Schema schema = new Schema(columns);
+    tempDirectory = Files.createTempDirectory("sf_bulk_api_bench");
+    errorHandler =
+        errorFile
+            ? new ErrorHandler(schema, tempDirectory.resolve("errors").toString(), 0)
+            : new ErrorHandler(schema);
+
+    records = new ArrayList<>();
+    results = new SaveResult[BATCH_SIZE];
+    final int failures = (int) Math.round(BATCH_SIZE * failureRatio);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      final SObject record = new SObject("Benchmark__c");
+      record.addField("Name", "name" + i);
+      record.addField("Amount__c", i * 1.5);
+      record.addField("Active__c", i % 2 == 0);
+      records.add(record);
+
+      final SaveResult result = new SaveResult();
+      // Spread failures evenly over the batch.
+      final boolean failure = failures > 0 && i % (BATCH_SIZE / failures) == 0;
+      result.setSuccess(!failure);
+      if (failure) {
+        final com.sforce.soap.partner.Error error = new com.sforce.soap.partner.Error();
+        error.setStatusCode(StatusCode.REQUIRED_FIELD_MISSING);
+        error.setMessage("Required fields are missing: [Name]");
+        error.setFields(new String[] {"Name"});
+        result.setErrors(new com.sforce.soap.partner.Error[] {error});
+      } else {
+        result.setId(String.format("a00%015d", i));
+      }
+      results[i] = result;
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    errorHandler.close();
+    try (java.util.stream.Stream<Path> files = Files.list(tempDirectory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      }
+    }
+    Files.deleteIfExists(tempDirectory);
+  }
+
+  @Benchmark
+  public long handleErrors() {
+    final long failures = errorHandler.handleErrors(records, results);
+    errorHandler.takeFailedRecords();
+    return failures;
+  }
+}
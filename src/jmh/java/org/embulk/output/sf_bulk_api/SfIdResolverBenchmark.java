@@ -0,0 +1,96 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures SfIdResolver.resolve for one batch against a stubbed PartnerConnection. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SfIdResolverBenchmark {
+  private static final String OBJECT_TYPE = "Account";
+  private static final String KEY_FIELD = "External_Id__c";
+
+  @Param({"1", "200"})
+  public int batchSize;
+
+  // Number of queryMore pages returned after the first query page.
+  @Param({"0", "3"})
+  public int queryMorePages;
+
+  private SfIdResolver resolver;
+  private List<SObject> records;
+
+  @Setup(Level.Trial)
+  public void setupResolver() throws ConnectionException {
+    final List<SObject> found = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      final SObject sfRecord = new SObject(OBJECT_TYPE);
+      sfRecord.setId(String.format("001%015d", i));
+      sfRecord.addField(KEY_FIELD, "ext" + i);
+      found.add(sfRecord);
+    }
+    final int pages = queryMorePages + 1;
+    final List<QueryResult> results = new ArrayList<>();
+    for (int page = 0; page < pages; page++) {
+      final int from = found.size() * page / pages;
+      final int to = found.size() * (page + 1) / pages;
+      final QueryResult result = new QueryResult();
+      result.setRecords(found.subList(from, to).toArray(new SObject[0]));
+      result.setDone(page == pages - 1);
+      result.setQueryLocator("locator" + page);
+      results.add(result);
+    }
+
+    final PartnerConnection connection = mock(PartnerConnection.class, withSettings().stubOnly());
+    when(connection.query(anyString())).thenReturn(results.get(0));
+    for (int page = 1; page < pages; page++) {
+      when(connection.queryMore("locator" + (page - 1))).thenReturn(results.get(page));
+    }
+    final ErrorHandler errorHandler = new ErrorHandler(new Schema(Collections.emptyList()));
+    resolver = new SfIdResolver(connection, OBJECT_TYPE, KEY_FIELD, "update_key", errorHandler);
+  }
+
+  @Setup(Level.Invocation)
+  public void setupRecords() {
+    records = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      final SObject record = new SObject(OBJECT_TYPE);
+      record.addField(KEY_FIELD, "ext" + i);
+      record.addField("Name", "name" + i);
+      records.add(record);
+    }
+  }
+
+  @Benchmark
+  public SfIdResolver.ResolveResult resolve() throws ConnectionException {
+    return resolver.resolve(records);
+  }
+}
@@ -0,0 +1,127 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import okhttp3.mockwebserver.MockWebServer;
+import org.embulk.config.ConfigSource;
+import org.embulk.input.file.LocalFileInputPlugin;
+import org.embulk.parser.csv.CsvParserPlugin;
+import org.embulk.spi.FileInputPlugin;
+import org.embulk.spi.OutputPlugin;
+import org.embulk.spi.ParserPlugin;
+import org.embulk.test.TestingEmbulk;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * End-to-end load test that drives full Embulk runs against {@link SoapStandInDispatcher}. Run with
+ * {@code ./gradlew loadTest}; sizes and injected behavior are tuned with {@code -DloadTest.*}
+ * system properties (see the fields below).
+ */
+public class LoadTestSfBulkApiOutputPlugin {
+  private static final long ROWS = Long.getLong("loadTest.rows", 1_000_000L);
+  private static final String ACTION_TYPE = System.getProperty("loadTest.actionType", "insert");
+  private static final long LATENCY_BASE_MS = Long.getLong("loadTest.latencyBaseMs", 0L);
+  private static final double LATENCY_JITTER_MS =
+      Double.parseDouble(System.getProperty("loadTest.latencyJitterMs", "0"));
+  private static final double RECORD_FAILURE_RATE =
+      Double.parseDouble(System.getProperty("loadTest.recordFailureRate", "0"));
+  private static final double FAULT_RATE =
+      Double.parseDouble(System.getProperty("loadTest.faultRate", "0"));
+
+  @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+
+  @Rule
+  public TestingEmbulk embulk =
+      TestingEmbulk.builder()
+          .registerPlugin(FileInputPlugin.class, "file", LocalFileInputPlugin.class)
+          .registerPlugin(ParserPlugin.class, "csv", CsvParserPlugin.class)
+          .registerPlugin(OutputPlugin.class, "sf_bulk_api", SfBulkApiOutputPlugin.class)
+          .build();
+
+  private MockWebServer mockWebServer;
+  private SoapStandInDispatcher dispatcher;
+
+  @Before
+  public void setup() throws IOException {
+    dispatcher =
+        new SoapStandInDispatcher(
+            new SoapStandInDispatcher.LatencyDistribution(LATENCY_BASE_MS, LATENCY_JITTER_MS, 42),
+            RECORD_FAILURE_RATE,
+            FAULT_RATE);
+    mockWebServer = new MockWebServer();
+    mockWebServer.setDispatcher(dispatcher);
+    mockWebServer.start(Util.SERVER_PORT);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    mockWebServer.shutdown();
+  }
+
+  @Test
+  public void testThroughput() throws IOException {
+    final Path in = generateInput(ROWS);
+    final ConfigSource config =
+        Util.newDefaultConfigSource(mockWebServer)
+            .set("action_type", ACTION_TYPE)
+            .set("throw_if_failed", false);
+    if ("update".equals(ACTION_TYPE)) {
+      config.set("update_key", "key");
+    }
+
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+    final long start = System.nanoTime();
+    embulk.runOutput(config, in);
+    final double seconds = (System.nanoTime() - start) / 1e9;
+
+    long heapPeakBytes = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        heapPeakBytes += pool.getPeakUsage().getUsed();
+      }
+    }
+    System.out.printf(
+        "[load test] action=%s rows=%,d elapsed=%.1fs throughput=%,.0f rows/s api calls=%s"
+            + " injected faults=%,d injected record failures=%,d heap high-water=%,dMB%n",
+        ACTION_TYPE,
+        dispatcher.getRecords(),
+        seconds,
+        dispatcher.getRecords() / seconds,
+        dispatcher.getCalls(),
+        dispatcher.getInjectedFaults(),
+        dispatcher.getInjectedRecordFailures(),
+        heapPeakBytes / (1024 * 1024));
+
+    if (FAULT_RATE == 0) {
+      assertEquals(ROWS, dispatcher.getRecords());
+    }
+  }
+
+  private Path generateInput(long rows) throws IOException {
+    final Path in = testFolder.newFile("embulk-output-sf_bulk_api-load.csv").toPath();
+    try (BufferedWriter writer = Files.newBufferedWriter(in, StandardCharsets.UTF_8)) {
+      // Same header format as Util.createInputFile, including its trailing _index column.
+      writer.write("key:string,name:string,amount:double,active:boolean,_index:double");
+      writer.newLine();
+      for (long i = 0; i < rows; i++) {
+        writer.write(String.format("key%d,name %d,%d.5,%b,1.0", i, i, i % 1000, i % 2 == 0));
+        writer.newLine();
+      }
+    }
+    return in;
+  }
+}
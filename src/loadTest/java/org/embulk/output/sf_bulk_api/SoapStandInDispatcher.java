@@ -0,0 +1,237 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * MockWebServer dispatcher that stands in for the Salesforce Partner SOAP API. It answers login,
+ * create, upsert, update, delete, query and queryMore with synthetic results, and can inject
+ * latency, per-record failures and whole-call faults.
+ */
+public class SoapStandInDispatcher extends Dispatcher {
+  private static final Pattern ACTION = Pattern.compile("<m:(\\w+) xmlns:m=");
+  private static final Pattern SOBJECTS = Pattern.compile("<m:sObjects>");
+  private static final Pattern IDS = Pattern.compile("<m:ids>");
+  private static final Pattern QUERY =
+      Pattern.compile("SELECT Id, (\\w+) FROM (\\w+) WHERE \\w+ IN \\((.*)\\)</m:queryString>");
+  private static final Pattern QUOTED = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'");
+
+  private final LatencyDistribution latency;
+  private final double recordFailureRate;
+  private final double faultRate;
+  private final Map<String, AtomicLong> calls = new ConcurrentHashMap<>();
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong injectedFaults = new AtomicLong();
+  private final AtomicLong injectedRecordFailures = new AtomicLong();
+
+  public SoapStandInDispatcher(
+      LatencyDistribution latency, double recordFailureRate, double faultRate) {
+    this.latency = latency;
+    this.recordFailureRate = recordFailureRate;
+    this.faultRate = faultRate;
+  }
+
+  @Override
+  public MockResponse dispatch(RecordedRequest request) {
+    final String body = readBody(request);
+    final Matcher actionMatcher = ACTION.matcher(body);
+    final String action = actionMatcher.find() ? actionMatcher.group(1) : "unknown";
+    calls.computeIfAbsent(action, k -> new AtomicLong()).incrementAndGet();
+
+    if ("login".equals(action)) {
+      return Util.mockResponse("loginResponseBody.xml");
+    }
+    final MockResponse response;
+    if (faultRate > 0 && ThreadLocalRandom.current().nextDouble() < faultRate) {
+      injectedFaults.incrementAndGet();
+      response = fault();
+    } else {
+      switch (action) {
+        case "create":
+        case "update":
+        case "upsert":
+          response = saveResponse(action, count(SOBJECTS, body));
+          break;
+        case "delete":
+          response = saveResponse(action, count(IDS, body));
+          break;
+        case "query":
+          response = queryResponse(body);
+          break;
+        default:
+          response = fault();
+          break;
+      }
+    }
+    final long delayMillis = latency.sampleMillis();
+    if (delayMillis > 0) {
+      response.setHeadersDelay(delayMillis, TimeUnit.MILLISECONDS);
+    }
+    return response;
+  }
+
+  public Map<String, Long> getCalls() {
+    final Map<String, Long> snapshot = new TreeMap<>();
+    calls.forEach((action, count) -> snapshot.put(action, count.get()));
+    return snapshot;
+  }
+
+  public long getRecords() {
+    return records.get();
+  }
+
+  public long getInjectedFaults() {
+    return injectedFaults.get();
+  }
+
+  public long getInjectedRecordFailures() {
+    return injectedRecordFailures.get();
+  }
+
+  private MockResponse saveResponse(String action, int size) {
+    records.addAndGet(size);
+    final StringBuilder results = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      if (recordFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < recordFailureRate) {
+        injectedRecordFailures.incrementAndGet();
+        results.append(
+            "<result><errors><message>injected failure</message>"
+                + "<statusCode>UNKNOWN_EXCEPTION</statusCode></errors>"
+                + "<success>false</success></result>");
+      } else {
+        results.append(
+            String.format(
+                "<result>%s<id>a00%015d</id><success>true</success></result>",
+                "upsert".equals(action) ? "<created>true</created>" : "", i));
+      }
+    }
+    return envelope(String.format("<%1$sResponse>%2$s</%1$sResponse>", action, results));
+  }
+
+  private MockResponse queryResponse(String body) {
+    final Matcher matcher = QUERY.matcher(body);
+    if (!matcher.find()) {
+      return fault();
+    }
+    final String keyField = matcher.group(1);
+    final String objectType = matcher.group(2);
+    final List<String> keys = new ArrayList<>();
+    final Matcher quoted = QUOTED.matcher(matcher.group(3));
+    while (quoted.find()) {
+      keys.add(quoted.group(1));
+    }
+    final StringBuilder rows = new StringBuilder();
+    for (int i = 0; i < keys.size(); i++) {
+      rows.append(
+          String.format(
+              "<records xsi:type=\"sf:sObject\"><sf:type>%s</sf:type>"
+                  + "<sf:Id>a00%015d</sf:Id><sf:%s>%s</sf:%s></records>",
+              objectType, i, keyField, keys.get(i), keyField));
+    }
+    return envelope(
+        String.format(
+            "<queryResponse><result xsi:type=\"QueryResult\"><done>true</done>"
+                + "<queryLocator xsi:nil=\"true\"/>%s<size>%d</size></result></queryResponse>",
+            rows, keys.size()));
+  }
+
+  private static MockResponse envelope(String bodyContent) {
+    return new MockResponse()
+        .setResponseCode(200)
+        .setBody(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+                + " xmlns=\"urn:partner.soap.sforce.com\""
+                + " xmlns:sf=\"urn:sobject.partner.soap.sforce.com\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                + "<soapenv:Body>"
+                + bodyContent
+                + "</soapenv:Body></soapenv:Envelope>");
+  }
+
+  private static MockResponse fault() {
+    return new MockResponse()
+        .setResponseCode(500)
+        .setBody(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+                + " xmlns:sf=\"urn:fault.partner.soap.sforce.com\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                + "<soapenv:Body><soapenv:Fault><faultcode>sf:UNKNOWN_EXCEPTION</faultcode>"
+                + "<faultstring>UNKNOWN_EXCEPTION: injected fault</faultstring><detail>"
+                + "<sf:UnexpectedErrorFault xsi:type=\"sf:UnexpectedErrorFault\">"
+                + "<sf:exceptionCode>UNKNOWN_EXCEPTION</sf:exceptionCode>"
+                + "<sf:exceptionMessage>injected fault</sf:exceptionMessage>"
+                + "</sf:UnexpectedErrorFault></detail></soapenv:Fault>"
+                + "</soapenv:Body></soapenv:Envelope>");
+  }
+
+  private static int count(Pattern pattern, String body) {
+    final Matcher matcher = pattern.matcher(body);
+    int count = 0;
+    while (matcher.find()) {
+      count++;
+    }
+    return count;
+  }
+
+  private static String readBody(RecordedRequest request) {
+    final byte[] bytes = request.getBody().readByteArray();
+    if (!"gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"))) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+      final byte[] buffer = new byte[8192];
+      for (int length; (length = in.read(buffer)) > 0; ) {
+        out.write(buffer, 0, length);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Per-call latency: a fixed base plus exponentially distributed jitter. */
+  public static class LatencyDistribution {
+    private final long baseMillis;
+    private final double meanJitterMillis;
+    private final Random random;
+
+    public LatencyDistribution(long baseMillis, double meanJitterMillis, long seed) {
+      this.baseMillis = baseMillis;
+      this.meanJitterMillis = meanJitterMillis;
+      this.random = new Random(seed);
+    }
+
+    public static LatencyDistribution none() {
+      return new LatencyDistribution(0, 0, 0);
+    }
+
+    synchronized long sampleMillis() {
+      if (meanJitterMillis <= 0) {
+        return baseMillis;
+      }
+      return baseMillis + (long) (-meanJitterMillis * Math.log(1 - random.nextDouble()));
+    }
+  }
+}
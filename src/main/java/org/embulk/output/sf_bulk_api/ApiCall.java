@@ -0,0 +1,8 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.ws.ConnectionException;
+
+/** A single SOAP API call, so it can be timed or replayed. */
+public interface ApiCall<T> {
+  T call() throws ConnectionException;
+}
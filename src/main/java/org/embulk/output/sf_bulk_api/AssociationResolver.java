@@ -0,0 +1,166 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the unique_key values of associations to record Ids before a batch is sent, so that the
+ * reference field is set to the Id instead of a nested SObject Salesforce has to resolve. Resolved
+ * Ids are cached for the life of the JVM and shared by every task writing to the same org, so only
+ * keys missing from the cache are queried. A key that matches no record, or more than one, fails
+ * its row without a DML call.
+ */
+public class AssociationResolver {
+  static final int KEYS_PER_QUERY = 200;
+  // "<service endpoint> <referenced_object>.<unique_key>" -> key -> Id
+  private static final Map<String, Map<String, String>> CACHES = new ConcurrentHashMap<>();
+
+  private final List<Lookup> lookups = new ArrayList<>();
+  private final ErrorHandler errorHandler;
+  private final TaskMetrics metrics;
+  private final long cacheSize;
+
+  public AssociationResolver(
+      final PartnerConnection connection,
+      final PluginTask task,
+      final ErrorHandler errorHandler,
+      final TaskMetrics metrics,
+      final SessionRefresher sessionRefresher,
+      final BatchTrace batchTrace) {
+    this.errorHandler = errorHandler;
+    this.metrics = metrics;
+    this.cacheSize = task.getAssociationCacheSize();
+    final String endpoint = connection.getConfig().getServiceEndpoint();
+    for (AssociationConfig assoc : task.getAssociations()) {
+      lookups.add(
+          new Lookup(
+              assoc,
+              new SfIdResolver(
+                  connection,
+                  assoc.getReferencedObject(),
+                  assoc.getUniqueKey(),
+                  "unique_key",
+                  errorHandler,
+                  metrics,
+                  sessionRefresher,
+                  batchTrace),
+              CACHES.computeIfAbsent(
+                  endpoint + " " + assoc.getReferencedObject() + "." + assoc.getUniqueKey(),
+                  key -> new ConcurrentHashMap<>())));
+    }
+  }
+
+  /** Forgets every cached Id. */
+  static void clearCaches() {
+    CACHES.clear();
+  }
+
+  /**
+   * Replaces the unique_key value in the reference fields of the records with the Id of the
+   * referenced record. Records with a key that cannot be resolved are reported to the ErrorHandler
+   * and left out of the result.
+   */
+  public SfIdResolver.ResolveResult resolve(final List<SObject> records)
+      throws ConnectionException {
+    final Set<SObject> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Lookup lookup : lookups) {
+      resolve(lookup, records, failed);
+    }
+    final List<SObject> resolved = new ArrayList<>();
+    for (SObject record : records) {
+      if (!failed.contains(record)) {
+        resolved.add(record);
+      }
+    }
+    return new SfIdResolver.ResolveResult(resolved, failed.size());
+  }
+
+  private void resolve(final Lookup lookup, final List<SObject> records, final Set<SObject> failed)
+      throws ConnectionException {
+    final String referenceField = lookup.assoc.getReferenceField();
+    final Map<String, List<SObject>> missing = new LinkedHashMap<>();
+    long hits = 0;
+    for (SObject record : records) {
+      final Object value = record.getField(referenceField);
+      if (value == null || failed.contains(record)) {
+        continue;
+      }
+      final String key = value.toString();
+      final String id = lookup.cache.get(key);
+      if (id != null) {
+        record.setField(referenceField, id);
+        hits++;
+      } else {
+        missing.computeIfAbsent(key, k -> new ArrayList<>()).add(record);
+      }
+    }
+    metrics.recordAssociationCacheHits(hits);
+    if (missing.isEmpty()) {
+      return;
+    }
+
+    // SOQL compares text case-insensitively, so a key may match records differing only in case.
+    final Map<String, Set<String>> idsByKey = new HashMap<>();
+    final List<String> keys = new ArrayList<>(missing.keySet());
+    for (int from = 0; from < keys.size(); from += KEYS_PER_QUERY) {
+      lookup.resolver.forEachMatch(
+          new HashSet<>(keys.subList(from, Math.min(from + KEYS_PER_QUERY, keys.size()))),
+          (key, id) -> idsByKey.computeIfAbsent(normalize(key), k -> new HashSet<>()).add(id));
+    }
+
+    for (Map.Entry<String, List<SObject>> entry : missing.entrySet()) {
+      final String key = entry.getKey();
+      final Set<String> ids = idsByKey.getOrDefault(normalize(key), Collections.emptySet());
+      if (ids.size() == 1) {
+        final String id = ids.iterator().next();
+        if (lookup.cache.size() < cacheSize) {
+          lookup.cache.put(key, id);
+        }
+        entry.getValue().forEach(record -> record.setField(referenceField, id));
+        continue;
+      }
+      final String message =
+          String.format(
+              "%s %s found for %s=%s",
+              ids.isEmpty() ? "No" : "Multiple",
+              lookup.assoc.getReferencedObject(),
+              lookup.assoc.getUniqueKey(),
+              key);
+      for (SObject record : entry.getValue()) {
+        errorHandler.handleAssociationResolveError(record, message);
+        failed.add(record);
+      }
+    }
+  }
+
+  private static String normalize(final String key) {
+    return key.toLowerCase(Locale.ROOT);
+  }
+
+  private static class Lookup {
+    private final AssociationConfig assoc;
+    private final SfIdResolver resolver;
+    private final Map<String, String> cache;
+
+    Lookup(
+        final AssociationConfig assoc,
+        final SfIdResolver resolver,
+        final Map<String, String> cache) {
+      this.assoc = assoc;
+      this.resolver = resolver;
+      this.cache = cache;
+    }
+  }
+}
@@ -2,6 +2,8 @@ package org.embulk.output.sf_bulk_api;
 
 public enum AuthMethod {
   oauth("oauth"),
+  oauth_jwt("oauth_jwt"),
+  oauth_refresh_token("oauth_refresh_token"),
   user_password("user_password");
 
   private final String string;
@@ -0,0 +1,237 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.annotations.SerializedName;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes one JSON line per API call to the batch trace file of a task. Lines are written by a
+ * background thread so that tracing adds nothing to the time between calls; if the thread falls
+ * behind, lines are dropped rather than slowing the task down.
+ */
+public class BatchTrace {
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+  private static final int QUEUE_CAPACITY = 10000;
+
+  private final Logger logger = LoggerFactory.getLogger(BatchTrace.class);
+  private final int taskIndex;
+  // null when tracing is disabled
+  private final Path path;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong dropped = new AtomicLong();
+  // Only used by the executor thread, and closed when the executor terminates
+  private BufferedWriter writer;
+  private boolean unavailable;
+  // Conversion time of the rows that go into the next call
+  private long pendingConversionNanos;
+
+  private static class Entry {
+    @SerializedName("time")
+    private final String time;
+
+    @SerializedName("task_index")
+    private final int taskIndex;
+
+    @SerializedName("action")
+    private final String action;
+
+    @SerializedName("rows")
+    private final long rows;
+
+    @SerializedName("bytes")
+    private final long bytes;
+
+    @SerializedName("conversion_ms")
+    private final double conversionMs;
+
+    @SerializedName("queue_wait_ms")
+    private final double queueWaitMs;
+
+    @SerializedName("network_ms")
+    private final double networkMs;
+
+    @SerializedName("succeeded")
+    private final long succeeded;
+
+    @SerializedName("failed")
+    private final long failed;
+
+    @SerializedName("error_codes")
+    private final Map<String, Long> errorCodes;
+
+    Entry(
+        final String time,
+        final int taskIndex,
+        final String action,
+        final long rows,
+        final long bytes,
+        final long conversionNanos,
+        final long queueWaitNanos,
+        final long networkNanos,
+        final long failed,
+        final Map<String, Long> errorCodes) {
+      this.time = time;
+      this.taskIndex = taskIndex;
+      this.action = action;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.conversionMs = toMillis(conversionNanos);
+      this.queueWaitMs = toMillis(queueWaitNanos);
+      this.networkMs = toMillis(networkNanos);
+      this.succeeded = rows - failed;
+      this.failed = failed;
+      this.errorCodes = errorCodes;
+    }
+
+    private static double toMillis(final long nanos) {
+      return Math.round(nanos / 1000.0) / 1000.0;
+    }
+  }
+
+  private BatchTrace(final Path path, final int taskIndex) {
+    this.path = path;
+    this.taskIndex = taskIndex;
+    if (path == null) {
+      this.executor = null;
+    } else {
+      this.executor =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              0,
+              TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+              runnable -> {
+                final Thread thread =
+                    new Thread(runnable, String.format("sf_bulk_api-batch-trace-%03d", taskIndex));
+                thread.setDaemon(true);
+                return thread;
+              },
+              (runnable, executor) -> dropped.incrementAndGet()) {
+            @Override
+            protected void terminated() {
+              // After the last line, even when close() has stopped waiting for it.
+              closeWriter();
+            }
+          };
+    }
+  }
+
+  public static BatchTrace open(final String batchTraceFile, final int taskIndex) {
+    return new BatchTrace(
+        Paths.get(String.format("%s_task%03d.jsonl", batchTraceFile, taskIndex)), taskIndex);
+  }
+
+  public static BatchTrace none() {
+    return new BatchTrace(null, 0);
+  }
+
+  public boolean isEnabled() {
+    return executor != null;
+  }
+
+  public void addConversionNanos(final long nanos) {
+    pendingConversionNanos += nanos;
+  }
+
+  /**
+   * Records a call. The conversion time added since the previous call is attributed to this one.
+   */
+  public void record(
+      final String action,
+      final long rows,
+      final long bytes,
+      final long queueWaitNanos,
+      final long networkNanos,
+      final long failed,
+      final Map<String, Long> errorCodes) {
+    if (executor == null) {
+      return;
+    }
+    final Entry entry =
+        new Entry(
+            Instant.now().toString(),
+            taskIndex,
+            action,
+            rows,
+            bytes,
+            pendingConversionNanos,
+            queueWaitNanos,
+            networkNanos,
+            failed,
+            errorCodes);
+    pendingConversionNanos = 0;
+    executor.execute(() -> write(GSON.toJson(entry)));
+  }
+
+  private void write(final String line) {
+    if (unavailable) {
+      return;
+    }
+    try {
+      if (writer == null) {
+        final Path parent = path.getParent();
+        if (parent != null && !Files.exists(parent)) {
+          Files.createDirectories(parent);
+        }
+        writer =
+            Files.newBufferedWriter(
+                path,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+      }
+      writer.write(line);
+      writer.newLine();
+    } catch (IOException e) {
+      logger.error("Failed to write batch trace file: " + path, e);
+      unavailable = true;
+    }
+  }
+
+  /**
+   * Writes the queued lines and closes the file. If writing takes too long, the file is closed by
+   * the background thread once it is done.
+   */
+  public void close() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+        logger.warn("Timed out writing batch trace file: {}", path);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (dropped.get() > 0) {
+      logger.warn("Dropped {} lines of batch trace file {}", dropped.get(), path);
+    }
+  }
+
+  private void closeWriter() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        logger.error("Failed to close batch trace file: " + path, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.SoapFaultException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling Salesforce while it looks unavailable. The breaker opens after
+ * circuit_breaker_threshold consecutive calls failed without an answer from Salesforce (timeouts,
+ * connection errors, SERVER_UNAVAILABLE), makes every task wait for circuit_breaker_pause seconds,
+ * and then lets a single call through as a probe. A successful probe closes the breaker and a
+ * failed one opens it again. Tasks of the same JVM that write to the same org share one breaker.
+ */
+public class CircuitBreaker {
+  private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+  private enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+  private final int threshold;
+  private final long pauseMillis;
+  private final LongSupplier clock;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+
+  CircuitBreaker(final int threshold, final long pauseMillis, final LongSupplier clock) {
+    this.threshold = threshold;
+    this.pauseMillis = pauseMillis;
+    this.clock = clock;
+  }
+
+  public static CircuitBreaker of(final PluginTask task, final String serviceEndpoint) {
+    if (task.getCircuitBreakerThreshold() == 0) {
+      return none();
+    }
+    final String key =
+        String.format(
+            "%s/%d/%d",
+            serviceEndpoint, task.getCircuitBreakerThreshold(), task.getCircuitBreakerPause());
+    return BREAKERS.computeIfAbsent(
+        key,
+        k ->
+            new CircuitBreaker(
+                task.getCircuitBreakerThreshold(),
+                TimeUnit.SECONDS.toMillis(task.getCircuitBreakerPause()),
+                System::currentTimeMillis));
+  }
+
+  /** Returns a breaker that never opens. */
+  public static CircuitBreaker none() {
+    return new CircuitBreaker(0, 0, System::currentTimeMillis);
+  }
+
+  public <T> T call(final ApiCall<T> call, final TaskMetrics metrics) throws ConnectionException {
+    if (threshold == 0) {
+      return call.call();
+    }
+    final boolean probe = acquire(metrics);
+    boolean outage = false;
+    try {
+      return call.call();
+    } catch (ConnectionException e) {
+      outage = isOutage(e);
+      throw e;
+    } finally {
+      record(probe, outage, metrics);
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return state != State.CLOSED;
+  }
+
+  /**
+   * Tells whether Salesforce failed to answer. Other faults are answers to a bad request and say
+   * nothing about the availability of the service.
+   */
+  static boolean isOutage(final ConnectionException e) {
+    if (e instanceof ApiFault) {
+      return ((ApiFault) e).getExceptionCode() == ExceptionCode.SERVER_UNAVAILABLE;
+    }
+    return !(e instanceof SoapFaultException);
+  }
+
+  /** Waits until a call may be made, and returns true when the call is the probe. */
+  private synchronized boolean acquire(final TaskMetrics metrics) throws ConnectionException {
+    final long start = System.nanoTime();
+    try {
+      while (true) {
+        if (state == State.CLOSED) {
+          return false;
+        }
+        final long now = clock.getAsLong();
+        if (state == State.OPEN && now >= openedAt + pauseMillis) {
+          state = State.HALF_OPEN;
+          logger.info("Circuit breaker is half-open, probing Salesforce with a single call");
+          return true;
+        }
+        // While a probe is running, wait for its outcome.
+        wait(state == State.OPEN ? openedAt + pauseMillis - now : pauseMillis + 1);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectionException("Interrupted while the circuit breaker was open", e);
+    } finally {
+      final long waited = System.nanoTime() - start;
+      if (waited > TimeUnit.MILLISECONDS.toNanos(1)) {
+        metrics.addCircuitWaitNanos(waited);
+      }
+    }
+  }
+
+  private synchronized void record(
+      final boolean probe, final boolean outage, final TaskMetrics metrics) {
+    if (!outage) {
+      consecutiveFailures = 0;
+      if (state != State.CLOSED) {
+        state = State.CLOSED;
+        logger.info("Circuit breaker closed, Salesforce answered again");
+        metrics.recordCircuitTransition(false);
+        notifyAll();
+      }
+      return;
+    }
+    consecutiveFailures++;
+    if ((state == State.HALF_OPEN && probe)
+        || (state == State.CLOSED && consecutiveFailures >= threshold)) {
+      state = State.OPEN;
+      openedAt = clock.getAsLong();
+      logger.warn(
+          "Circuit breaker opened after {} consecutive failed calls, pausing calls for {} ms",
+          consecutiveFailures,
+          pauseMillis);
+      metrics.recordCircuitTransition(true);
+      notifyAll();
+    }
+  }
+}
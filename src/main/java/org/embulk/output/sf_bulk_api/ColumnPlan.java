@@ -0,0 +1,208 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.sobject.SObject;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+
+/**
+ * Per-column encoders chosen once from describeSObject metadata, used instead of {@link
+ * SForceColumnVisitor} when the field types are known. Each encoder already knows the target field
+ * type, so encoding a cell is a single call with no type dispatch.
+ */
+public class ColumnPlan {
+  private static final DateTimeFormatter DATE =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC);
+  private static final DateTimeFormatter TIME =
+      DateTimeFormatter.ofPattern("HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  private final Column[] columns;
+  private final String[] fieldNames;
+  private final Encoder[] encoders;
+  // Whether the column is a string written to an Id or lookup field
+  private final boolean[] lookups;
+  private final boolean ignoreNulls;
+
+  public ColumnPlan(
+      final List<Column> columns,
+      final ObjectMetadata metadata,
+      final boolean ignoreNulls,
+      final boolean truncateText) {
+    this.columns = columns.toArray(new Column[0]);
+    this.fieldNames = new String[this.columns.length];
+    this.encoders = new Encoder[this.columns.length];
+    this.lookups = new boolean[this.columns.length];
+    for (int i = 0; i < this.columns.length; i++) {
+      fieldNames[i] = this.columns[i].getName();
+      final Optional<FieldMetadata> field = metadata.getField(fieldNames[i]);
+      encoders[i] = encoderFor(this.columns[i], field, truncateText);
+      lookups[i] =
+          field.isPresent()
+              && ("id".equals(field.get().getType()) || "reference".equals(field.get().getType()))
+              && "string".equals(this.columns[i].getType().getName());
+    }
+    this.ignoreNulls = ignoreNulls;
+  }
+
+  /**
+   * Sets the fields of the current record of the reader, and collects the null fields. An empty
+   * string in an Id or lookup field is a null, as Salesforce would reject it as an Id.
+   */
+  public void encode(final PageReader reader, final SObject record, final List<String> nulls) {
+    for (int i = 0; i < columns.length; i++) {
+      if (reader.isNull(columns[i]) || (lookups[i] && reader.getString(columns[i]).isEmpty())) {
+        if (!ignoreNulls) {
+          nulls.add(fieldNames[i]);
+        }
+      } else {
+        record.addField(fieldNames[i], encoders[i].encode(reader, columns[i]));
+      }
+    }
+  }
+
+  @SuppressWarnings("deprecation") // For the use of pageReader.getTimestamp and getJson
+  static Encoder encoderFor(
+      final Column column, final Optional<FieldMetadata> metadata, final boolean truncateText) {
+    final String columnType = column.getType().getName();
+    if (!metadata.isPresent()) {
+      return legacyEncoder(columnType);
+    }
+    final FieldMetadata field = metadata.get();
+    final int maxLength = truncateText && field.isTextual() ? field.getLength() : 0;
+    switch (columnType) {
+      case "boolean":
+        if (field.isTextual()) {
+          return (reader, c) -> String.valueOf(reader.getBoolean(c));
+        }
+        return (reader, c) -> reader.getBoolean(c);
+      case "long":
+        if ("int".equals(field.getType())) {
+          return (reader, c) -> {
+            final long value = reader.getLong(c);
+            return value == (int) value ? (Object) (int) value : (Object) (double) value;
+          };
+        }
+        if (field.isTextual()) {
+          return (reader, c) -> Long.toString(reader.getLong(c));
+        }
+        return legacyEncoder(columnType);
+      case "double":
+        if (field.isTextual()) {
+          return (reader, c) -> BigDecimal.valueOf(reader.getDouble(c)).toPlainString();
+        }
+        if (field.isNumeric() && !"int".equals(field.getType())) {
+          final int scale = field.getScale();
+          return (reader, c) -> round(reader.getDouble(c), scale);
+        }
+        return legacyEncoder(columnType);
+      case "timestamp":
+        switch (field.getType()) {
+          case "date":
+            return (reader, c) -> DATE.format(reader.getTimestamp(c).getInstant());
+          case "time":
+            return (reader, c) -> TIME.format(reader.getTimestamp(c).getInstant());
+          case "datetime":
+            return (reader, c) -> reader.getTimestamp(c).getInstant().toString();
+          default:
+            if (field.isTextual()) {
+              return truncating(
+                  (reader, c) -> reader.getTimestamp(c).getInstant().toString(), maxLength);
+            }
+            return legacyEncoder(columnType);
+        }
+      case "json":
+        return truncating((reader, c) -> reader.getJson(c).toJson(), maxLength);
+      default:
+        if ("picklist".equals(field.getType())) {
+          return picklist(field, false);
+        }
+        if ("multipicklist".equals(field.getType())) {
+          return picklist(field, true);
+        }
+        return truncating((reader, c) -> reader.getString(c), maxLength);
+    }
+  }
+
+  // Rounds in decimal, which neither overflows nor adds binary rounding errors. NaN and infinity
+  // are sent unchanged for Salesforce to reject.
+  static double round(final double value, final int scale) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return value;
+    }
+    return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_UP).doubleValue();
+  }
+
+  /** The Embulk-type-only mapping of SForceColumnVisitor, for columns without metadata. */
+  @SuppressWarnings("deprecation") // For the use of pageReader.getTimestamp and getJson
+  private static Encoder legacyEncoder(final String columnType) {
+    switch (columnType) {
+      case "boolean":
+        return (reader, c) -> reader.getBoolean(c);
+      case "long":
+        return (reader, c) -> (double) reader.getLong(c);
+      case "double":
+        return (reader, c) -> reader.getDouble(c);
+      case "timestamp":
+        return (reader, c) -> {
+          final Calendar calendar = Calendar.getInstance(Locale.ENGLISH);
+          calendar.setTimeInMillis(reader.getTimestamp(c).getInstant().toEpochMilli());
+          return calendar;
+        };
+      case "json":
+        return (reader, c) -> reader.getJson(c).toJson();
+      default:
+        return (reader, c) -> reader.getString(c);
+    }
+  }
+
+  private static Encoder truncating(final Encoder encoder, final int maxLength) {
+    if (maxLength <= 0) {
+      return encoder;
+    }
+    return (reader, c) -> truncate((String) encoder.encode(reader, c), maxLength);
+  }
+
+  static String truncate(final String value, final int length) {
+    if (value.length() <= length || value.codePointCount(0, value.length()) <= length) {
+      return value;
+    }
+    return value.substring(0, value.offsetByCodePoints(0, length));
+  }
+
+  /** Maps values to the picklist's own spelling, ignoring case and surrounding spaces. */
+  private static Encoder picklist(final FieldMetadata field, final boolean multiSelect) {
+    final Map<String, String> canonical = new HashMap<>();
+    for (String value : field.getPicklistValues()) {
+      canonical.put(normalize(value), value);
+    }
+    if (!multiSelect) {
+      return (reader, c) -> {
+        final String value = reader.getString(c);
+        return canonical.getOrDefault(normalize(value), value);
+      };
+    }
+    return (reader, c) ->
+        Stream.of(reader.getString(c).split(";"))
+            .map(value -> canonical.getOrDefault(normalize(value), value.trim()))
+            .collect(Collectors.joining(";"));
+  }
+
+  private static String normalize(final String value) {
+    return value.trim().toLowerCase(Locale.ENGLISH);
+  }
+
+  interface Encoder {
+    Object encode(PageReader reader, Column column);
+  }
+}
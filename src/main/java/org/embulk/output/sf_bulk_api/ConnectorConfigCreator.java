@@ -5,4 +5,7 @@ import com.sforce.ws.ConnectorConfig;
 
 public interface ConnectorConfigCreator {
   ConnectorConfig createConnectorConfig() throws ConnectionException;
+
+  /** Called when Salesforce rejected the session, before a new config is created. */
+  default void invalidateSession(String sessionId) {}
 }
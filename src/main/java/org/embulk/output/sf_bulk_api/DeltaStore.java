@@ -0,0 +1,138 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent index of the content hash last written to Salesforce for each key value.
+ *
+ * <p>The index is loaded once per transaction and shared by all tasks, so it only sees the rows of
+ * tasks running in this process (the local executor). Only rows acknowledged by Salesforce are
+ * recorded, and the file is rewritten atomically when the transaction finishes.
+ */
+public class DeltaStore {
+  private static final int MAGIC = 0x53464453; // "SFDS"
+  private static final Map<String, DeltaStore> STORES = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger(DeltaStore.class);
+  private final Path path;
+  private final Map<String, Long> hashes = new ConcurrentHashMap<>();
+
+  DeltaStore(final Path path) throws IOException {
+    this.path = path;
+    load();
+  }
+
+  public static DeltaStore open(final String path) {
+    return STORES.computeIfAbsent(
+        path,
+        p -> {
+          try {
+            return new DeltaStore(Paths.get(p));
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+  }
+
+  /** Forgets the index of a file, so that the next transaction loads the file again. */
+  public static void release(final String path) {
+    STORES.remove(path);
+  }
+
+  public boolean isUnchanged(final String key, final long hash) {
+    final Long previous = hashes.get(key);
+    return previous != null && previous == hash;
+  }
+
+  public void put(final String key, final long hash) {
+    hashes.put(key, hash);
+  }
+
+  public int size() {
+    return hashes.size();
+  }
+
+  public synchronized void save() throws IOException {
+    final Path parent = path.getParent();
+    if (parent != null && !Files.exists(parent)) {
+      Files.createDirectories(parent);
+    }
+    final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(hashes.size());
+      for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeLong(entry.getValue());
+      }
+    }
+    Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logger.info("Saved {} content hashes to {}", hashes.size(), path);
+  }
+
+  private void load() throws IOException {
+    if (!Files.exists(path)) {
+      return;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a delta store file: " + path);
+      }
+      final int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        hashes.put(in.readUTF(), in.readLong());
+      }
+    }
+    logger.info("Loaded {} content hashes from {}", hashes.size(), path);
+  }
+
+  /** Computes a 64-bit content hash of a row. Not thread-safe; use one instance per task. */
+  public static class RowHasher {
+    private final MessageDigest digest;
+
+    public RowHasher() {
+      try {
+        this.digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public long hash(final List<String> values) {
+      for (String value : values) {
+        if (value == null) {
+          digest.update((byte) 1);
+        } else {
+          digest.update((byte) 0);
+          digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+      }
+      final byte[] bytes = digest.digest();
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (bytes[i] & 0xff);
+      }
+      return hash;
+    }
+  }
+}
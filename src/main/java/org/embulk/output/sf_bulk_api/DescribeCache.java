@@ -0,0 +1,98 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.ws.ConnectionException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls describeSObject and keeps the result on local disk for a limited time. Cache entries are
+ * keyed by the SOAP service endpoint, which identifies both the org and the API version.
+ */
+public class DescribeCache {
+  private final Logger logger = LoggerFactory.getLogger(DescribeCache.class);
+  private final PartnerConnection connection;
+  private final Optional<Path> cacheDirectory;
+  private final long ttlMillis;
+  private final String endpointKey;
+
+  public DescribeCache(
+      final PartnerConnection connection,
+      final Optional<String> cacheDirectory,
+      final long ttlSeconds) {
+    this.connection = connection;
+    this.cacheDirectory = cacheDirectory.map(Paths::get);
+    this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+    this.endpointKey = sha256Hex(connection.getConfig().getServiceEndpoint()).substring(0, 16);
+  }
+
+  public ObjectMetadata describe(final String objectName) throws ConnectionException {
+    final Optional<Path> cacheFile =
+        cacheDirectory.map(dir -> dir.resolve(endpointKey + "_" + objectName + ".json"));
+    if (cacheFile.isPresent()) {
+      final Optional<ObjectMetadata> cached = readCache(cacheFile.get());
+      if (cached.isPresent()) {
+        return cached.get();
+      }
+    }
+    logger.info("Describing {}", objectName);
+    final ObjectMetadata metadata =
+        ObjectMetadata.of(connection.describeSObject(objectName), System.currentTimeMillis());
+    cacheFile.ifPresent(path -> writeCache(path, metadata));
+    return metadata;
+  }
+
+  private Optional<ObjectMetadata> readCache(final Path path) {
+    if (!Files.exists(path)) {
+      return Optional.empty();
+    }
+    try {
+      final ObjectMetadata metadata =
+          ObjectMetadata.fromJson(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+      if (metadata == null || metadata.getFetchedAt() + ttlMillis < System.currentTimeMillis()) {
+        return Optional.empty();
+      }
+      logger.info("Using cached describe result {}", path);
+      return Optional.of(metadata);
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Ignoring unreadable describe cache " + path, e);
+      return Optional.empty();
+    }
+  }
+
+  private void writeCache(final Path path, final ObjectMetadata metadata) {
+    try {
+      Files.createDirectories(path.getParent());
+      final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+      Files.write(tmpPath, metadata.toJson().getBytes(StandardCharsets.UTF_8));
+      Files.move(
+          tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Failed to write describe cache " + path, e);
+    }
+  }
+
+  private static String sha256Hex(final String value) {
+    try {
+      final byte[] digest =
+          MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
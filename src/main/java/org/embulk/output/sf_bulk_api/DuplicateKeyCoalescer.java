@@ -0,0 +1,154 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves records that share a key value within one batch before it is sent. Salesforce rejects
+ * every row of an upsert batch whose external ID appears more than once, and SfIdResolver rejects
+ * in-batch duplicates of update_key, so only one record per key may be sent at a time.
+ */
+public class DuplicateKeyCoalescer {
+  private final DuplicateKeyHandling handling;
+  private final String keyField;
+
+  public DuplicateKeyCoalescer(final DuplicateKeyHandling handling, final String keyField) {
+    this.handling = handling;
+    this.keyField = keyField;
+  }
+
+  public Result coalesce(final List<SObject> records) {
+    final Map<String, List<SObject>> recordsByKey = new LinkedHashMap<>();
+    final List<SObject> withoutKey = new ArrayList<>();
+    for (SObject record : records) {
+      final Object key = record.getField(keyField);
+      if (key == null) {
+        // Left for Salesforce or SfIdResolver to reject.
+        withoutKey.add(record);
+      } else {
+        recordsByKey.computeIfAbsent(key.toString(), k -> new ArrayList<>()).add(record);
+      }
+    }
+
+    final List<SObject> toSend = new ArrayList<>(withoutKey);
+    final List<SObject> deferred = new ArrayList<>();
+    final List<SObject> dropped = new ArrayList<>();
+    final Map<SObject, List<SObject>> groups = new IdentityHashMap<>();
+    for (List<SObject> group : recordsByKey.values()) {
+      if (group.size() == 1) {
+        toSend.add(group.get(0));
+        continue;
+      }
+      switch (handling) {
+        case last_wins:
+          toSend.add(group.get(group.size() - 1));
+          dropped.addAll(group.subList(0, group.size() - 1));
+          groups.put(group.get(group.size() - 1), group);
+          break;
+        case first_wins:
+          toSend.add(group.get(0));
+          dropped.addAll(group.subList(1, group.size()));
+          groups.put(group.get(0), group);
+          break;
+        case merge:
+          final SObject merged = merge(group);
+          toSend.add(merged);
+          dropped.addAll(group);
+          groups.put(merged, group);
+          break;
+        case defer:
+          toSend.add(group.get(0));
+          deferred.addAll(group.subList(1, group.size()));
+          break;
+        default:
+          toSend.addAll(group);
+          break;
+      }
+    }
+    return new Result(toSend, deferred, dropped, groups);
+  }
+
+  /** Applies the fields of each record in input order, so later values override earlier ones. */
+  private SObject merge(final List<SObject> group) {
+    final Map<String, Object> fields = new LinkedHashMap<>();
+    final Set<String> fieldsToNull = new LinkedHashSet<>();
+    for (SObject record : group) {
+      final Iterator<XmlObject> children = record.getChildren();
+      while (children.hasNext()) {
+        final XmlObject child = children.next();
+        final String name = child.getName().getLocalPart();
+        if ("type".equals(name) || "fieldsToNull".equals(name)) {
+          continue;
+        }
+        fields.put(name, child.hasChildren() ? child : child.getValue());
+        fieldsToNull.remove(name);
+      }
+      if (record.getFieldsToNull() != null) {
+        for (String name : Arrays.asList(record.getFieldsToNull())) {
+          fields.remove(name);
+          fieldsToNull.add(name);
+        }
+      }
+    }
+    final SObject merged = new SObject();
+    merged.setType(group.get(0).getType());
+    fields.forEach(merged::setField);
+    merged.setFieldsToNull(fieldsToNull.toArray(new String[0]));
+    return merged;
+  }
+
+  public static class Result {
+    private final List<SObject> records;
+    private final List<SObject> deferred;
+    private final List<SObject> dropped;
+    private final Map<SObject, List<SObject>> groups;
+
+    Result(
+        List<SObject> records,
+        List<SObject> deferred,
+        List<SObject> dropped,
+        Map<SObject, List<SObject>> groups) {
+      this.records = records;
+      this.deferred = deferred;
+      this.dropped = dropped;
+      this.groups = groups;
+    }
+
+    /** Records to send in this batch. */
+    public List<SObject> getRecords() {
+      return records;
+    }
+
+    /** Duplicates to send in a later batch ({@code defer} only). */
+    public List<SObject> getDeferred() {
+      return deferred;
+    }
+
+    /** Input records that were superseded or merged into another record and are not sent. */
+    public List<SObject> getDropped() {
+      return dropped;
+    }
+
+    /**
+     * The input records each sent record stands for, keyed by the sent record, for the records that
+     * replaced duplicates. The sent record is one of them unless it was merged.
+     */
+    public Map<SObject, List<SObject>> getGroups() {
+      return groups;
+    }
+
+    /** Input records folded into another record: all but one of each group. */
+    public long getCoalescedCount() {
+      return groups.values().stream().mapToLong(group -> group.size() - 1).sum();
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package org.embulk.output.sf_bulk_api;
+
+public enum DuplicateKeyHandling {
+  none("none"),
+  last_wins("last_wins"),
+  first_wins("first_wins"),
+  merge("merge"),
+  defer("defer");
+
+  private final String string;
+
+  DuplicateKeyHandling(final String string) {
+    this.string = string;
+  }
+}
@@ -20,10 +20,13 @@ import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.embulk.spi.Column;
@@ -42,7 +45,15 @@ public class ErrorHandler {
 
   private final Logger logger = LoggerFactory.getLogger(getClass());
   private final Schema schema;
-  private final Optional<BufferedWriter> errorFileWriter;
+  // null when no error file is configured
+  private final Path errorFilePath;
+  // Opened on the first failure, so tasks without failures leave no file behind.
+  private BufferedWriter errorFileWriter;
+  private boolean errorFileUnavailable;
+  private final Set<SObject> failedRecords = Collections.newSetFromMap(new IdentityHashMap<>());
+  private long writeNanos;
+  // Failed rows by error code; a row failing with several codes counts once for each
+  private final Map<String, Long> errorCodeCounts = new TreeMap<>();
 
   private static class ErrorRecord {
     @SerializedName("record_data")
@@ -63,38 +74,40 @@ public class ErrorHandler {
 
   public ErrorHandler(final Schema schema) {
     this.schema = schema;
-    this.errorFileWriter = Optional.empty();
+    this.errorFilePath = null;
   }
 
   public ErrorHandler(final Schema schema, final String errorFilePath, final int taskIndex) {
     this.schema = schema;
-    this.errorFileWriter = createErrorFileWriter(errorFilePath, taskIndex);
+    if (errorFilePath == null || errorFilePath.trim().isEmpty()) {
+      this.errorFilePath = null;
+    } else {
+      this.errorFilePath = Paths.get(String.format("%s_task%03d.jsonl", errorFilePath, taskIndex));
+    }
   }
 
-  private Optional<BufferedWriter> createErrorFileWriter(String outputPath, int taskIndex) {
-    if (outputPath == null || outputPath.trim().isEmpty()) {
-      return Optional.empty();
+  private Optional<BufferedWriter> errorFileWriter() {
+    if (errorFileWriter != null || errorFilePath == null || errorFileUnavailable) {
+      return Optional.ofNullable(errorFileWriter);
     }
 
     try {
-      String taskFilePath = String.format("%s_task%03d.jsonl", outputPath, taskIndex);
-      Path filePath = Paths.get(taskFilePath);
-
       // Create directories if needed
-      Path parent = filePath.getParent();
+      Path parent = errorFilePath.getParent();
       if (parent != null && !Files.exists(parent)) {
         Files.createDirectories(parent);
       }
 
-      BufferedWriter writer =
+      errorFileWriter =
           Files.newBufferedWriter(
-              filePath,
+              errorFilePath,
               StandardCharsets.UTF_8,
               StandardOpenOption.CREATE,
               StandardOpenOption.APPEND);
-      return Optional.of(writer);
+      return Optional.of(errorFileWriter);
     } catch (IOException e) {
       logger.error("Failed to create error file writer", e);
+      errorFileUnavailable = true;
       return Optional.empty();
     }
   }
@@ -108,6 +121,8 @@ public class ErrorHandler {
   }
 
   private void log(final SObject sObject, final ApiFault fault) {
+    failedRecords.add(sObject);
+
     // For standard output/error output - keep original format
     String originalFailureJson = getFailureForLog(sObject, fault);
     logger.error(String.format("[output sf_bulk_api failure] %s", originalFailureJson));
@@ -115,6 +130,7 @@ public class ErrorHandler {
     // For file output - use kintone format
     Map<String, Object> recordData = getObject(sObject);
     String errorCode = fault.getExceptionCode().toString();
+    countErrorCode(errorCode);
     String errorMessage = fault.getExceptionMessage();
     ErrorRecord errorRecord = new ErrorRecord(recordData, errorCode, errorMessage);
     String fileFailureJson = GSON.toJson(errorRecord);
@@ -213,12 +229,17 @@ public class ErrorHandler {
     if (!result.isFailure()) {
       return;
     }
+    failedRecords.add(sObject);
 
     String originalFailureJson = getFailureForLog(sObject, result);
     logger.error(String.format("[output sf_bulk_api failure] %s", originalFailureJson));
 
     Map<String, Object> recordData = getObject(sObject);
     String combinedErrorCode = combineErrorCodes(result.getErrors());
+    Arrays.stream(result.getErrors())
+        .map(error -> error.getStatusCode().toString())
+        .distinct()
+        .forEach(this::countErrorCode);
     String combinedErrorMessage = combineErrorMessages(result.getErrors());
     ErrorRecord errorRecord = new ErrorRecord(recordData, combinedErrorCode, combinedErrorMessage);
     String fileFailureJson = GSON.toJson(errorRecord);
@@ -238,8 +259,11 @@ public class ErrorHandler {
       return null;
     }
     final String type = column.getType().getName();
-    if ("timestamp".equals(type)) {
+    if ("timestamp".equals(type) && field instanceof Calendar) {
       return org.embulk.spi.time.Timestamp.ofInstant(((Calendar) field).toInstant()).toString();
+    } else if ("timestamp".equals(type)) {
+      // Already an ISO-8601 string when encoded for a date or datetime field by ColumnPlan.
+      return field.toString();
     } else if ("boolean".equals(type)) {
       return Boolean.valueOf(field.toString());
     } else if ("double".equals(type) || "long".equals(type)) {
@@ -287,36 +311,82 @@ public class ErrorHandler {
   }
 
   private void writeToErrorFile(String json) {
-    errorFileWriter.ifPresent(
-        writer -> {
-          try {
-            writer.write(json);
-            writer.newLine();
-            writer.flush();
-          } catch (IOException e) {
-            logger.error("Failed to write to error file", e);
-          }
-        });
+    errorFileWriter()
+        .ifPresent(
+            writer -> {
+              final FlightRecorderEvents.ErrorWriteSpan span =
+                  FlightRecorderEvents.beginErrorWrite();
+              final long start = System.nanoTime();
+              try {
+                writer.write(json);
+                writer.newLine();
+                writer.flush();
+              } catch (IOException e) {
+                logger.error("Failed to write to error file", e);
+              }
+              writeNanos += System.nanoTime() - start;
+              span.end(json.length() + 1);
+            });
+  }
+
+  private void countErrorCode(final String code) {
+    errorCodeCounts.merge(code, 1L, Long::sum);
+  }
+
+  /** Returns the number of failed rows by error code. */
+  public Map<String, Long> getErrorCodeCounts() {
+    return Collections.unmodifiableMap(errorCodeCounts);
+  }
+
+  /** Returns the total time spent writing the error file. */
+  public long getWriteNanos() {
+    return writeNanos;
   }
 
   public void handleIdResolveError(final SObject sObject, final String message) {
-    logger.error(String.format("[output sf_bulk_api failure] ID resolve failed: %s", message));
+    handleRecordError(sObject, "ID_RESOLVE_ERROR", "ID resolve", message);
+  }
+
+  public void handleAssociationResolveError(final SObject sObject, final String message) {
+    handleRecordError(sObject, "ASSOCIATION_RESOLVE_ERROR", "association resolve", message);
+  }
+
+  public void handleValidationError(final SObject sObject, final String message) {
+    handleRecordError(sObject, "CLIENT_VALIDATION", "client validation", message);
+  }
+
+  // Reports a record that failed before it was sent.
+  private void handleRecordError(
+      final SObject sObject, final String code, final String label, final String message) {
+    failedRecords.add(sObject);
+    logger.error(String.format("[output sf_bulk_api failure] %s failed: %s", label, message));
 
     Map<String, Object> recordData = getObject(sObject);
-    ErrorRecord errorRecord = new ErrorRecord(recordData, "ID_RESOLVE_ERROR", message);
+    countErrorCode(code);
+    ErrorRecord errorRecord = new ErrorRecord(recordData, code, message);
     String fileFailureJson = GSON.toJson(errorRecord);
     writeToErrorFile(fileFailureJson);
   }
 
+  /**
+   * Returns the records reported as failed since the previous call and forgets them. Records of a
+   * batch that are not in the returned set were acknowledged by Salesforce.
+   */
+  public Set<SObject> takeFailedRecords() {
+    final Set<SObject> taken = Collections.newSetFromMap(new IdentityHashMap<>());
+    taken.addAll(failedRecords);
+    failedRecords.clear();
+    return taken;
+  }
+
   public void close() {
-    errorFileWriter.ifPresent(
-        writer -> {
-          try {
-            writer.close();
-          } catch (IOException e) {
-            logger.error("Failed to close error file writer", e);
-          }
-        });
+    if (errorFileWriter != null) {
+      try {
+        errorFileWriter.close();
+      } catch (IOException e) {
+        logger.error("Failed to close error file writer", e);
+      }
+    }
   }
 
   private interface Result {
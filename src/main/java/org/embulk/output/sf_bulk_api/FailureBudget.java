@@ -0,0 +1,105 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the rows sent and the failures of every task of a transaction running in this process,
+ * and trips once max_failures or max_failure_ratio is exceeded so that no task keeps spending API
+ * calls on a job that is going to fail anyway.
+ */
+public class FailureBudget {
+  private static final Map<String, FailureBudget> BUDGETS = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger(FailureBudget.class);
+  private final Optional<Long> maxFailures;
+  private final Optional<Double> maxFailureRatio;
+  private final long minRows;
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile String exceededReason;
+
+  FailureBudget(
+      final Optional<Long> maxFailures,
+      final Optional<Double> maxFailureRatio,
+      final long minRows) {
+    this.maxFailures = maxFailures;
+    this.maxFailureRatio = maxFailureRatio;
+    this.minRows = minRows;
+  }
+
+  /** Returns the budget shared by the tasks of the transaction that created the task. */
+  public static FailureBudget of(final PluginTask task) {
+    final FailureBudget budget =
+        new FailureBudget(
+            task.getMaxFailures(), task.getMaxFailureRatio(), task.getFailureRatioMinRows());
+    if (!task.getFailureBudgetId().isPresent()) {
+      return budget;
+    }
+    return BUDGETS.computeIfAbsent(task.getFailureBudgetId().get(), id -> budget);
+  }
+
+  public static void release(final String id) {
+    BUDGETS.remove(id);
+  }
+
+  /**
+   * Records a sent batch. The totals of the task are checked as well as those of the whole
+   * process, so that a task whose rows all fail trips the ratio even while other tasks succeed.
+   *
+   * @return true when tasks should stop sending
+   */
+  public boolean record(
+      final long batchRows,
+      final long batchFailures,
+      final long taskRows,
+      final long taskFailures) {
+    final long totalRows = rows.addAndGet(batchRows);
+    final long totalFailures = failures.addAndGet(batchFailures);
+    if (exceededReason == null) {
+      Optional<String> reason = check(totalRows, totalFailures, "all tasks");
+      if (!reason.isPresent()) {
+        reason = check(taskRows, taskFailures, "a task");
+      }
+      reason.ifPresent(this::trip);
+    }
+    return isExceeded();
+  }
+
+  public boolean isExceeded() {
+    return exceededReason != null;
+  }
+
+  public Optional<String> getExceededReason() {
+    return Optional.ofNullable(exceededReason);
+  }
+
+  private Optional<String> check(final long rows, final long failures, final String scope) {
+    if (maxFailures.isPresent() && failures > maxFailures.get()) {
+      return Optional.of(
+          String.format(
+              "%,d failures in %s exceed max_failures %,d", failures, scope, maxFailures.get()));
+    }
+    if (maxFailureRatio.isPresent() && rows >= minRows && rows > 0) {
+      final double ratio = (double) failures / rows;
+      if (ratio > maxFailureRatio.get()) {
+        return Optional.of(
+            String.format(
+                "%,d failures out of %,d rows in %s exceed max_failure_ratio %s",
+                failures, rows, scope, maxFailureRatio.get()));
+      }
+    }
+    return Optional.empty();
+  }
+
+  private synchronized void trip(final String reason) {
+    if (exceededReason == null) {
+      exceededReason = reason;
+      logger.error("Stopping all tasks: {}", reason);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.google.gson.annotations.SerializedName;
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.PicklistEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** The subset of a describeSObject field result the plugin needs, serializable with Gson. */
+public class FieldMetadata {
+  @SerializedName("name")
+  private String name;
+
+  // Salesforce soapType-independent field type such as "string", "double" or "datetime".
+  @SerializedName("type")
+  private String type;
+
+  @SerializedName("length")
+  private int length;
+
+  @SerializedName("precision")
+  private int precision;
+
+  @SerializedName("scale")
+  private int scale;
+
+  @SerializedName("digits")
+  private int digits;
+
+  @SerializedName("createable")
+  private boolean createable;
+
+  @SerializedName("updateable")
+  private boolean updateable;
+
+  @SerializedName("nillable")
+  private boolean nillable;
+
+  @SerializedName("defaulted_on_create")
+  private boolean defaultedOnCreate;
+
+  @SerializedName("external_id")
+  private boolean externalId;
+
+  @SerializedName("id_lookup")
+  private boolean idLookup;
+
+  @SerializedName("restricted_picklist")
+  private boolean restrictedPicklist;
+
+  @SerializedName("picklist_values")
+  private List<String> picklistValues;
+
+  @SerializedName("reference_to")
+  private List<String> referenceTo;
+
+  FieldMetadata() {}
+
+  public static FieldMetadata of(final Field field) {
+    final FieldMetadata metadata = new FieldMetadata();
+    metadata.name = field.getName();
+    // Generated enum constants for Java keywords are prefixed with "_" (e.g. _boolean).
+    metadata.type = field.getType().name().replaceFirst("^_", "");
+    metadata.length = field.getLength();
+    metadata.precision = field.getPrecision();
+    metadata.scale = field.getScale();
+    metadata.digits = field.getDigits();
+    metadata.createable = field.isCreateable();
+    metadata.updateable = field.isUpdateable();
+    metadata.nillable = field.isNillable();
+    metadata.defaultedOnCreate = field.isDefaultedOnCreate();
+    metadata.externalId = field.isExternalId();
+    metadata.idLookup = field.isIdLookup();
+    metadata.restrictedPicklist = field.isRestrictedPicklist();
+    metadata.picklistValues = new ArrayList<>();
+    if (field.getPicklistValues() != null) {
+      for (PicklistEntry entry : field.getPicklistValues()) {
+        if (entry.isActive()) {
+          metadata.picklistValues.add(entry.getValue());
+        }
+      }
+    }
+    metadata.referenceTo =
+        field.getReferenceTo() != null
+            ? new ArrayList<>(Arrays.asList(field.getReferenceTo()))
+            : new ArrayList<>();
+    return metadata;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  public int getScale() {
+    return scale;
+  }
+
+  public int getDigits() {
+    return digits;
+  }
+
+  public boolean isCreateable() {
+    return createable;
+  }
+
+  public boolean isUpdateable() {
+    return updateable;
+  }
+
+  public boolean isNillable() {
+    return nillable;
+  }
+
+  public boolean isDefaultedOnCreate() {
+    return defaultedOnCreate;
+  }
+
+  /** Tells whether a record cannot be created without a value for the field. */
+  public boolean isRequiredOnCreate() {
+    return !nillable && !defaultedOnCreate && createable;
+  }
+
+  public boolean isExternalId() {
+    return externalId;
+  }
+
+  public boolean isIdLookup() {
+    return idLookup;
+  }
+
+  public boolean isRestrictedPicklist() {
+    return restrictedPicklist;
+  }
+
+  public List<String> getPicklistValues() {
+    return picklistValues != null ? picklistValues : Collections.emptyList();
+  }
+
+  public List<String> getReferenceTo() {
+    return referenceTo != null ? referenceTo : Collections.emptyList();
+  }
+
+  public boolean isTextual() {
+    switch (type) {
+      case "string":
+      case "textarea":
+      case "picklist":
+      case "multipicklist":
+      case "combobox":
+      case "email":
+      case "phone":
+      case "url":
+      case "encryptedstring":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public boolean isNumeric() {
+    switch (type) {
+      case "int":
+      case "double":
+      case "currency":
+      case "percent":
+      case "long":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  public boolean isTemporal() {
+    return "date".equals(type) || "datetime".equals(type) || "time".equals(type);
+  }
+}
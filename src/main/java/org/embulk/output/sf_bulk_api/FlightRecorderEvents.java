@@ -0,0 +1,69 @@
+package org.embulk.output.sf_bulk_api;
+
+/**
+ * JDK Flight Recorder events of the plugin. Each begin method returns a span whose end method
+ * commits the event. When the JVM has no JFR (Java 8 before 8u262) or the event is not enabled in
+ * the running recording, a shared no-op span is returned, so instrumented code pays for one
+ * boolean check.
+ *
+ * <p>The classes referring to jdk.jfr are only loaded once JFR is known to be present.
+ */
+public final class FlightRecorderEvents {
+  static final ActionSpan NO_ACTION = (action, rows, failures) -> {};
+  static final ResolveSpan NO_RESOLVE = (object, keys, queries, queryMorePages, unresolved) -> {};
+  static final ErrorWriteSpan NO_ERROR_WRITE = bytes -> {};
+  static final ConcatenateSpan NO_CONCATENATE = (outputFile, files, lines) -> {};
+
+  private static final boolean AVAILABLE = detect();
+
+  private FlightRecorderEvents() {}
+
+  public interface ActionSpan {
+    void end(String action, long rows, long failures);
+  }
+
+  public interface ResolveSpan {
+    void end(String object, long keys, long queries, long queryMorePages, long unresolved);
+  }
+
+  public interface ErrorWriteSpan {
+    void end(long bytes);
+  }
+
+  public interface ConcatenateSpan {
+    void end(String outputFile, long files, long lines);
+  }
+
+  public static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  /** Spans a create/update/upsert/delete of ForceClient. */
+  public static ActionSpan beginAction() {
+    return AVAILABLE ? JfrEvents.beginAction() : NO_ACTION;
+  }
+
+  /** Spans the resolution of update_key or delete_key values to record Ids. */
+  public static ResolveSpan beginResolve() {
+    return AVAILABLE ? JfrEvents.beginResolve() : NO_RESOLVE;
+  }
+
+  /** Spans the write of one line of the error output. */
+  public static ErrorWriteSpan beginErrorWrite() {
+    return AVAILABLE ? JfrEvents.beginErrorWrite() : NO_ERROR_WRITE;
+  }
+
+  /** Spans the concatenation of per-task files into one file. */
+  public static ConcatenateSpan beginConcatenate() {
+    return AVAILABLE ? JfrEvents.beginConcatenate() : NO_CONCATENATE;
+  }
+
+  private static boolean detect() {
+    try {
+      return JfrEvents.isAvailable();
+    } catch (LinkageError e) {
+      // NoClassDefFoundError for jdk.jfr on JVMs without JFR
+      return false;
+    }
+  }
+}
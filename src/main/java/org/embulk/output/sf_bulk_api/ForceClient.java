@@ -2,16 +2,25 @@ package org.embulk.output.sf_bulk_api;
 
 import com.sforce.soap.partner.Connector;
 import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.IError;
 import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.soap.partner.SaveResult;
 import com.sforce.soap.partner.UpsertResult;
+import com.sforce.soap.partner.fault.ApiFault;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import com.sforce.ws.ConnectorConfig;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,19 +33,44 @@ public class ForceClient {
   private final String deleteKey;
   private final ErrorHandler errorHandler;
   private final SfIdResolver sfIdResolver;
-  private final Map<AuthMethod, ConnectorConfigCreator> connectorConfigCreators = new HashMap<>();
+  // null unless resolve_associations is set
+  private final AssociationResolver associationResolver;
+  // Checks the required fields of the records upsert_by_query creates; null without preflight
+  private final RecordValidator createValidator;
+  private final TaskMetrics metrics;
+  private final BatchTrace batchTrace;
+  private final SessionRefresher sessionRefresher;
+  private final CircuitBreaker circuitBreaker;
+  private final int probeSize;
 
   public ForceClient(final PluginTask pluginTask, final ErrorHandler errorHandler)
       throws ConnectionException {
-    setConnectorConfigCreators(pluginTask);
-    ConnectorConfigCreator connectorConfigCreator =
-        connectorConfigCreators.get(pluginTask.getAuthMethod());
-    ConnectorConfig connectorConfig = connectorConfigCreator.createConnectorConfig();
-    this.partnerConnection = Connector.newConnection(connectorConfig);
+    this(pluginTask, errorHandler, new TaskMetrics());
+  }
+
+  public ForceClient(
+      final PluginTask pluginTask, final ErrorHandler errorHandler, final TaskMetrics metrics)
+      throws ConnectionException {
+    this(pluginTask, errorHandler, metrics, BatchTrace.none());
+  }
+
+  public ForceClient(
+      final PluginTask pluginTask,
+      final ErrorHandler errorHandler,
+      final TaskMetrics metrics,
+      final BatchTrace batchTrace)
+      throws ConnectionException {
+    this.partnerConnection = newConnection(pluginTask);
     this.actionType = ActionType.convertActionType(pluginTask.getActionType());
     this.upsertKey = pluginTask.getUpsertKey();
     this.deleteKey = pluginTask.getDeleteKey();
     this.errorHandler = errorHandler;
+    this.metrics = metrics;
+    this.batchTrace = batchTrace;
+    this.sessionRefresher = SessionRefresher.of(this.partnerConnection, pluginTask, metrics);
+    this.circuitBreaker =
+        CircuitBreaker.of(pluginTask, this.partnerConnection.getConfig().getServiceEndpoint());
+    this.probeSize = pluginTask.getCircuitBreakerProbeSize();
 
     if (this.actionType == ActionType.UPDATE && pluginTask.getUpdateKey().isPresent()) {
       this.sfIdResolver =
@@ -45,7 +79,21 @@ public class ForceClient {
               pluginTask.getObject(),
               pluginTask.getUpdateKey().get(),
               "update_key",
-              errorHandler);
+              errorHandler,
+              metrics,
+              sessionRefresher,
+              batchTrace);
+    } else if (this.actionType == ActionType.UPSERT_BY_QUERY) {
+      this.sfIdResolver =
+          new SfIdResolver(
+              this.partnerConnection,
+              pluginTask.getObject(),
+              this.upsertKey,
+              "upsert_key",
+              errorHandler,
+              metrics,
+              sessionRefresher,
+              batchTrace);
     } else if (this.actionType == ActionType.DELETE && !"Id".equalsIgnoreCase(this.deleteKey)) {
       // delete_key that is not the record Id is treated as an external/business key,
       // resolved to record Ids via SOQL (same mechanism as update_key).
@@ -55,19 +103,79 @@ public class ForceClient {
               pluginTask.getObject(),
               this.deleteKey,
               "delete_key",
-              errorHandler);
+              errorHandler,
+              metrics,
+              sessionRefresher,
+              batchTrace);
     } else {
       this.sfIdResolver = null;
     }
+    if (pluginTask.getResolveAssociations() && !pluginTask.getAssociations().isEmpty()) {
+      this.associationResolver =
+          new AssociationResolver(
+              this.partnerConnection,
+              pluginTask,
+              errorHandler,
+              metrics,
+              sessionRefresher,
+              batchTrace);
+    } else {
+      this.associationResolver = null;
+    }
+    if (this.actionType == ActionType.UPSERT_BY_QUERY
+        && pluginTask.getObjectMetadata().isPresent()) {
+      final ObjectMetadata metadata = ObjectMetadata.fromJson(pluginTask.getObjectMetadata().get());
+      // A created record needs every required field, mapped or not. An association reference
+      // field may be sent as a relationship to resolve, which the validator cannot check.
+      final Set<String> referenceFields =
+          pluginTask.getAssociations().stream()
+              .map(assoc -> assoc.getReferenceField().toLowerCase(Locale.ENGLISH))
+              .collect(Collectors.toSet());
+      final List<String> fieldNames =
+          metadata.getFields().stream()
+              .map(FieldMetadata::getName)
+              .filter(name -> !referenceFields.contains(name.toLowerCase(Locale.ENGLISH)))
+              .collect(Collectors.toList());
+      this.createValidator = new RecordValidator(metadata, "insert", fieldNames, errorHandler);
+    } else {
+      this.createValidator = null;
+    }
   }
 
   public long action(final List<SObject> sObjects) throws ConnectionException {
+    if (circuitBreaker.isOpen() && sObjects.size() > probeSize) {
+      // The next call may be the probe; keeping it small loses few rows if Salesforce is still
+      // unavailable. A fault of the probe means nothing was written and fails the whole batch.
+      final long failures = action(sObjects.subList(0, probeSize));
+      final List<SObject> rest = sObjects.subList(probeSize, sObjects.size());
+      try {
+        return failures + action(rest);
+      } catch (ApiFault e) {
+        // The probe rows were written, so only the rest fails.
+        return failures + errorHandler.handleFault(rest, e);
+      }
+    }
     logger.info("sObjects size:" + sObjects.size());
+    final FlightRecorderEvents.ActionSpan span = FlightRecorderEvents.beginAction();
+    // Every row counts as failed if the call throws.
+    long failures = sObjects.size();
+    try {
+      failures =
+          associationResolver != null ? dispatchResolved(sObjects) : dispatch(sObjects);
+      return failures;
+    } finally {
+      span.end(actionType.name().toLowerCase(Locale.ROOT), sObjects.size(), failures);
+    }
+  }
+
+  private long dispatch(final List<SObject> sObjects) throws ConnectionException {
     switch (this.actionType) {
       case INSERT:
         return insert(sObjects);
       case UPSERT:
         return upsert(this.upsertKey, sObjects);
+      case UPSERT_BY_QUERY:
+        return upsertByQuery(sObjects);
       case UPDATE:
         if (sfIdResolver != null) {
           return updateWithExternalKey(sObjects);
@@ -83,8 +191,20 @@ public class ForceClient {
     }
   }
 
+  // Rows whose association keys cannot be resolved are failed without being sent.
+  private long dispatchResolved(final List<SObject> sObjects) throws ConnectionException {
+    final SfIdResolver.ResolveResult resolveResult =
+        circuitBreaker.call(() -> associationResolver.resolve(sObjects), metrics);
+    long failures = resolveResult.getUnresolvedCount();
+    if (!resolveResult.getResolvedRecords().isEmpty()) {
+      failures += dispatch(resolveResult.getResolvedRecords());
+    }
+    return failures;
+  }
+
   private long updateWithExternalKey(final List<SObject> sObjects) throws ConnectionException {
-    SfIdResolver.ResolveResult resolveResult = sfIdResolver.resolve(sObjects);
+    SfIdResolver.ResolveResult resolveResult =
+        circuitBreaker.call(() -> sfIdResolver.resolve(sObjects), metrics);
     long failures = resolveResult.getUnresolvedCount();
     if (!resolveResult.getResolvedRecords().isEmpty()) {
       failures += update(resolveResult.getResolvedRecords());
@@ -92,30 +212,206 @@ public class ForceClient {
     return failures;
   }
 
-  private void setConnectorConfigCreators(PluginTask pluginTask) {
+  // Records whose key matches a record are updated; the others are inserted, in a separate call.
+  // A fault of one call fails only the records of that call, so the other call still counts.
+  private long upsertByQuery(final List<SObject> sObjects) throws ConnectionException {
+    final SfIdResolver.ResolveResult resolveResult =
+        circuitBreaker.call(() -> sfIdResolver.resolveAllowingUnmatched(sObjects), metrics);
+    long failures = resolveResult.getUnresolvedCount();
+    final List<SObject> matched = resolveResult.getResolvedRecords();
+    if (!matched.isEmpty()) {
+      try {
+        failures += update(matched);
+      } catch (ApiFault e) {
+        failures += errorHandler.handleFault(matched, e);
+      }
+    }
+    final List<SObject> unmatched = resolveResult.getUnmatchedRecords();
+    final List<SObject> creatable =
+        createValidator != null ? createValidator.filterForCreate(unmatched) : unmatched;
+    failures += unmatched.size() - creatable.size();
+    if (!creatable.isEmpty()) {
+      try {
+        failures += insert(creatable);
+      } catch (ApiFault e) {
+        failures += errorHandler.handleFault(creatable, e);
+      }
+    }
+    return failures;
+  }
+
+  /** Logs in (for user_password) and returns a new connection for the configured credentials. */
+  public static PartnerConnection newConnection(final PluginTask pluginTask)
+      throws ConnectionException {
+    ConnectorConfig connectorConfig = connectorConfigCreator(pluginTask).createConnectorConfig();
+    PartnerConnection connection = Connector.newConnection(connectorConfig);
+    setCallHeaders(connection, pluginTask);
+    return connection;
+  }
+
+  /** Tells whether an action_type writes with upsert, matching records by upsert_key. */
+  public static boolean isUpsert(final String actionType) {
+    return ActionType.convertActionType(actionType) == ActionType.UPSERT;
+  }
+
+  /** Tells whether an action_type matches records by upsert_key. */
+  public static boolean usesUpsertKey(final String actionType) {
+    return isUpsert(actionType) || "upsert_by_query".equals(actionType);
+  }
+
+  /** Tells whether an action_type writes with create. */
+  public static boolean isInsert(final String actionType) {
+    return ActionType.convertActionType(actionType) == ActionType.INSERT;
+  }
+
+  static ConnectorConfigCreator connectorConfigCreator(final PluginTask pluginTask) {
+    final Map<AuthMethod, ConnectorConfigCreator> connectorConfigCreators = new HashMap<>();
     connectorConfigCreators.put(AuthMethod.oauth, new OauthConnectorConfigCreator(pluginTask));
+    connectorConfigCreators.put(
+        AuthMethod.oauth_jwt, new OauthFlowConnectorConfigCreator(pluginTask));
+    connectorConfigCreators.put(
+        AuthMethod.oauth_refresh_token, new OauthFlowConnectorConfigCreator(pluginTask));
     connectorConfigCreators.put(
         AuthMethod.user_password, new UserPasswordConnectorConfigCreator(pluginTask));
+    return connectorConfigCreators.get(pluginTask.getAuthMethod());
+  }
+
+  // Headers are only sent when they differ from the API default, so a default configuration
+  // produces the same requests as before. The MRU lists are not updated by API calls unless
+  // MruHeader asks for it.
+  private static void setCallHeaders(
+      final PartnerConnection connection, final PluginTask pluginTask) {
+    if (pluginTask.getUpdateMru()) {
+      connection.setMruHeader(true);
+    }
+    if (pluginTask.getAllOrNone()) {
+      connection.setAllOrNoneHeader(true);
+    }
+    if (pluginTask.getAllowFieldTruncation()) {
+      connection.setAllowFieldTruncationHeader(true);
+    }
+    if (pluginTask.getDuplicateRuleAllowSave().isPresent()) {
+      connection.setDuplicateRuleHeader(
+          pluginTask.getDuplicateRuleAllowSave().get(),
+          false,
+          pluginTask.getDuplicateRuleRunAsCurrentUser());
+    }
+    if (pluginTask.getAssignmentRuleId().isPresent() || pluginTask.getUseDefaultAssignmentRule()) {
+      connection.setAssignmentRuleHeader(
+          pluginTask.getAssignmentRuleId().orElse(null), pluginTask.getUseDefaultAssignmentRule());
+    }
   }
 
   private long insert(final List<SObject> sObjects) throws ConnectionException {
+    final SObject[] array = sObjects.toArray(new SObject[sObjects.size()]);
     final SaveResult[] saveResultArray =
-        partnerConnection.create(sObjects.toArray(new SObject[sObjects.size()]));
+        timed(
+            "create",
+            array.length,
+            PayloadSize.estimate(sObjects),
+            () -> partnerConnection.create(array),
+            results ->
+                Arrays.stream(results).filter(r -> !r.isSuccess()).map(r -> r.getErrors()));
     return errorHandler.handleErrors(sObjects, saveResultArray);
   }
 
   private long upsert(final String key, final List<SObject> sObjects) throws ConnectionException {
+    final SObject[] array = sObjects.toArray(new SObject[sObjects.size()]);
     final UpsertResult[] upsertResultArray =
-        partnerConnection.upsert(key, sObjects.toArray(new SObject[sObjects.size()]));
+        timed(
+            "upsert",
+            array.length,
+            PayloadSize.estimate(sObjects),
+            () -> partnerConnection.upsert(key, array),
+            results ->
+                Arrays.stream(results).filter(r -> !r.isSuccess()).map(r -> r.getErrors()));
     return errorHandler.handleErrors(sObjects, upsertResultArray);
   }
 
   private long update(final List<SObject> sObjects) throws ConnectionException {
+    final SObject[] array = sObjects.toArray(new SObject[sObjects.size()]);
     final SaveResult[] saveResultArray =
-        partnerConnection.update(sObjects.toArray(new SObject[sObjects.size()]));
+        timed(
+            "update",
+            array.length,
+            PayloadSize.estimate(sObjects),
+            () -> partnerConnection.update(array),
+            results ->
+                Arrays.stream(results).filter(r -> !r.isSuccess()).map(r -> r.getErrors()));
     return errorHandler.handleErrors(sObjects, saveResultArray);
   }
 
+  private DeleteResult[] timedDelete(final String[] ids) throws ConnectionException {
+    return timed(
+        "delete",
+        ids.length,
+        estimateBytes(ids),
+        () -> partnerConnection.delete(ids),
+        results -> Arrays.stream(results).filter(r -> !r.isSuccess()).map(r -> r.getErrors()));
+  }
+
+  /**
+   * Makes a DML call and records it in the metrics and the batch trace. The time spent waiting for
+   * the circuit breaker is traced as queue wait, not as network time.
+   */
+  private <T> T timed(
+      final String action,
+      final int rows,
+      final long bytes,
+      final ApiCall<T> call,
+      final Function<T, Stream<IError[]>> failedErrors)
+      throws ConnectionException {
+    final long start = System.nanoTime();
+    final long[] sent = {start};
+    T result = null;
+    Exception error = null;
+    try {
+      result =
+          circuitBreaker.call(
+              () -> {
+                sent[0] = System.nanoTime();
+                return sessionRefresher.call(call);
+              },
+              metrics);
+      return result;
+    } catch (ConnectionException | RuntimeException e) {
+      error = e;
+      throw e;
+    } finally {
+      final long end = System.nanoTime();
+      metrics.recordDmlCall(action, end - sent[0], bytes);
+      if (batchTrace.isEnabled()) {
+        final Map<String, Long> errorCodes = new TreeMap<>();
+        final long failed;
+        if (result != null) {
+          final List<IError[]> failures = failedErrors.apply(result).collect(Collectors.toList());
+          failed = failures.size();
+          for (IError[] errors : failures) {
+            for (IError e : errors != null ? errors : new IError[0]) {
+              errorCodes.merge(String.valueOf(e.getStatusCode()), 1L, Long::sum);
+            }
+          }
+        } else {
+          failed = rows;
+          errorCodes.put(errorCode(error), (long) rows);
+        }
+        batchTrace.record(action, rows, bytes, sent[0] - start, end - sent[0], failed, errorCodes);
+      }
+    }
+  }
+
+  static String errorCode(final Exception e) {
+    if (e instanceof ApiFault && ((ApiFault) e).getExceptionCode() != null) {
+      return ((ApiFault) e).getExceptionCode().toString();
+    }
+    return e == null ? "UNKNOWN" : e.getClass().getSimpleName();
+  }
+
+  private static long estimateBytes(final String[] ids) {
+    // <ids>...</ids> around each 18-character Id
+    return ids.length * 30L;
+  }
+
   private long delete(final List<SObject> sObjects) throws ConnectionException {
     // Extract the Salesforce record Id from the delete_key column of each record.
     // Records whose Id is null/empty are counted as failures here (mirroring SfIdResolver)
@@ -138,36 +434,47 @@ public class ForceClient {
     if (ids.isEmpty()) {
       return failures;
     }
-    final DeleteResult[] deleteResultArray =
-        partnerConnection.delete(ids.toArray(new String[ids.size()]));
+    final String[] idArray = ids.toArray(new String[ids.size()]);
+    final DeleteResult[] deleteResultArray = timedDelete(idArray);
     return failures + errorHandler.handleErrors(targets, deleteResultArray);
   }
 
   private long deleteWithExternalKey(final List<SObject> sObjects) throws ConnectionException {
     // Resolve the external/business key to record Ids via SOQL, then delete by Id.
-    final SfIdResolver.ResolveResult resolveResult = sfIdResolver.resolve(sObjects);
+    final SfIdResolver.ResolveResult resolveResult =
+        circuitBreaker.call(() -> sfIdResolver.resolve(sObjects), metrics);
     long failures = resolveResult.getUnresolvedCount();
     final List<SObject> resolved = resolveResult.getResolvedRecords();
     if (!resolved.isEmpty()) {
       final String[] ids = resolved.stream().map(SObject::getId).toArray(String[]::new);
-      final DeleteResult[] deleteResultArray = partnerConnection.delete(ids);
+      final DeleteResult[] deleteResultArray = timedDelete(ids);
       failures += errorHandler.handleErrors(resolved, deleteResultArray);
     }
     return failures;
   }
 
+  /** Creates a ForceClient, which logs in. */
+  public interface Factory {
+    ForceClient create() throws ConnectionException;
+  }
+
   private enum ActionType {
     INSERT,
     UPSERT,
+    UPSERT_BY_QUERY,
     UPDATE,
     DELETE;
 
     public static ActionType convertActionType(final String key) {
       switch (key) {
         case "insert":
+        case "replace":
           return INSERT;
         case "upsert":
+        case "sync":
           return UPSERT;
+        case "upsert_by_query":
+          return UPSERT_BY_QUERY;
         case "update":
           return UPDATE;
         case "delete":
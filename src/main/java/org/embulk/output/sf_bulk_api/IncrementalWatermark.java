@@ -0,0 +1,176 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Optional;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+/**
+ * Tracks the largest incremental_column value Salesforce acknowledged, so that the next run can
+ * skip the rows at or below it. Values are compared according to the column type: long and double
+ * numerically, timestamp chronologically and string lexicographically. The watermark is carried
+ * between runs as a string in incremental_last_value. It never reaches the value of a row that
+ * failed or was not sent, so that the next run sends that row again.
+ */
+public class IncrementalWatermark {
+  private final Column column;
+  private final String type;
+  // null on the first run
+  private final Comparable<Object> last;
+  // null until a row has been acknowledged
+  private Comparable<Object> max;
+  // The lowest value of a row that failed or was not sent; null while there is none
+  private Comparable<Object> minFailed;
+
+  private IncrementalWatermark(final Column column, final Optional<String> lastValue) {
+    this.column = column;
+    this.type = column.getType().getName();
+    this.last = lastValue.map(value -> parse(type, value)).orElse(null);
+  }
+
+  public static IncrementalWatermark of(final PluginTask task, final Schema schema) {
+    return new IncrementalWatermark(
+        findColumn(schema, task.getIncrementalColumn().get()), task.getIncrementalLastValue());
+  }
+
+  /** Checks incremental_column and incremental_last_value against the input schema. */
+  public static void validate(final PluginTask task, final Schema schema) {
+    of(task, schema);
+  }
+
+  /** Returns the value of the current row, or null when it is null. */
+  @SuppressWarnings({"deprecation", "unchecked"}) // For the use of org.embulk.spi.time.Timestamp.
+  public Comparable<Object> read(final PageReader reader) {
+    if (reader.isNull(column)) {
+      return null;
+    }
+    final Comparable<?> value;
+    switch (type) {
+      case "long":
+        value = reader.getLong(column);
+        break;
+      case "double":
+        value = reader.getDouble(column);
+        break;
+      case "timestamp":
+        value = reader.getTimestamp(column).getInstant();
+        break;
+      default:
+        value = reader.getString(column);
+        break;
+    }
+    return (Comparable<Object>) value;
+  }
+
+  /** Tells whether a row was already sent by a previous run. */
+  public boolean isAtOrBelowLast(final Comparable<Object> value) {
+    return value != null && last != null && value.compareTo(last) <= 0;
+  }
+
+  /** Records the value of a row Salesforce acknowledged. */
+  public void acknowledge(final Comparable<Object> value) {
+    if (value != null
+        && (minFailed == null || value.compareTo(minFailed) < 0)
+        && (max == null || value.compareTo(max) > 0)) {
+      max = value;
+    }
+  }
+
+  /** Records the value of a row that failed or was not sent. */
+  public void reject(final Comparable<Object> value) {
+    if (value != null && (minFailed == null || value.compareTo(minFailed) < 0)) {
+      minFailed = value;
+      if (max != null && max.compareTo(value) >= 0) {
+        // The acknowledged values below the failed one are not kept, so the watermark falls back
+        // to the previous run's. The rows between are sent again, which is safe.
+        max = null;
+      }
+    }
+  }
+
+  /** Returns the largest acknowledged value, as it is written to the TaskReport. */
+  public Optional<String> getMax() {
+    return Optional.ofNullable(max).map(Object::toString);
+  }
+
+  /** Returns the lowest value of a row that failed or was not sent, for the TaskReport. */
+  public Optional<String> getMinFailed() {
+    return Optional.ofNullable(minFailed).map(Object::toString);
+  }
+
+  /**
+   * Returns the watermark for the next run: the largest of the previous one and the values the
+   * tasks reported that are below the lowest value any task failed to send.
+   */
+  public static Optional<String> merge(
+      final PluginTask task,
+      final Schema schema,
+      final Collection<String> taskMaxValues,
+      final Collection<String> taskMinFailedValues) {
+    final IncrementalWatermark merged = of(task, schema);
+    taskMinFailedValues.stream()
+        .filter(value -> !value.isEmpty())
+        .forEach(value -> merged.reject(parse(merged.type, value)));
+    if (merged.last != null) {
+      merged.acknowledge(merged.last);
+    }
+    taskMaxValues.stream()
+        .filter(value -> !value.isEmpty())
+        .forEach(value -> merged.acknowledge(parse(merged.type, value)));
+    return merged.getMax();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Comparable<Object> parse(final String type, final String value) {
+    final Comparable<?> parsed;
+    try {
+      switch (type) {
+        case "long":
+          parsed = Long.valueOf(value);
+          break;
+        case "double":
+          parsed = Double.valueOf(value);
+          break;
+        case "timestamp":
+          parsed = Instant.parse(value);
+          break;
+        default:
+          parsed = value;
+          break;
+      }
+    } catch (NumberFormatException | DateTimeParseException e) {
+      throw new ConfigException(
+          String.format("incremental_last_value '%s' is not a valid %s", value, type), e);
+    }
+    return (Comparable<Object>) parsed;
+  }
+
+  private static Column findColumn(final Schema schema, final String columnName) {
+    final Column column =
+        schema.getColumns().stream()
+            .filter(col -> col.getName().equals(columnName))
+            .findFirst()
+            .orElseThrow(
+                () ->
+                    new ConfigException(
+                        String.format(
+                            "incremental_column '%s' does not exist in input schema",
+                            columnName)));
+    switch (column.getType().getName()) {
+      case "long":
+      case "double":
+      case "timestamp":
+      case "string":
+        return column;
+      default:
+        throw new ConfigException(
+            String.format(
+                "incremental_column '%s' must be a long, double, timestamp or string column",
+                columnName));
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.embulk.output.sf_bulk_api;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** The JFR-backed spans of {@link FlightRecorderEvents}. Only loaded on JVMs that have JFR. */
+final class JfrEvents {
+  private static final String PREFIX = "org.embulk.output.sf_bulk_api.";
+
+  private JfrEvents() {}
+
+  static boolean isAvailable() {
+    return FlightRecorder.isAvailable();
+  }
+
+  @Name(PREFIX + "Action")
+  @Label("Salesforce Action")
+  @Category({"Embulk", "sf_bulk_api"})
+  static class ActionEvent extends Event {
+    @Label("Action")
+    String action;
+
+    @Label("Rows")
+    long rows;
+
+    @Label("Failures")
+    long failures;
+  }
+
+  @Name(PREFIX + "Resolve")
+  @Label("Salesforce Id Resolution")
+  @Category({"Embulk", "sf_bulk_api"})
+  static class ResolveEvent extends Event {
+    @Label("Object")
+    String object;
+
+    @Label("Keys")
+    long keys;
+
+    @Label("Queries")
+    long queries;
+
+    @Label("QueryMore Pages")
+    long queryMorePages;
+
+    @Label("Unresolved")
+    long unresolved;
+  }
+
+  @Name(PREFIX + "ErrorWrite")
+  @Label("Error Output Write")
+  @Category({"Embulk", "sf_bulk_api"})
+  static class ErrorWriteEvent extends Event {
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name(PREFIX + "Concatenate")
+  @Label("Task File Concatenation")
+  @Category({"Embulk", "sf_bulk_api"})
+  static class ConcatenateEvent extends Event {
+    @Label("Output File")
+    String outputFile;
+
+    @Label("Files")
+    long files;
+
+    @Label("Lines")
+    long lines;
+  }
+
+  static FlightRecorderEvents.ActionSpan beginAction() {
+    final ActionEvent event = new ActionEvent();
+    if (!event.isEnabled()) {
+      return FlightRecorderEvents.NO_ACTION;
+    }
+    event.begin();
+    return (action, rows, failures) -> {
+      event.end();
+      if (event.shouldCommit()) {
+        event.action = action;
+        event.rows = rows;
+        event.failures = failures;
+        event.commit();
+      }
+    };
+  }
+
+  static FlightRecorderEvents.ResolveSpan beginResolve() {
+    final ResolveEvent event = new ResolveEvent();
+    if (!event.isEnabled()) {
+      return FlightRecorderEvents.NO_RESOLVE;
+    }
+    event.begin();
+    return (object, keys, queries, queryMorePages, unresolved) -> {
+      event.end();
+      if (event.shouldCommit()) {
+        event.object = object;
+        event.keys = keys;
+        event.queries = queries;
+        event.queryMorePages = queryMorePages;
+        event.unresolved = unresolved;
+        event.commit();
+      }
+    };
+  }
+
+  static FlightRecorderEvents.ErrorWriteSpan beginErrorWrite() {
+    final ErrorWriteEvent event = new ErrorWriteEvent();
+    if (!event.isEnabled()) {
+      return FlightRecorderEvents.NO_ERROR_WRITE;
+    }
+    event.begin();
+    return bytes -> {
+      event.end();
+      if (event.shouldCommit()) {
+        event.bytes = bytes;
+        event.commit();
+      }
+    };
+  }
+
+  static FlightRecorderEvents.ConcatenateSpan beginConcatenate() {
+    final ConcatenateEvent event = new ConcatenateEvent();
+    if (!event.isEnabled()) {
+      return FlightRecorderEvents.NO_CONCATENATE;
+    }
+    event.begin();
+    return (outputFile, files, lines) -> {
+      event.end();
+      if (event.shouldCommit()) {
+        event.outputFile = outputFile;
+        event.files = files;
+        event.lines = lines;
+        event.commit();
+      }
+    };
+  }
+}
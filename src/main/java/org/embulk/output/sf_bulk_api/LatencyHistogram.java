@@ -0,0 +1,102 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.embulk.output.sf_bulk_api.SfBulkApiOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+import java.util.concurrent.TimeUnit;
+import org.embulk.config.DataSource;
+import org.embulk.config.TaskReport;
+
+/**
+ * Fixed-bucket latency histogram. The buckets are shared by every task, so histograms from
+ * different tasks can be merged exactly and percentiles derived from the merged counts.
+ */
+public class LatencyHistogram {
+  static final long[] BUCKET_BOUNDS_MILLIS = {
+    5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000
+  };
+
+  // The last slot counts samples above the largest bound.
+  private final long[] counts = new long[BUCKET_BOUNDS_MILLIS.length + 1];
+  private long count;
+  private long sumMillis;
+  private long maxMillis;
+
+  public void record(final long nanos) {
+    final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    counts[bucket]++;
+    count++;
+    sumMillis += millis;
+    maxMillis = Math.max(maxMillis, millis);
+  }
+
+  public void merge(final LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    sumMillis += other.sumMillis;
+    maxMillis = Math.max(maxMillis, other.maxMillis);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getSumMillis() {
+    return sumMillis;
+  }
+
+  long[] getBucketCounts() {
+    return counts.clone();
+  }
+
+  /** Returns the upper bound of the bucket containing the given percentile, in milliseconds. */
+  public long percentile(final double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(count * percentile / 100.0);
+    long cumulative = 0;
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      cumulative += counts[i];
+      if (cumulative >= rank) {
+        return Math.min(BUCKET_BOUNDS_MILLIS[i], maxMillis);
+      }
+    }
+    return maxMillis;
+  }
+
+  public String summary() {
+    return String.format(
+        "p50=%dms p95=%dms p99=%dms max=%dms (n=%d)",
+        percentile(50), percentile(95), percentile(99), maxMillis, count);
+  }
+
+  public TaskReport toTaskReport() {
+    final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      report.set("le_" + BUCKET_BOUNDS_MILLIS[i], counts[i]);
+    }
+    report.set("le_inf", counts[BUCKET_BOUNDS_MILLIS.length]);
+    report.set("count", count);
+    report.set("sum_ms", sumMillis);
+    report.set("max_ms", maxMillis);
+    return report;
+  }
+
+  public static LatencyHistogram fromDataSource(final DataSource source) {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+      histogram.counts[i] = source.get(long.class, "le_" + BUCKET_BOUNDS_MILLIS[i], 0L);
+    }
+    histogram.counts[BUCKET_BOUNDS_MILLIS.length] = source.get(long.class, "le_inf", 0L);
+    histogram.count = source.get(long.class, "count", 0L);
+    histogram.sumMillis = source.get(long.class, "sum_ms", 0L);
+    histogram.maxMillis = source.get(long.class, "max_ms", 0L);
+    return histogram;
+  }
+}
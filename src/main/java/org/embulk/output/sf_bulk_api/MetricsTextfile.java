@@ -0,0 +1,286 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the metrics of every task of the JVM to metrics_textfile in the Prometheus text exposition
+ * format, for the textfile collector of node_exporter. The file is rewritten every
+ * metrics_textfile_interval seconds while tasks are running and once more when the last task
+ * closes. Each write goes to a temporary file that is then moved over the previous one, so the
+ * collector never reads a partial file. The counters restart when a task of another transaction
+ * opens, so the last write holds the totals of the job even when its tasks run one after another.
+ */
+public class MetricsTextfile {
+  private static final Map<String, MetricsTextfile> TEXTFILES = new ConcurrentHashMap<>();
+  private static final String PREFIX = "sf_bulk_api_";
+
+  private final Logger logger = LoggerFactory.getLogger(MetricsTextfile.class);
+  // null when metrics_textfile is not set
+  private final Path path;
+  // Latest metrics of the running tasks, keyed by their page output
+  private final Map<Object, TaskMetrics> running = new IdentityHashMap<>();
+  // Taken before this: a scheduled write still running when the last task closes must not move
+  // older totals over the final ones.
+  private final Object writeLock = new Object();
+  private TaskMetrics finished = new TaskMetrics();
+  // The transaction the counters belong to
+  private String transactionId;
+  private ScheduledExecutorService scheduler;
+
+  MetricsTextfile(final Path path) {
+    this.path = path;
+  }
+
+  public static MetricsTextfile of(final PluginTask task) {
+    if (!task.getMetricsTextfile().isPresent()) {
+      return none();
+    }
+    return TEXTFILES.computeIfAbsent(
+        task.getMetricsTextfile().get(), file -> new MetricsTextfile(Paths.get(file)));
+  }
+
+  public static MetricsTextfile none() {
+    return new MetricsTextfile(null);
+  }
+
+  public boolean isEnabled() {
+    return path != null;
+  }
+
+  /** Called when a task opens. */
+  public synchronized void taskStarted(
+      final Object task, final String transactionId, final long intervalSeconds) {
+    if (path == null) {
+      return;
+    }
+    if (!Objects.equals(this.transactionId, transactionId)) {
+      this.transactionId = transactionId;
+      finished = new TaskMetrics();
+    }
+    if (running.isEmpty()) {
+      if (intervalSeconds > 0) {
+        scheduler =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                  final Thread thread = new Thread(runnable, "sf_bulk_api-metrics-textfile");
+                  thread.setDaemon(true);
+                  return thread;
+                });
+        scheduler.scheduleAtFixedRate(
+            this::write, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+      }
+    }
+    running.put(task, new TaskMetrics());
+  }
+
+  /** Replaces the metrics of a running task with a copy of the given ones. */
+  public void publish(final Object task, final TaskMetrics metrics) {
+    if (path == null) {
+      return;
+    }
+    final TaskMetrics copy = metrics.copy();
+    synchronized (this) {
+      if (running.containsKey(task)) {
+        running.put(task, copy);
+      }
+    }
+  }
+
+  /** Called when a task closes. The file is written once more when the last task closes. */
+  public void taskFinished(final Object task, final TaskMetrics metrics) {
+    if (path == null) {
+      return;
+    }
+    synchronized (this) {
+      if (running.remove(task) == null) {
+        return;
+      }
+      finished.merge(metrics);
+      if (!running.isEmpty()) {
+        return;
+      }
+      if (scheduler != null) {
+        scheduler.shutdownNow();
+        scheduler = null;
+      }
+    }
+    write();
+  }
+
+  synchronized TaskMetrics total() {
+    final TaskMetrics total = finished.copy();
+    running.values().forEach(total::merge);
+    return total;
+  }
+
+  void write() {
+    synchronized (writeLock) {
+      final String text;
+      synchronized (this) {
+        text = render(total(), running.size());
+      }
+      writeFile(text);
+    }
+  }
+
+  private void writeFile(final String text) {
+    try {
+      final Path parent = path.toAbsolutePath().getParent();
+      if (parent != null && !Files.exists(parent)) {
+        Files.createDirectories(parent);
+      }
+      final Path temp = Files.createTempFile(parent, "." + path.getFileName(), ".tmp");
+      try {
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+          writer.write(text);
+        }
+        try {
+          Files.move(
+              temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException | RuntimeException e) {
+      // Keep the scheduler alive; the next write may succeed.
+      logger.warn("Failed to write metrics textfile: " + path, e);
+    }
+  }
+
+  static String render(final TaskMetrics metrics, final int activeTasks) {
+    final StringBuilder out = new StringBuilder();
+    header(out, "rows_total", "counter", "Rows sent to Salesforce by outcome.");
+    sample(out, "rows_total", "outcome", "succeeded", metrics.getRowsSucceeded());
+    sample(
+        out,
+        "rows_total",
+        "outcome",
+        "failed",
+        metrics.getRowsSent() - metrics.getRowsSucceeded());
+    header(out, "api_calls_total", "counter", "API calls by call.");
+    metrics
+        .getApiCalls()
+        .forEach((call, calls) -> sample(out, "api_calls_total", "call", call, calls));
+    header(out, "soql_queries_total", "counter", "SOQL query and queryMore calls.");
+    sample(out, "soql_queries_total", metrics.getSoqlQueries());
+    header(out, "request_bytes_total", "counter", "Estimated payload of the DML calls.");
+    sample(out, "request_bytes_total", metrics.getRequestBytes());
+    histogram(
+        out,
+        "dml_latency_seconds",
+        "Latency of create, upsert, update and delete calls.",
+        metrics.getDmlLatency());
+    histogram(
+        out,
+        "resolve_latency_seconds",
+        "Latency of the query calls resolving keys to record Ids.",
+        metrics.getResolveLatency());
+    header(out, "retries_total", "counter", "Calls replayed after logging in again.");
+    sample(out, "retries_total", metrics.getRetries());
+    header(
+        out,
+        "association_cache_hits_total",
+        "counter",
+        "Association keys resolved from the cache, without a query.");
+    sample(out, "association_cache_hits_total", metrics.getAssociationCacheHits());
+    header(
+        out,
+        "throttle_seconds_total",
+        "counter",
+        "Time tasks waited for the circuit breaker to let calls through.");
+    out.append(PREFIX)
+        .append("throttle_seconds_total ")
+        .append(seconds(metrics.getCircuitWaitNanos(), 9))
+        .append('\n');
+    header(out, "circuit_breaker_opened_total", "counter", "Times the circuit breaker opened.");
+    sample(out, "circuit_breaker_opened_total", metrics.getCircuitOpened());
+    header(out, "errors_total", "counter", "Failed rows by error code.");
+    metrics
+        .getErrorCodes()
+        .forEach((code, rows) -> sample(out, "errors_total", "code", code, rows));
+    header(out, "active_tasks", "gauge", "Tasks currently sending.");
+    sample(out, "active_tasks", activeTasks);
+    return out.toString();
+  }
+
+  private static void histogram(
+      final StringBuilder out,
+      final String name,
+      final String help,
+      final LatencyHistogram histogram) {
+    header(out, name, "histogram", help);
+    final long[] counts = histogram.getBucketCounts();
+    long cumulative = 0;
+    for (int i = 0; i < LatencyHistogram.BUCKET_BOUNDS_MILLIS.length; i++) {
+      cumulative += counts[i];
+      sample(
+          out,
+          name + "_bucket",
+          "le",
+          seconds(LatencyHistogram.BUCKET_BOUNDS_MILLIS[i], 3),
+          cumulative);
+    }
+    sample(out, name + "_bucket", "le", "+Inf", histogram.getCount());
+    out.append(PREFIX)
+        .append(name)
+        .append("_sum ")
+        .append(seconds(histogram.getSumMillis(), 3))
+        .append('\n');
+    sample(out, name + "_count", histogram.getCount());
+  }
+
+  private static void header(
+      final StringBuilder out, final String name, final String type, final String help) {
+    out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void sample(final StringBuilder out, final String name, final long value) {
+    out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+  }
+
+  private static void sample(
+      final StringBuilder out,
+      final String name,
+      final String label,
+      final String labelValue,
+      final long value) {
+    out.append(PREFIX)
+        .append(name)
+        .append('{')
+        .append(label)
+        .append("=\"")
+        .append(escape(labelValue))
+        .append("\"} ")
+        .append(value)
+        .append('\n');
+  }
+
+  /** Formats a value given in units of 10^-scale seconds. */
+  private static String seconds(final long value, final int scale) {
+    return BigDecimal.valueOf(value, scale).stripTrailingZeros().toPlainString();
+  }
+
+  private static String escape(final String labelValue) {
+    return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,26 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+public class OauthFlowConnectorConfigCreator implements ConnectorConfigCreator {
+  final PluginTask pluginTask;
+
+  OauthFlowConnectorConfigCreator(final PluginTask pluginTask) {
+    this.pluginTask = pluginTask;
+  }
+
+  public ConnectorConfig createConnectorConfig() throws ConnectionException {
+    OauthTokenProvider.Token token = OauthTokenProvider.of(pluginTask).getToken();
+    ConnectorConfig config = new ConnectorConfig();
+    config.setSessionId(token.getAccessToken());
+    config.setServiceEndpoint(
+        token.getInstanceUrl() + "/services/Soap/u/" + pluginTask.getApiVersion());
+    return config;
+  }
+
+  @Override
+  public void invalidateSession(final String sessionId) {
+    OauthTokenProvider.of(pluginTask).invalidate(sessionId);
+  }
+}
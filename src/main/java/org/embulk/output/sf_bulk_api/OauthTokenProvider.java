@@ -0,0 +1,275 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.sforce.ws.ConnectionException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Obtains access tokens with the OAuth 2.0 JWT bearer or refresh token flow. Providers are shared
+ * per process and credentials, and a token is reused by every task until it is about to expire.
+ */
+public class OauthTokenProvider {
+  static final String JWT_BEARER_GRANT_TYPE = "urn:ietf:params:oauth:grant-type:jwt-bearer";
+  // Salesforce rejects assertions that expire more than 3 minutes in the future.
+  private static final long JWT_LIFETIME_SECONDS = 180;
+  private static final Gson GSON = new Gson();
+  private static final Map<String, OauthTokenProvider> PROVIDERS = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger(OauthTokenProvider.class);
+  private final PluginTask task;
+  private final LongSupplier clock;
+  private Token token;
+  // The refresh token flow may hand out a new refresh token with each access token.
+  private String refreshToken;
+
+  OauthTokenProvider(final PluginTask task, final LongSupplier clock) {
+    this.task = task;
+    this.clock = clock;
+    this.refreshToken = task.getRefreshToken().orElse(null);
+  }
+
+  public static OauthTokenProvider of(final PluginTask task) {
+    return PROVIDERS.computeIfAbsent(
+        cacheKey(task), key -> new OauthTokenProvider(task, System::currentTimeMillis));
+  }
+
+  static String cacheKey(final PluginTask task) {
+    return String.join(
+        "/",
+        task.getAuthMethod().name(),
+        task.getTokenEndpoint(),
+        task.getClientId().orElse(""),
+        task.getUsername().orElse(""),
+        Integer.toHexString(task.getRefreshToken().orElse("").hashCode()));
+  }
+
+  /** Returns a token that stays valid for at least token_refresh_margin seconds. */
+  public synchronized Token getToken() throws ConnectionException {
+    final long margin = TimeUnit.SECONDS.toMillis(task.getTokenRefreshMargin());
+    if (token == null || clock.getAsLong() >= token.expiresAt - margin) {
+      token = requestToken();
+    }
+    return token;
+  }
+
+  /**
+   * Tells whether a connection using the given access token should move to a new one before its
+   * next call: the token is within token_refresh_margin seconds of expiring, or it was replaced.
+   */
+  public synchronized boolean needsRenewal(final String accessToken) {
+    final long margin = TimeUnit.SECONDS.toMillis(task.getTokenRefreshMargin());
+    return token == null
+        || !token.accessToken.equals(accessToken)
+        || clock.getAsLong() >= token.expiresAt - margin;
+  }
+
+  /** Forgets the access token once Salesforce has rejected it, unless it was already replaced. */
+  public synchronized void invalidate(final String accessToken) {
+    if (token != null && token.accessToken.equals(accessToken)) {
+      token = null;
+    }
+  }
+
+  private Token requestToken() throws ConnectionException {
+    final Map<String, String> form = new LinkedHashMap<>();
+    if (task.getAuthMethod() == AuthMethod.oauth_jwt) {
+      form.put("grant_type", JWT_BEARER_GRANT_TYPE);
+      form.put("assertion", createAssertion());
+    } else {
+      form.put("grant_type", "refresh_token");
+      form.put("refresh_token", refreshToken);
+      form.put("client_id", task.getClientId().get());
+      task.getClientSecret().ifPresent(secret -> form.put("client_secret", secret));
+    }
+    final long requestedAt = clock.getAsLong();
+    final TokenResponse response = post(form);
+    if (response.refreshToken != null) {
+      refreshToken = response.refreshToken;
+    }
+    final long lifetime =
+        response.expiresIn != null ? response.expiresIn : task.getTokenLifetime();
+    logger.info(
+        "Obtained an access token from {} for {}", task.getTokenEndpoint(), response.instanceUrl);
+    return new Token(
+        response.accessToken,
+        response.instanceUrl,
+        requestedAt + TimeUnit.SECONDS.toMillis(lifetime));
+  }
+
+  private TokenResponse post(final Map<String, String> form) throws ConnectionException {
+    try {
+      final HttpURLConnection connection =
+          (HttpURLConnection) new URL(task.getTokenEndpoint()).openConnection();
+      final int timeout = (int) TimeUnit.SECONDS.toMillis(task.getTokenRequestTimeout());
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      connection.setRequestProperty("Accept", "application/json");
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(encodeForm(form).getBytes(StandardCharsets.UTF_8));
+      }
+      final int status = connection.getResponseCode();
+      final InputStream in =
+          status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      final String body = in != null ? read(in) : "";
+      final TokenResponse response = parse(body);
+      if (status >= 400 || response == null || response.accessToken == null) {
+        throw new ConnectionException(
+            String.format(
+                "Token request to %s failed with HTTP %d: %s",
+                task.getTokenEndpoint(),
+                status,
+                response != null && response.error != null
+                    ? response.error + " " + response.errorDescription
+                    : body));
+      }
+      return response;
+    } catch (IOException e) {
+      throw new ConnectionException("Token request to " + task.getTokenEndpoint() + " failed", e);
+    }
+  }
+
+  private static TokenResponse parse(final String body) {
+    try {
+      return GSON.fromJson(body, TokenResponse.class);
+    } catch (JsonParseException e) {
+      // Not JSON, such as an HTML error page; the body is reported as it is.
+      return null;
+    }
+  }
+
+  String createAssertion() throws ConnectionException {
+    final long now = TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong());
+    final Map<String, Object> claims = new LinkedHashMap<>();
+    claims.put("iss", task.getClientId().get());
+    claims.put("sub", task.getUsername().get());
+    claims.put("aud", task.getJwtAudience());
+    claims.put("exp", now + JWT_LIFETIME_SECONDS);
+    final String signingInput =
+        base64Url("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8))
+            + "."
+            + base64Url(GSON.toJson(claims).getBytes(StandardCharsets.UTF_8));
+    try {
+      final Signature signature = Signature.getInstance("SHA256withRSA");
+      signature.initSign(readPrivateKey());
+      signature.update(signingInput.getBytes(StandardCharsets.UTF_8));
+      return signingInput + "." + base64Url(signature.sign());
+    } catch (GeneralSecurityException | IOException e) {
+      throw new ConnectionException("Failed to sign the JWT bearer assertion", e);
+    }
+  }
+
+  private PrivateKey readPrivateKey() throws GeneralSecurityException, IOException {
+    final String pem =
+        task.getPrivateKey().isPresent()
+            ? task.getPrivateKey().get()
+            : new String(
+                Files.readAllBytes(Paths.get(task.getPrivateKeyFile().get())),
+                StandardCharsets.UTF_8);
+    final String base64 =
+        pem.replaceAll("-----(BEGIN|END) PRIVATE KEY-----", "").replaceAll("\\s", "");
+    return KeyFactory.getInstance("RSA")
+        .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(base64)));
+  }
+
+  private static String base64Url(final byte[] bytes) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  private static String encodeForm(final Map<String, String> form) {
+    return form.entrySet().stream()
+        .map(entry -> urlEncode(entry.getKey()) + "=" + urlEncode(entry.getValue()))
+        .collect(Collectors.joining("&"));
+  }
+
+  private static String urlEncode(final String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String read(final InputStream in) throws IOException {
+    try (InputStream input = in) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      for (int length; (length = input.read(buffer)) > 0; ) {
+        out.write(buffer, 0, length);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  public static class Token {
+    private final String accessToken;
+    private final String instanceUrl;
+    private final long expiresAt;
+
+    Token(final String accessToken, final String instanceUrl, final long expiresAt) {
+      this.accessToken = accessToken;
+      this.instanceUrl = instanceUrl;
+      this.expiresAt = expiresAt;
+    }
+
+    public String getAccessToken() {
+      return accessToken;
+    }
+
+    public String getInstanceUrl() {
+      return instanceUrl;
+    }
+
+    public long getExpiresAt() {
+      return expiresAt;
+    }
+  }
+
+  private static class TokenResponse {
+    @SerializedName("access_token")
+    private String accessToken;
+
+    @SerializedName("instance_url")
+    private String instanceUrl;
+
+    @SerializedName("refresh_token")
+    private String refreshToken;
+
+    @SerializedName("expires_in")
+    private Long expiresIn;
+
+    @SerializedName("error")
+    private String error;
+
+    @SerializedName("error_description")
+    private String errorDescription;
+  }
+}
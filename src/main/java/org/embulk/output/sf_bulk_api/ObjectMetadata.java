@@ -0,0 +1,68 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/** Field metadata of one sObject type, as returned by describeSObject. */
+public class ObjectMetadata {
+  private static final Gson GSON = new Gson();
+
+  @SerializedName("name")
+  private String name;
+
+  @SerializedName("fetched_at")
+  private long fetchedAt;
+
+  @SerializedName("fields")
+  private List<FieldMetadata> fields;
+
+  ObjectMetadata() {}
+
+  ObjectMetadata(final String name, final long fetchedAt, final List<FieldMetadata> fields) {
+    this.name = name;
+    this.fetchedAt = fetchedAt;
+    this.fields = fields;
+  }
+
+  public static ObjectMetadata of(final DescribeSObjectResult result, final long fetchedAt) {
+    final List<FieldMetadata> fields = new ArrayList<>();
+    for (Field field : result.getFields()) {
+      fields.add(FieldMetadata.of(field));
+    }
+    return new ObjectMetadata(result.getName(), fetchedAt, fields);
+  }
+
+  public static ObjectMetadata fromJson(final String json) {
+    return GSON.fromJson(json, ObjectMetadata.class);
+  }
+
+  public String toJson() {
+    return GSON.toJson(this);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getFetchedAt() {
+    return fetchedAt;
+  }
+
+  public List<FieldMetadata> getFields() {
+    return fields;
+  }
+
+  /** Looks a field up by API name. Salesforce field names are case-insensitive. */
+  public Optional<FieldMetadata> getField(final String fieldName) {
+    final String lower = fieldName.toLowerCase(Locale.ENGLISH);
+    return fields.stream()
+        .filter(field -> field.getName().toLowerCase(Locale.ENGLISH).equals(lower))
+        .findFirst();
+  }
+}
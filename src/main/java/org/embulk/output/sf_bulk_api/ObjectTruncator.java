@@ -0,0 +1,228 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.EmptyRecycleBinResult;
+import com.sforce.soap.partner.IError;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes every record of the target object before an action_type: replace transaction inserts
+ * the input. Ids are streamed from a SOQL query and deleted DELETE_BATCH_SIZE at a time by
+ * replace_delete_threads threads, each with its own connection, so that deleting starts with the
+ * first page of the query and memory does not grow with the object. With hard_delete, the deleted
+ * records are also removed from the recycle bin.
+ */
+public class ObjectTruncator {
+  static final int DELETE_BATCH_SIZE = 200;
+  private static final int QUERY_BATCH_SIZE = 2000;
+
+  private final Logger logger = LoggerFactory.getLogger(ObjectTruncator.class);
+  private final PluginTask task;
+  private final ConnectionFactory connectionFactory;
+  private final AtomicLong deleted = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong notPurged = new AtomicLong();
+
+  /** Creates a connection for the query and for each deleting thread. */
+  interface ConnectionFactory {
+    PartnerConnection create() throws ConnectionException;
+  }
+
+  public ObjectTruncator(final PluginTask task) {
+    this(task, () -> ForceClient.newConnection(task));
+  }
+
+  ObjectTruncator(final PluginTask task, final ConnectionFactory connectionFactory) {
+    this.task = task;
+    this.connectionFactory = connectionFactory;
+  }
+
+  /** Deletes the records and returns the counts and the time it took. */
+  public Result truncate() throws ConnectionException {
+    final long start = System.nanoTime();
+    final int threads = task.getReplaceDeleteThreads();
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              final Thread thread =
+                  new Thread(
+                      runnable,
+                      "sf_bulk_api-replace-delete-" + threadNumber.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    final ThreadLocal<PartnerConnection> connections = new ThreadLocal<>();
+    // Bounds the Ids held in memory while the threads are behind the query.
+    final Semaphore inFlight = new Semaphore(threads * 2);
+    // The first failed batch stops the query, so no more batches are deleted after it.
+    final AtomicReference<Exception> failure = new AtomicReference<>();
+    final List<Future<?>> futures = new ArrayList<>();
+    try {
+      final PartnerConnection queryConnection = connectionFactory.create();
+      queryConnection.setQueryOptions(QUERY_BATCH_SIZE);
+      final String soql = String.format("SELECT Id FROM %s", task.getObject());
+      logger.info("Deleting every record of {} before replacing them: {}", task.getObject(), soql);
+      QueryResult queryResult = queryConnection.query(soql);
+      List<String> batch = new ArrayList<>(DELETE_BATCH_SIZE);
+      while (true) {
+        for (SObject record : queryResult.getRecords()) {
+          batch.add(record.getId());
+          if (batch.size() == DELETE_BATCH_SIZE) {
+            futures.add(submit(executor, connections, inFlight, failure, batch));
+            batch = new ArrayList<>(DELETE_BATCH_SIZE);
+          }
+        }
+        if (queryResult.isDone()) {
+          break;
+        }
+        queryResult = queryConnection.queryMore(queryResult.getQueryLocator());
+      }
+      if (!batch.isEmpty()) {
+        futures.add(submit(executor, connections, inFlight, failure, batch));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectionException("Interrupted while deleting records", e);
+    } catch (ExecutionException e) {
+      throw toConnectionException(e.getCause());
+    } finally {
+      // Cancels the batches still waiting after a failure.
+      executor.shutdownNow();
+    }
+    return new Result(
+        deleted.get(),
+        failed.get(),
+        notPurged.get(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  private Future<?> submit(
+      final ExecutorService executor,
+      final ThreadLocal<PartnerConnection> connections,
+      final Semaphore inFlight,
+      final AtomicReference<Exception> failure,
+      final List<String> ids)
+      throws InterruptedException, ConnectionException {
+    inFlight.acquire();
+    if (failure.get() != null) {
+      inFlight.release();
+      throw toConnectionException(failure.get());
+    }
+    return executor.submit(
+        () -> {
+          try {
+            PartnerConnection connection = connections.get();
+            if (connection == null) {
+              connection = connectionFactory.create();
+              connections.set(connection);
+            }
+            deleteBatch(connection, ids.toArray(new String[0]));
+            return null;
+          } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            throw e;
+          } finally {
+            inFlight.release();
+          }
+        });
+  }
+
+  private void deleteBatch(final PartnerConnection connection, final String[] ids)
+      throws ConnectionException {
+    final SessionRefresher refresher = SessionRefresher.of(connection, task, new TaskMetrics());
+    final DeleteResult[] results = refresher.call(() -> connection.delete(ids));
+    final List<String> deletedIds = new ArrayList<>(ids.length);
+    for (int i = 0; i < results.length; i++) {
+      if (results[i].isSuccess()) {
+        deletedIds.add(ids[i]);
+      } else {
+        failed.incrementAndGet();
+        logger.error(
+            "[output sf_bulk_api failure] replace could not delete {}: {}",
+            ids[i],
+            describe(results[i].getErrors()));
+      }
+    }
+    deleted.addAndGet(deletedIds.size());
+    if (task.getHardDelete() && !deletedIds.isEmpty()) {
+      final String[] purgeIds = deletedIds.toArray(new String[0]);
+      final EmptyRecycleBinResult[] purged =
+          refresher.call(() -> connection.emptyRecycleBin(purgeIds));
+      for (EmptyRecycleBinResult result : purged) {
+        if (!result.isSuccess()) {
+          notPurged.incrementAndGet();
+          logger.warn(
+              "Could not remove {} from the recycle bin: {}",
+              result.getId(),
+              describe(result.getErrors()));
+        }
+      }
+    }
+  }
+
+  private static ConnectionException toConnectionException(final Throwable cause) {
+    if (cause instanceof ConnectionException) {
+      return (ConnectionException) cause;
+    }
+    return new ConnectionException("Failed to delete records", cause);
+  }
+
+  private static String describe(final IError[] errors) {
+    final List<String> messages = new ArrayList<>();
+    for (IError error : errors != null ? errors : new IError[0]) {
+      messages.add(error.getStatusCode() + " " + error.getMessage());
+    }
+    return String.join(", ", messages);
+  }
+
+  public static class Result {
+    private final long deleted;
+    private final long failed;
+    private final long notPurged;
+    private final long millis;
+
+    Result(final long deleted, final long failed, final long notPurged, final long millis) {
+      this.deleted = deleted;
+      this.failed = failed;
+      this.notPurged = notPurged;
+      this.millis = millis;
+    }
+
+    public long getDeleted() {
+      return deleted;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    public long getNotPurged() {
+      return notPurged;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Estimates the number of bytes an SObject adds to a SOAP request envelope without serializing it.
+ * The estimate covers the element tags, the xsi:type attribute and the UTF-8 encoded value.
+ */
+public final class PayloadSize {
+  // <sObjects>...</sObjects> wrapper around each record.
+  private static final int RECORD_OVERHEAD = 24;
+  // <sf:Name xsi:type="xsd:string"></sf:Name> minus the two field names.
+  private static final int FIELD_OVERHEAD = 30;
+  // ISO-8601 dateTime such as 2024-01-01T00:00:00.000Z
+  private static final int DATE_TIME_LENGTH = 24;
+
+  private PayloadSize() {}
+
+  public static long estimate(final SObject sObject) {
+    return RECORD_OVERHEAD + estimateChildren(sObject);
+  }
+
+  public static long estimate(final List<SObject> sObjects) {
+    long size = 0;
+    for (SObject sObject : sObjects) {
+      size += estimate(sObject);
+    }
+    return size;
+  }
+
+  private static long estimateChildren(final XmlObject xmlObject) {
+    long size = 0;
+    final Iterator<XmlObject> children = xmlObject.getChildren();
+    while (children.hasNext()) {
+      final XmlObject child = children.next();
+      final String name = child.getName().getLocalPart();
+      size += FIELD_OVERHEAD + 2L * name.length();
+      if (child.hasChildren()) {
+        size += estimateChildren(child);
+      } else {
+        size += valueLength(child.getValue());
+      }
+    }
+    return size;
+  }
+
+  private static long valueLength(final Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof Calendar) {
+      return DATE_TIME_LENGTH;
+    }
+    return utf8Length(value.toString());
+  }
+
+  static long utf8Length(final String value) {
+    long length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800 || Character.isSurrogate(c)) {
+        // A surrogate pair encodes to 4 bytes, 2 for each half.
+        length += 2;
+      } else {
+        length += 3;
+      }
+      if (c == '<' || c == '&') {
+        // Escaped as &lt; or &amp;
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
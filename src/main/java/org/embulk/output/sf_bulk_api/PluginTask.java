@@ -19,6 +19,46 @@ public interface PluginTask extends Task {
   @ConfigDefault("null")
   Optional<String> getAccessToken();
 
+  @Config("token_endpoint")
+  @ConfigDefault("\"https://login.salesforce.com/services/oauth2/token\"")
+  String getTokenEndpoint();
+
+  @Config("client_id")
+  @ConfigDefault("null")
+  Optional<String> getClientId();
+
+  @Config("client_secret")
+  @ConfigDefault("null")
+  Optional<String> getClientSecret();
+
+  @Config("refresh_token")
+  @ConfigDefault("null")
+  Optional<String> getRefreshToken();
+
+  @Config("private_key")
+  @ConfigDefault("null")
+  Optional<String> getPrivateKey();
+
+  @Config("private_key_file")
+  @ConfigDefault("null")
+  Optional<String> getPrivateKeyFile();
+
+  @Config("jwt_audience")
+  @ConfigDefault("\"https://login.salesforce.com\"")
+  String getJwtAudience();
+
+  @Config("token_lifetime")
+  @ConfigDefault("3600")
+  long getTokenLifetime();
+
+  @Config("token_refresh_margin")
+  @ConfigDefault("300")
+  long getTokenRefreshMargin();
+
+  @Config("token_request_timeout")
+  @ConfigDefault("30")
+  int getTokenRequestTimeout();
+
   @Config("username")
   @ConfigDefault("null")
   Optional<String> getUsername();
@@ -57,10 +97,46 @@ public interface PluginTask extends Task {
   @ConfigDefault("\"true\"")
   boolean getThrowIfFailed();
 
+  @Config("max_failures")
+  @ConfigDefault("null")
+  Optional<Long> getMaxFailures();
+
+  @Config("max_failure_ratio")
+  @ConfigDefault("null")
+  Optional<Double> getMaxFailureRatio();
+
+  @Config("failure_ratio_min_rows")
+  @ConfigDefault("1000")
+  long getFailureRatioMinRows();
+
   @Config("batch_size")
   @ConfigDefault("200")
   int getBatchSize();
 
+  @Config("batch_max_bytes")
+  @ConfigDefault("10485760")
+  long getBatchMaxBytes();
+
+  @Config("circuit_breaker_threshold")
+  @ConfigDefault("5")
+  int getCircuitBreakerThreshold();
+
+  @Config("circuit_breaker_pause")
+  @ConfigDefault("60")
+  long getCircuitBreakerPause();
+
+  @Config("circuit_breaker_probe_size")
+  @ConfigDefault("1")
+  int getCircuitBreakerProbeSize();
+
+  @Config("hard_delete")
+  @ConfigDefault("false")
+  boolean getHardDelete();
+
+  @Config("replace_delete_threads")
+  @ConfigDefault("4")
+  int getReplaceDeleteThreads();
+
   @Config("update_key")
   @ConfigDefault("null")
   Optional<String> getUpdateKey();
@@ -73,7 +149,144 @@ public interface PluginTask extends Task {
   @ConfigDefault("null")
   Optional<String> getErrorRecordsDetailOutputFile();
 
+  @Config("batch_trace_file")
+  @ConfigDefault("null")
+  Optional<String> getBatchTraceFile();
+
+  @Config("progress_log_interval")
+  @ConfigDefault("60")
+  long getProgressLogInterval();
+
+  @Config("metrics_textfile")
+  @ConfigDefault("null")
+  Optional<String> getMetricsTextfile();
+
+  @Config("metrics_textfile_interval")
+  @ConfigDefault("15")
+  long getMetricsTextfileInterval();
+
+  @Config("progress_journal_file")
+  @ConfigDefault("null")
+  Optional<String> getProgressJournalFile();
+
+  @Config("delta_store_file")
+  @ConfigDefault("null")
+  Optional<String> getDeltaStoreFile();
+
+  @Config("incremental_column")
+  @ConfigDefault("null")
+  Optional<String> getIncrementalColumn();
+
+  @Config("incremental_last_value")
+  @ConfigDefault("null")
+  Optional<String> getIncrementalLastValue();
+
+  @Config("duplicate_key_handling")
+  @ConfigDefault("\"none\"")
+  DuplicateKeyHandling getDuplicateKeyHandling();
+
+  @Config("preflight")
+  @ConfigDefault("\"none\"")
+  PreflightMode getPreflight();
+
+  @Config("describe_cache_dir")
+  @ConfigDefault("null")
+  Optional<String> getDescribeCacheDir();
+
+  @Config("describe_cache_ttl")
+  @ConfigDefault("86400")
+  long getDescribeCacheTtl();
+
+  @Config("update_mru")
+  @ConfigDefault("false")
+  boolean getUpdateMru();
+
+  @Config("all_or_none")
+  @ConfigDefault("false")
+  boolean getAllOrNone();
+
+  @Config("allow_field_truncation")
+  @ConfigDefault("false")
+  boolean getAllowFieldTruncation();
+
+  @Config("duplicate_rule_allow_save")
+  @ConfigDefault("null")
+  Optional<Boolean> getDuplicateRuleAllowSave();
+
+  @Config("duplicate_rule_run_as_current_user")
+  @ConfigDefault("false")
+  boolean getDuplicateRuleRunAsCurrentUser();
+
+  @Config("assignment_rule_id")
+  @ConfigDefault("null")
+  Optional<String> getAssignmentRuleId();
+
+  @Config("use_default_assignment_rule")
+  @ConfigDefault("false")
+  boolean getUseDefaultAssignmentRule();
+
+  @Config("truncate_text")
+  @ConfigDefault("true")
+  boolean getTruncateText();
+
+  // Columns removed by preflight: drop. Set by the transaction, not by users.
+  @Config("dropped_columns")
+  @ConfigDefault("[]")
+  List<String> getDroppedColumns();
+
+  void setDroppedColumns(List<String> droppedColumns);
+
+  // describeSObject result of the target object, as JSON. Set by preflight, not by users.
+  @Config("object_metadata")
+  @ConfigDefault("null")
+  Optional<String> getObjectMetadata();
+
+  void setObjectMetadata(Optional<String> objectMetadata);
+
+  // Identifies the transaction, so that the totals kept for the JVM restart with each one. Set by
+  // the transaction.
+  @Config("transaction_id")
+  @ConfigDefault("null")
+  Optional<String> getTransactionId();
+
+  void setTransactionId(Optional<String> transactionId);
+
+  // Identifies the FailureBudget shared by the tasks of a transaction. Set by the transaction.
+  @Config("failure_budget_id")
+  @ConfigDefault("null")
+  Optional<String> getFailureBudgetId();
+
+  void setFailureBudgetId(Optional<String> failureBudgetId);
+
+  // Identifies the SyncKeySet of an action_type: sync transaction. Set by the transaction.
+  @Config("sync_id")
+  @ConfigDefault("null")
+  Optional<String> getSyncId();
+
+  void setSyncId(Optional<String> syncId);
+
+  // Records deleted by action_type: replace and the time it took. Set by the transaction.
+  @Config("replace_deleted_records")
+  @ConfigDefault("0")
+  long getReplaceDeletedRecords();
+
+  void setReplaceDeletedRecords(long replaceDeletedRecords);
+
+  @Config("replace_delete_millis")
+  @ConfigDefault("0")
+  long getReplaceDeleteMillis();
+
+  void setReplaceDeleteMillis(long replaceDeleteMillis);
+
   @Config("associations")
   @ConfigDefault("[]")
   List<AssociationConfig> getAssociations();
+
+  @Config("resolve_associations")
+  @ConfigDefault("false")
+  boolean getResolveAssociations();
+
+  @Config("association_cache_size")
+  @ConfigDefault("100000")
+  long getAssociationCacheSize();
 }
@@ -0,0 +1,213 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+/**
+ * Checks the input schema and the association settings against describeSObject metadata before
+ * any DML runs, so that mapping mistakes are reported once instead of once per batch.
+ */
+public class Preflight {
+  private final PluginTask task;
+  private final Schema schema;
+  private final ObjectMetadata target;
+  private final Map<String, ObjectMetadata> referencedObjects;
+
+  public Preflight(
+      final PluginTask task,
+      final Schema schema,
+      final ObjectMetadata target,
+      final Map<String, ObjectMetadata> referencedObjects) {
+    this.task = task;
+    this.schema = schema;
+    this.target = target;
+    this.referencedObjects = referencedObjects;
+  }
+
+  public Result check() {
+    final Map<String, String> columnProblems = new LinkedHashMap<>();
+    final List<String> fatalProblems = new ArrayList<>();
+    final String actionType = task.getActionType();
+
+    if ("delete".equals(actionType)) {
+      if (!"Id".equalsIgnoreCase(task.getDeleteKey())
+          && !target.getField(task.getDeleteKey()).isPresent()) {
+        fatalProblems.add(unknownField(task.getDeleteKey()));
+      }
+      return new Result(columnProblems, fatalProblems);
+    }
+
+    final Set<String> associationSourceColumns =
+        task.getAssociations().stream()
+            .map(AssociationConfig::getSourceColumn)
+            .collect(Collectors.toSet());
+    for (Column column : schema.getColumns()) {
+      if (associationSourceColumns.contains(column.getName())
+          || "Id".equalsIgnoreCase(column.getName())) {
+        continue;
+      }
+      final Optional<FieldMetadata> field = target.getField(column.getName());
+      if (!field.isPresent()) {
+        columnProblems.put(column.getName(), unknownField(column.getName()));
+      } else if (!isWritable(field.get(), actionType)) {
+        columnProblems.put(
+            column.getName(),
+            String.format(
+                "%s.%s is not writable for %s", target.getName(), column.getName(), actionType));
+      } else if (!isCompatible(column, field.get())) {
+        columnProblems.put(
+            column.getName(),
+            String.format(
+                "column '%s' of type %s cannot be written to %s field %s.%s",
+                column.getName(),
+                column.getType().getName(),
+                field.get().getType(),
+                target.getName(),
+                field.get().getName()));
+      }
+    }
+
+    final Optional<String> keyField = keyField();
+    if (keyField.isPresent() && !"Id".equalsIgnoreCase(keyField.get())) {
+      final Optional<FieldMetadata> field = target.getField(keyField.get());
+      if (!field.isPresent()) {
+        fatalProblems.add(unknownField(keyField.get()));
+      } else if (ForceClient.isUpsert(actionType) && !field.get().isExternalId()) {
+        fatalProblems.add(
+            String.format(
+                "upsert_key %s.%s is not an External ID field", target.getName(), keyField.get()));
+      }
+      // The key identifies the record; dropping it would change what gets written.
+      columnProblems.remove(keyField.get());
+      if (field.isPresent() && !isWritable(field.get(), actionType)) {
+        fatalProblems.add(
+            String.format("key %s.%s is not writable", target.getName(), keyField.get()));
+      }
+    }
+
+    for (AssociationConfig assoc : task.getAssociations()) {
+      final Optional<FieldMetadata> reference = target.getField(assoc.getReferenceField());
+      if (!reference.isPresent() || !"reference".equals(reference.get().getType())) {
+        fatalProblems.add(
+            String.format(
+                "association reference_field %s.%s is not a reference field",
+                target.getName(), assoc.getReferenceField()));
+      }
+      final ObjectMetadata referenced = referencedObjects.get(assoc.getReferencedObject());
+      if (referenced == null) {
+        continue;
+      }
+      final Optional<FieldMetadata> uniqueKey = referenced.getField(assoc.getUniqueKey());
+      if (!uniqueKey.isPresent()
+          || (!uniqueKey.get().isExternalId() && !uniqueKey.get().isIdLookup())) {
+        fatalProblems.add(
+            String.format(
+                "association unique_key %s.%s is not an External ID or lookup field",
+                assoc.getReferencedObject(), assoc.getUniqueKey()));
+      }
+    }
+    if (ForceClient.isInsert(actionType)) {
+      fatalProblems.addAll(unmappedRequiredFields(associationSourceColumns, columnProblems));
+    }
+    return new Result(columnProblems, fatalProblems);
+  }
+
+  // Every record would be rejected without a value for a required field, so a required field no
+  // column or association writes to fails the run instead of every row.
+  private List<String> unmappedRequiredFields(
+      final Set<String> associationSourceColumns, final Map<String, String> columnProblems) {
+    final Set<String> written = new HashSet<>();
+    for (Column column : schema.getColumns()) {
+      if (!associationSourceColumns.contains(column.getName())
+          && !columnProblems.containsKey(column.getName())) {
+        written.add(column.getName().toLowerCase(Locale.ENGLISH));
+      }
+    }
+    for (AssociationConfig assoc : task.getAssociations()) {
+      written.add(assoc.getReferenceField().toLowerCase(Locale.ENGLISH));
+    }
+    final List<String> problems = new ArrayList<>();
+    for (FieldMetadata field : target.getFields()) {
+      if (field.isRequiredOnCreate()
+          && !written.contains(field.getName().toLowerCase(Locale.ENGLISH))) {
+        problems.add(
+            String.format(
+                "required field %s.%s has no column", target.getName(), field.getName()));
+      }
+    }
+    return problems;
+  }
+
+  private Optional<String> keyField() {
+    if (ForceClient.usesUpsertKey(task.getActionType())) {
+      return Optional.of(task.getUpsertKey());
+    }
+    if ("update".equals(task.getActionType())) {
+      return task.getUpdateKey();
+    }
+    return Optional.empty();
+  }
+
+  private String unknownField(final String fieldName) {
+    return String.format("%s has no field named '%s'", target.getName(), fieldName);
+  }
+
+  private static boolean isWritable(final FieldMetadata field, final String actionType) {
+    if (ForceClient.isInsert(actionType)) {
+      return field.isCreateable();
+    }
+    if ("update".equals(actionType)) {
+      return field.isUpdateable();
+    }
+    return field.isCreateable() || field.isUpdateable();
+  }
+
+  private static boolean isCompatible(final Column column, final FieldMetadata field) {
+    if (field.isTextual()) {
+      return true;
+    }
+    switch (column.getType().getName()) {
+      case "boolean":
+        return "boolean".equals(field.getType());
+      case "long":
+      case "double":
+        return field.isNumeric();
+      case "timestamp":
+        return field.isTemporal();
+      case "json":
+        return false;
+      default:
+        // Strings are converted by Salesforce.
+        return true;
+    }
+  }
+
+  public static class Result {
+    private final Map<String, String> columnProblems;
+    private final List<String> fatalProblems;
+
+    Result(Map<String, String> columnProblems, List<String> fatalProblems) {
+      this.columnProblems = columnProblems;
+      this.fatalProblems = fatalProblems;
+    }
+
+    /** Problems that can be avoided by not sending the column, keyed by column name. */
+    public Map<String, String> getColumnProblems() {
+      return columnProblems;
+    }
+
+    /** Problems that no column can be dropped to avoid. */
+    public List<String> getFatalProblems() {
+      return fatalProblems;
+    }
+  }
+}
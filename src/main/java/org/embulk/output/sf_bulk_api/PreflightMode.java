@@ -0,0 +1,13 @@
+package org.embulk.output.sf_bulk_api;
+
+public enum PreflightMode {
+  none("none"),
+  fail("fail"),
+  drop("drop");
+
+  private final String string;
+
+  PreflightMode(final String string) {
+    this.string = string;
+  }
+}
@@ -0,0 +1,193 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds up the batches sent by every task of the JVM. While tasks are running, it logs the totals
+ * every progress_log_interval seconds, and it is registered as the MXBean
+ * org.embulk.output.sf_bulk_api:type=Progress. The totals restart when a task of another
+ * transaction opens, so they cover the whole job even when its tasks run one after another.
+ */
+public class ProgressAggregator implements ProgressMXBean {
+  static final String OBJECT_NAME = "org.embulk.output.sf_bulk_api:type=Progress";
+  private static final int WINDOW_SECONDS = 60;
+  private static final ProgressAggregator INSTANCE =
+      new ProgressAggregator(System::currentTimeMillis);
+
+  private final Logger logger = LoggerFactory.getLogger(ProgressAggregator.class);
+  private final LongSupplier clock;
+  // Rows sent per second over the last WINDOW_SECONDS seconds, indexed by epoch second
+  private final long[] windowRows = new long[WINDOW_SECONDS];
+  private final long[] windowSeconds = new long[WINDOW_SECONDS];
+  private long rowsSent;
+  private long rowsFailed;
+  private long apiCalls;
+  private int activeTasks;
+  // The transaction the totals belong to
+  private String transactionId;
+  private long startedAt;
+  private long lastBatchAt = -1;
+  private boolean registered;
+  private ScheduledExecutorService scheduler;
+
+  ProgressAggregator(final LongSupplier clock) {
+    this.clock = clock;
+  }
+
+  public static ProgressAggregator getInstance() {
+    return INSTANCE;
+  }
+
+  /** Called when a task opens. */
+  public synchronized void taskStarted(final String transactionId, final long logIntervalSeconds) {
+    if (!Objects.equals(this.transactionId, transactionId)) {
+      this.transactionId = transactionId;
+      reset();
+    }
+    if (activeTasks++ > 0) {
+      return;
+    }
+    registerMBean();
+    if (logIntervalSeconds > 0) {
+      scheduler =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                final Thread thread = new Thread(runnable, "sf_bulk_api-progress");
+                thread.setDaemon(true);
+                return thread;
+              });
+      scheduler.scheduleAtFixedRate(
+          this::log, logIntervalSeconds, logIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /** Called when a task closes. The totals are logged once more when the last task closes. */
+  public synchronized void taskFinished() {
+    if (activeTasks == 0 || --activeTasks > 0) {
+      return;
+    }
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+      log();
+    }
+  }
+
+  public synchronized void recordBatch(final long rows, final long failures, final long calls) {
+    final long now = clock.getAsLong();
+    final long second = TimeUnit.MILLISECONDS.toSeconds(now);
+    final int slot = (int) (second % WINDOW_SECONDS);
+    if (windowSeconds[slot] != second) {
+      windowSeconds[slot] = second;
+      windowRows[slot] = 0;
+    }
+    windowRows[slot] += rows;
+    rowsSent += rows;
+    rowsFailed += failures;
+    apiCalls += calls;
+    lastBatchAt = now;
+  }
+
+  void log() {
+    logger.info(
+        "sf_bulk_api progress: {} rows sent, {} failed ({}%), {} rows/s over the last {}s,"
+            + " {} API calls, {} active tasks",
+        getRowsSent(),
+        getRowsFailed(),
+        String.format("%.2f", getFailureRate() * 100),
+        String.format("%.1f", getRowsPerSecond()),
+        WINDOW_SECONDS,
+        getApiCalls(),
+        getActiveTasks());
+  }
+
+  @Override
+  public synchronized long getRowsSent() {
+    return rowsSent;
+  }
+
+  @Override
+  public synchronized long getRowsFailed() {
+    return rowsFailed;
+  }
+
+  @Override
+  public synchronized double getFailureRate() {
+    return rowsSent == 0 ? 0 : (double) rowsFailed / rowsSent;
+  }
+
+  @Override
+  public synchronized long getApiCalls() {
+    return apiCalls;
+  }
+
+  @Override
+  public synchronized double getRowsPerSecond() {
+    final long now = clock.getAsLong();
+    final long currentSecond = TimeUnit.MILLISECONDS.toSeconds(now);
+    long rows = 0;
+    for (int i = 0; i < WINDOW_SECONDS; i++) {
+      if (currentSecond - windowSeconds[i] < WINDOW_SECONDS) {
+        rows += windowRows[i];
+      }
+    }
+    // A job younger than the window is averaged over its own duration.
+    final double seconds = Math.min(WINDOW_SECONDS, Math.max(1.0, (now - startedAt) / 1000.0));
+    return rows / seconds;
+  }
+
+  @Override
+  public synchronized int getActiveTasks() {
+    return activeTasks;
+  }
+
+  @Override
+  public synchronized long getSecondsSinceLastBatch() {
+    return lastBatchAt < 0 ? -1 : TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong() - lastBatchAt);
+  }
+
+  @Override
+  public synchronized long getElapsedSeconds() {
+    return TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong() - startedAt);
+  }
+
+  private void reset() {
+    rowsSent = 0;
+    rowsFailed = 0;
+    apiCalls = 0;
+    lastBatchAt = -1;
+    startedAt = clock.getAsLong();
+    for (int i = 0; i < WINDOW_SECONDS; i++) {
+      windowRows[i] = 0;
+      windowSeconds[i] = 0;
+    }
+  }
+
+  private void registerMBean() {
+    if (registered || this != INSTANCE) {
+      return;
+    }
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+      registered = true;
+    } catch (JMException | SecurityException e) {
+      // Progress is still logged; only the JMX view is missing.
+      logger.warn("Failed to register " + OBJECT_NAME, e);
+      registered = true;
+    }
+  }
+}
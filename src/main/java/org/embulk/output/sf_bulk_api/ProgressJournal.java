@@ -0,0 +1,125 @@
+package org.embulk.output.sf_bulk_api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-task journal of the input rows that have already been handed to Salesforce.
+ *
+ * <p>A row counts as committed once the batch containing it has returned, whether Salesforce
+ * accepted it or it was written to the error output. When a task is re-run by {@code embulk run
+ * -r}, the committed rows are skipped so that only the unfinished tail is sent again. This relies
+ * on the input plugin producing the same rows in the same order for the same task index.
+ */
+public class ProgressJournal {
+  private static final String ROWS = "rows";
+  private static final String FAILURES = "failures";
+
+  private final Logger logger = LoggerFactory.getLogger(ProgressJournal.class);
+  private final Optional<Path> journalPath;
+  private long committedRows;
+  private long committedFailures;
+
+  public ProgressJournal() {
+    this.journalPath = Optional.empty();
+  }
+
+  public ProgressJournal(final String journalFile, final int taskIndex) throws IOException {
+    this.journalPath = Optional.of(taskJournalPath(journalFile, taskIndex));
+    load(journalPath.get());
+  }
+
+  public long getCommittedRows() {
+    return committedRows;
+  }
+
+  public long getCommittedFailures() {
+    return committedFailures;
+  }
+
+  public void commit(final long rows, final long failures) {
+    if (!journalPath.isPresent()) {
+      return;
+    }
+    final Path path = journalPath.get();
+    final Properties properties = new Properties();
+    properties.setProperty(ROWS, Long.toString(rows));
+    properties.setProperty(FAILURES, Long.toString(failures));
+    try {
+      // Write to a sibling file first so that a crash never leaves a truncated journal behind.
+      final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+      try (OutputStream out = Files.newOutputStream(tmpPath)) {
+        properties.store(out, null);
+      }
+      Files.move(
+          tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      committedRows = rows;
+      committedFailures = failures;
+    } catch (IOException e) {
+      logger.error("Failed to write progress journal: " + path, e);
+    }
+  }
+
+  public static void deleteAll(final String journalFile) {
+    final Path path = Paths.get(journalFile);
+    final Path directory = path.getParent() != null ? path.getParent() : Paths.get(".");
+    final String prefix = path.getFileName().toString() + "_task";
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    try (Stream<Path> files = Files.list(directory)) {
+      final List<Path> journals =
+          files
+              .filter(
+                  p -> {
+                    final String name = p.getFileName().toString();
+                    return name.startsWith(prefix)
+                        && (name.endsWith(".journal") || name.endsWith(".journal.tmp"));
+                  })
+              .collect(Collectors.toList());
+      for (Path journal : journals) {
+        Files.deleteIfExists(journal);
+      }
+    } catch (IOException e) {
+      LoggerFactory.getLogger(ProgressJournal.class)
+          .error("Failed to delete progress journals: " + journalFile, e);
+    }
+  }
+
+  static Path taskJournalPath(final String journalFile, final int taskIndex) {
+    return Paths.get(String.format("%s_task%03d.journal", journalFile, taskIndex));
+  }
+
+  private void load(final Path path) throws IOException {
+    final Path parent = path.getParent();
+    if (parent != null && !Files.exists(parent)) {
+      Files.createDirectories(parent);
+    }
+    if (!Files.exists(path)) {
+      return;
+    }
+    final Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(path)) {
+      properties.load(in);
+    }
+    committedRows = Long.parseLong(properties.getProperty(ROWS, "0"));
+    committedFailures = Long.parseLong(properties.getProperty(FAILURES, "0"));
+    logger.info(
+        "Resuming from progress journal {}: skipping {} rows already sent ({} failures)",
+        path,
+        committedRows,
+        committedFailures);
+  }
+}
@@ -0,0 +1,22 @@
+package org.embulk.output.sf_bulk_api;
+
+/** Progress of the sf_bulk_api tasks running in this JVM, as exposed through JMX. */
+public interface ProgressMXBean {
+  long getRowsSent();
+
+  long getRowsFailed();
+
+  double getFailureRate();
+
+  long getApiCalls();
+
+  /** Rows sent per second over the last minute. */
+  double getRowsPerSecond();
+
+  int getActiveTasks();
+
+  /** Seconds since a batch was last sent, to detect stalls. -1 before the first batch. */
+  long getSecondsSinceLastBatch();
+
+  long getElapsedSeconds();
+}
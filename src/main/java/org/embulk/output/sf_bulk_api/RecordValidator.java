@@ -0,0 +1,191 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.bind.XmlObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Rejects records that Salesforce would certainly reject, using describeSObject metadata, so they
+ * do not take a slot in an API call. Rejected records are reported to the ErrorHandler with the
+ * CLIENT_VALIDATION code.
+ */
+public class RecordValidator {
+  private static final Pattern ID_PATTERN = Pattern.compile("[a-zA-Z0-9]{15}|[a-zA-Z0-9]{18}");
+  private static final String ID_SUFFIX_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ012345";
+
+  private final List<FieldMetadata> fields = new ArrayList<>();
+  private final List<FieldMetadata> requiredFields = new ArrayList<>();
+  private final boolean checkRequired;
+  private final ErrorHandler errorHandler;
+
+  public RecordValidator(
+      final ObjectMetadata metadata,
+      final String actionType,
+      final List<String> fieldNames,
+      final ErrorHandler errorHandler) {
+    for (String fieldName : fieldNames) {
+      metadata.getField(fieldName).ifPresent(fields::add);
+    }
+    for (FieldMetadata field : fields) {
+      if (field.isRequiredOnCreate()) {
+        requiredFields.add(field);
+      }
+    }
+    // An upsert that matches an existing record does not need the required fields.
+    this.checkRequired = ForceClient.isInsert(actionType);
+    this.errorHandler = errorHandler;
+  }
+
+  /** Returns the valid records and reports the others to the ErrorHandler. */
+  public List<SObject> filter(final List<SObject> records) {
+    final List<SObject> valid = new ArrayList<>(records.size());
+    for (SObject record : records) {
+      final Optional<String> problem = validate(record);
+      if (problem.isPresent()) {
+        errorHandler.handleValidationError(record, problem.get());
+      } else {
+        valid.add(record);
+      }
+    }
+    return valid;
+  }
+
+  /**
+   * Returns the records that have every required field and reports the others to the
+   * ErrorHandler. upsert_by_query uses it for the records it creates, which are only known after
+   * the query, so the required fields are not checked by {@link #filter}.
+   */
+  public List<SObject> filterForCreate(final List<SObject> records) {
+    final List<SObject> valid = new ArrayList<>(records.size());
+    for (SObject record : records) {
+      final Optional<String> problem = validateRequired(record);
+      if (problem.isPresent()) {
+        errorHandler.handleValidationError(record, problem.get());
+      } else {
+        valid.add(record);
+      }
+    }
+    return valid;
+  }
+
+  Optional<String> validateRequired(final SObject record) {
+    for (FieldMetadata field : requiredFields) {
+      if (isMissing(field, fieldValue(record, field.getName()))) {
+        return Optional.of(String.format("Required field %s is missing", field.getName()));
+      }
+    }
+    return Optional.empty();
+  }
+
+  Optional<String> validate(final SObject record) {
+    final String[] fieldsToNull = record.getFieldsToNull();
+    final Set<String> nulls =
+        new HashSet<>(fieldsToNull != null ? Arrays.asList(fieldsToNull) : new ArrayList<>());
+    for (FieldMetadata field : fields) {
+      final Object value = fieldValue(record, field.getName());
+      if (isMissing(field, value)) {
+        if (field.isRequiredOnCreate() && (checkRequired || nulls.contains(field.getName()))) {
+          return Optional.of(String.format("Required field %s is missing", field.getName()));
+        }
+        continue;
+      }
+      if (!(value instanceof String)) {
+        continue;
+      }
+      final Optional<String> problem = validate(field, (String) value);
+      if (problem.isPresent()) {
+        return problem;
+      }
+    }
+    return Optional.empty();
+  }
+
+  // An empty lookup is read from an empty input value and means no record, not a malformed Id.
+  private static boolean isMissing(final FieldMetadata field, final Object value) {
+    if (value == null) {
+      return true;
+    }
+    return ("id".equals(field.getType()) || "reference".equals(field.getType()))
+        && value instanceof String
+        && ((String) value).isEmpty();
+  }
+
+  // The fields of a record are named after the columns, which may differ in case from the API
+  // names of the metadata.
+  private static Object fieldValue(final SObject record, final String name) {
+    final Object value = record.getField(name);
+    if (value != null) {
+      return value;
+    }
+    for (Iterator<XmlObject> children = record.getChildren(); children.hasNext(); ) {
+      final XmlObject child = children.next();
+      if (name.equalsIgnoreCase(child.getName().getLocalPart())) {
+        return child.getValue();
+      }
+    }
+    return null;
+  }
+
+  private Optional<String> validate(final FieldMetadata field, final String value) {
+    switch (field.getType()) {
+      case "id":
+      case "reference":
+        if (!isValidId(value)) {
+          return Optional.of(String.format("%s is not a valid Id: %s", field.getName(), value));
+        }
+        return Optional.empty();
+      case "picklist":
+        return validatePicklist(field, value);
+      case "multipicklist":
+        for (String item : value.split(";")) {
+          final Optional<String> problem = validatePicklist(field, item);
+          if (problem.isPresent()) {
+            return problem;
+          }
+        }
+        return Optional.empty();
+      default:
+        if (field.isTextual()
+            && field.getLength() > 0
+            && value.length() > field.getLength()
+            && value.codePointCount(0, value.length()) > field.getLength()) {
+          return Optional.of(
+              String.format(
+                  "%s is longer than the field length %d", field.getName(), field.getLength()));
+        }
+        return Optional.empty();
+    }
+  }
+
+  private Optional<String> validatePicklist(final FieldMetadata field, final String value) {
+    if (field.isRestrictedPicklist() && !field.getPicklistValues().contains(value)) {
+      return Optional.of(
+          String.format("%s is not a value of restricted picklist %s", value, field.getName()));
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * Checks the format of a 15 or 18 character Id. The suffix of an 18 character Id encodes the case
+   * of the first 15 characters, which Salesforce uses to restore it, so an Id whose case was lost
+   * is still valid and only the suffix alphabet is checked.
+   */
+  static boolean isValidId(final String id) {
+    if (!ID_PATTERN.matcher(id).matches()) {
+      return false;
+    }
+    for (int i = 15; i < id.length(); i++) {
+      if (ID_SUFFIX_CHARS.indexOf(Character.toUpperCase(id.charAt(i))) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
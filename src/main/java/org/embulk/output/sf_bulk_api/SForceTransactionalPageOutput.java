@@ -4,8 +4,11 @@ import static org.embulk.output.sf_bulk_api.SfBulkApiOutputPlugin.CONFIG_MAPPER_
 
 import com.sforce.soap.partner.fault.ApiFault;
 import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,28 +27,117 @@ import org.slf4j.LoggerFactory;
 
 public class SForceTransactionalPageOutput implements TransactionalPageOutput {
   private final int batchSize;
+  private final long batchMaxBytes;
 
-  private final ForceClient forceClient;
+  private final ForceClient.Factory forceClientFactory;
+  // Created when the first batch is sent, so tasks without rows never log in.
+  private ForceClient forceClient;
   private final PageReader pageReader;
   private final PluginTask pluginTask;
   private final ErrorHandler errorHandler;
+  private final ProgressJournal progressJournal;
+  private final TaskMetrics metrics;
+  private final BatchTrace batchTrace;
   private final Map<AssociationConfig, Column> associationColumns;
   private final Set<String> associationSourceColumns;
+  // Columns that preflight: drop found not writable
+  private final Set<String> droppedColumns;
+  // null when no describe metadata is available; the columns are then visited by Embulk type
+  private final ColumnPlan columnPlan;
+  // null when no describe metadata is available
+  private final RecordValidator validator;
+  // null when delta mode (delta_store_file) is disabled
+  private final DeltaStore deltaStore;
+  private final Column deltaKeyColumn;
+  private final DeltaStore.RowHasher rowHasher = new DeltaStore.RowHasher();
+  private final Map<SObject, DeltaEntry> pendingDeltaEntries = new IdentityHashMap<>();
+  // null when incremental_column is not set
+  private final IncrementalWatermark watermark;
+  private final Map<SObject, Comparable<Object>> pendingWatermarkValues = new IdentityHashMap<>();
+  // null unless action_type is sync
+  private final SyncKeySet syncKeys;
+  private final Column syncKeyColumn;
+  // null when duplicate_key_handling is none
+  private final DuplicateKeyCoalescer coalescer;
+  private final FailureBudget failureBudget;
+  private final ProgressAggregator progress = ProgressAggregator.getInstance();
+  private final MetricsTextfile metricsTextfile;
 
   private final Logger logger = LoggerFactory.getLogger(SForceTransactionalPageOutput.class);
   private boolean failed;
+  // Set when an unexpected exception dropped the rest of a page, so not every row was read
+  private boolean aborted;
   private long failures;
+  private long readRows;
+  private long unchangedSkipped;
+  private long incrementalSkipped;
+  private long duplicatesCoalesced;
+  // Rows sent in this attempt and their failures, for max_failures and max_failure_ratio
+  private long sentRows;
+  private long sentFailures;
+  private long rowsNotSent;
 
   public SForceTransactionalPageOutput(
       ForceClient forceClient,
       PageReader pageReader,
       PluginTask pluginTask,
       ErrorHandler errorHandler) {
-    this.forceClient = forceClient;
+    this(
+        forceClient,
+        pageReader,
+        pluginTask,
+        errorHandler,
+        new ProgressJournal(),
+        new TaskMetrics());
+  }
+
+  public SForceTransactionalPageOutput(
+      ForceClient forceClient,
+      PageReader pageReader,
+      PluginTask pluginTask,
+      ErrorHandler errorHandler,
+      ProgressJournal progressJournal,
+      TaskMetrics metrics) {
+    this(() -> forceClient, pageReader, pluginTask, errorHandler, progressJournal, metrics);
+  }
+
+  public SForceTransactionalPageOutput(
+      ForceClient.Factory forceClientFactory,
+      PageReader pageReader,
+      PluginTask pluginTask,
+      ErrorHandler errorHandler,
+      ProgressJournal progressJournal,
+      TaskMetrics metrics) {
+    this(
+        forceClientFactory,
+        pageReader,
+        pluginTask,
+        errorHandler,
+        progressJournal,
+        metrics,
+        BatchTrace.none());
+  }
+
+  public SForceTransactionalPageOutput(
+      ForceClient.Factory forceClientFactory,
+      PageReader pageReader,
+      PluginTask pluginTask,
+      ErrorHandler errorHandler,
+      ProgressJournal progressJournal,
+      TaskMetrics metrics,
+      BatchTrace batchTrace) {
+    this.forceClientFactory = forceClientFactory;
     this.pageReader = pageReader;
     this.pluginTask = pluginTask;
     this.errorHandler = errorHandler;
+    this.progressJournal = progressJournal;
+    this.metrics = metrics;
+    this.batchTrace = batchTrace;
+    // Failures of the rows skipped on resume were already written to the error output.
+    this.failures = progressJournal.getCommittedFailures();
+    this.failed = this.failures != 0;
     this.batchSize = pluginTask.getBatchSize();
+    this.batchMaxBytes = pluginTask.getBatchMaxBytes();
     Schema schema = pageReader.getSchema();
     List<AssociationConfig> associations = pluginTask.getAssociations();
     this.associationColumns = new LinkedHashMap<>();
@@ -54,26 +146,110 @@ public class SForceTransactionalPageOutput implements TransactionalPageOutput {
     }
     this.associationSourceColumns =
         associations.stream().map(AssociationConfig::getSourceColumn).collect(Collectors.toSet());
+    this.droppedColumns = new HashSet<>(pluginTask.getDroppedColumns());
+    if (pluginTask.getObjectMetadata().isPresent()) {
+      ObjectMetadata metadata = ObjectMetadata.fromJson(pluginTask.getObjectMetadata().get());
+      List<Column> fieldColumns = fieldColumns(schema);
+      this.columnPlan =
+          new ColumnPlan(
+              fieldColumns, metadata, pluginTask.getIgnoreNulls(), pluginTask.getTruncateText());
+      this.validator =
+          new RecordValidator(
+              metadata,
+              pluginTask.getActionType(),
+              fieldColumns.stream().map(Column::getName).collect(Collectors.toList()),
+              errorHandler);
+    } else {
+      this.columnPlan = null;
+      this.validator = null;
+    }
+    if (pluginTask.getDeltaStoreFile().isPresent()) {
+      this.deltaStore = DeltaStore.open(pluginTask.getDeltaStoreFile().get());
+      String keyColumnName =
+          ForceClient.usesUpsertKey(pluginTask.getActionType())
+              ? pluginTask.getUpsertKey()
+              : pluginTask.getUpdateKey().get();
+      this.deltaKeyColumn = findColumn(schema, keyColumnName);
+    } else {
+      this.deltaStore = null;
+      this.deltaKeyColumn = null;
+    }
+    if (pluginTask.getSyncId().isPresent()) {
+      this.syncKeys = SyncKeySet.of(pluginTask);
+      this.syncKeyColumn = findColumn(schema, pluginTask.getUpsertKey());
+    } else {
+      this.syncKeys = null;
+      this.syncKeyColumn = null;
+    }
+    this.watermark =
+        pluginTask.getIncrementalColumn().isPresent()
+            ? IncrementalWatermark.of(pluginTask, schema)
+            : null;
+    if (pluginTask.getDuplicateKeyHandling() != DuplicateKeyHandling.none) {
+      String keyField =
+          ForceClient.usesUpsertKey(pluginTask.getActionType())
+              ? pluginTask.getUpsertKey()
+              : pluginTask.getUpdateKey().get();
+      this.coalescer = new DuplicateKeyCoalescer(pluginTask.getDuplicateKeyHandling(), keyField);
+    } else {
+      this.coalescer = null;
+    }
+    this.failureBudget = FailureBudget.of(pluginTask);
+    this.metricsTextfile = MetricsTextfile.of(pluginTask);
+    // Last, so that close() is only expected from a fully constructed output.
+    progress.taskStarted(
+        pluginTask.getTransactionId().orElse(null), pluginTask.getProgressLogInterval());
+    metricsTextfile.taskStarted(
+        this, pluginTask.getTransactionId().orElse(null), pluginTask.getMetricsTextfileInterval());
   }
 
   @Override
   public void add(Page page) {
     try {
       List<SObject> records = new ArrayList<>();
+      long batchBytes = 0;
       pageReader.setPage(page);
       while (pageReader.nextRecord()) {
+        readRows++;
+        if (syncKeys != null && !pageReader.isNull(syncKeyColumn)) {
+          // Before any row is skipped: a skipped row still keeps its record from being deleted.
+          syncKeys.markSeen(readColumnAsString(pageReader, syncKeyColumn));
+        }
+        if (readRows <= progressJournal.getCommittedRows()) {
+          continue;
+        }
+        if (failureBudget.isExceeded()) {
+          rowsNotSent++;
+          continue;
+        }
+        Comparable<Object> watermarkValue = null;
+        if (watermark != null) {
+          watermarkValue = watermark.read(pageReader);
+          if (watermark.isAtOrBelowLast(watermarkValue)) {
+            incrementalSkipped++;
+            continue;
+          }
+        }
+        DeltaEntry deltaEntry = null;
+        if (deltaStore != null && !pageReader.isNull(deltaKeyColumn)) {
+          deltaEntry = newDeltaEntry();
+          if (deltaStore.isUnchanged(deltaEntry.key, deltaEntry.hash)) {
+            unchangedSkipped++;
+            continue;
+          }
+        }
+        final long conversionStart = System.nanoTime();
         final SObject record = new SObject();
         record.setType(this.pluginTask.getObject());
-        SForceColumnVisitor visitor =
-            new SForceColumnVisitor(record, pageReader, pluginTask.getIgnoreNulls());
-        // Visit only non-association columns. Association source_columns are not
-        // Salesforce fields and must be skipped from direct SObject field assignment.
-        // Their values are read separately in the association processing below.
-        pageReader.getSchema().getColumns().stream()
-            .filter(col -> !associationSourceColumns.contains(col.getName()))
-            .forEach(col -> col.visit(visitor));
-
-        List<String> fieldsToNull = new ArrayList<>(Arrays.asList(visitor.getFieldsToNull()));
+        List<String> fieldsToNull = new ArrayList<>();
+        if (columnPlan != null) {
+          columnPlan.encode(pageReader, record, fieldsToNull);
+        } else {
+          SForceColumnVisitor visitor =
+              new SForceColumnVisitor(record, pageReader, pluginTask.getIgnoreNulls());
+          fieldColumns(pageReader.getSchema()).forEach(col -> col.visit(visitor));
+          fieldsToNull.addAll(Arrays.asList(visitor.getFieldsToNull()));
+        }
         for (Map.Entry<AssociationConfig, Column> entry : associationColumns.entrySet()) {
           AssociationConfig assoc = entry.getKey();
           Column sourceCol = entry.getValue();
@@ -81,6 +257,9 @@ public class SForceTransactionalPageOutput implements TransactionalPageOutput {
             if (!pluginTask.getIgnoreNulls()) {
               fieldsToNull.add(assoc.getReferenceField());
             }
+          } else if (pluginTask.getResolveAssociations()) {
+            // The key is replaced with the Id of the referenced record before the batch is sent.
+            record.setField(assoc.getReferenceField(), readColumnAsString(pageReader, sourceCol));
           } else {
             String value = readColumnAsString(pageReader, sourceCol);
             String relationshipName =
@@ -92,38 +271,168 @@ public class SForceTransactionalPageOutput implements TransactionalPageOutput {
           }
         }
         record.setFieldsToNull(fieldsToNull.toArray(new String[0]));
+        final long recordBytes = PayloadSize.estimate(record);
+        final long conversionNanos = System.nanoTime() - conversionStart;
+        metrics.addConversionNanos(conversionNanos);
+        batchTrace.addConversionNanos(conversionNanos);
+        if (!records.isEmpty() && batchBytes + recordBytes > batchMaxBytes) {
+          // Send what we have so the request stays under batch_max_bytes. The current row has been
+          // read but is not in the batch, so it must not be journaled.
+          metrics.recordSizeLimitedBatch();
+          records = sendBatch(records, readRows - 1);
+          batchBytes = PayloadSize.estimate(records);
+        }
         records.add(record);
+        batchBytes += recordBytes;
+        if (deltaEntry != null) {
+          pendingDeltaEntries.put(record, deltaEntry);
+        }
+        if (watermarkValue != null) {
+          pendingWatermarkValues.put(record, watermarkValue);
+        }
         if (records.size() >= batchSize) {
-          try {
-            failures += forceClient.action(records);
-            failed = failures != 0;
-          } catch (ApiFault e) {
-            // even if some records failed to register, processing continues.
-            failures += errorHandler.handleFault(records, e);
-            failed = true;
-          }
-          records = new ArrayList<>();
+          records = sendBatch(records, readRows);
+          batchBytes = PayloadSize.estimate(records);
         }
       }
 
-      if (CollectionUtils.isNotEmpty(records)) {
-        try {
-          failures += forceClient.action(records);
-          failed = failures != 0;
-        } catch (ApiFault e) {
-          failures += errorHandler.handleFault(records, e);
-          failed = true;
-        }
+      while (CollectionUtils.isNotEmpty(records)) {
+        records = sendBatch(records, readRows);
       }
-    } catch (AbortException e) {
+    } catch (AbortException | ConfigException e) {
       logger.error(e.getMessage(), e);
       throw e;
     } catch (Exception e) {
       failed = true;
+      aborted = true;
+      // The rows of the interrupted batch may not have been written, so they are not remembered.
+      pendingDeltaEntries.clear();
+      if (watermark != null) {
+        pendingWatermarkValues.values().forEach(watermark::reject);
+      }
+      pendingWatermarkValues.clear();
       logger.error(e.getMessage(), e);
     }
   }
 
+  /**
+   * Sends one batch and returns the deferred records the next batch has to start with. {@code
+   * journalRows} is the number of input rows read up to the last row of the batch.
+   */
+  private List<SObject> sendBatch(final List<SObject> batch, final long journalRows)
+      throws ConnectionException {
+    if (failureBudget.isExceeded()) {
+      // The rows are neither journaled nor remembered in the delta store, so a rerun sends them.
+      rowsNotSent += batch.size();
+      batch.forEach(pendingDeltaEntries::remove);
+      for (SObject record : batch) {
+        final Comparable<Object> value = pendingWatermarkValues.remove(record);
+        if (watermark != null) {
+          watermark.reject(value);
+        }
+      }
+      return new ArrayList<>();
+    }
+    List<SObject> records = batch;
+    List<SObject> deferred = new ArrayList<>();
+    if (coalescer != null) {
+      final DuplicateKeyCoalescer.Result result = coalescer.coalesce(batch);
+      records = result.getRecords();
+      deferred = result.getDeferred();
+      duplicatesCoalesced += result.getCoalescedCount();
+      // Dropped records are never sent, so their content must not be remembered.
+      result.getDropped().forEach(pendingDeltaEntries::remove);
+      // The sent record carries the lowest incremental value of its group, so the watermark does
+      // not pass a row whose values failed with it.
+      result.getGroups().forEach(this::carryLowestWatermarkValue);
+    }
+    final long callsBefore = metrics.getTotalApiCalls();
+    // Rows rejected by the validator are written to the error output without an API call.
+    final List<SObject> valid = validator != null ? validator.filter(records) : records;
+    long batchFailures = records.size() - valid.size();
+    failures += batchFailures;
+    failed = failures != 0;
+    if (!valid.isEmpty()) {
+      try {
+        final long actionFailures = forceClient().action(valid);
+        batchFailures += actionFailures;
+        failures += actionFailures;
+        failed = failures != 0;
+      } catch (ApiFault e) {
+        // even if some records failed to register, processing continues.
+        final long faultFailures = errorHandler.handleFault(valid, e);
+        batchFailures += faultFailures;
+        failures += faultFailures;
+        failed = true;
+      }
+    }
+    metrics.recordBatch(records.size(), batchFailures);
+    progress.recordBatch(records.size(), batchFailures, metrics.getTotalApiCalls() - callsBefore);
+    metrics.setErrorCodes(errorHandler.getErrorCodeCounts());
+    metricsTextfile.publish(this, metrics);
+    sentRows += records.size();
+    sentFailures += batchFailures;
+    failureBudget.record(records.size(), batchFailures, sentRows, sentFailures);
+    final Set<SObject> failedRecords = errorHandler.takeFailedRecords();
+    if (deltaStore != null) {
+      // Remember the content only for rows Salesforce acknowledged, so failed rows are resent.
+      for (SObject record : records) {
+        final DeltaEntry entry = pendingDeltaEntries.remove(record);
+        if (entry != null && !failedRecords.contains(record)) {
+          deltaStore.put(entry.key, entry.hash);
+        }
+      }
+    }
+    if (watermark != null) {
+      for (SObject record : records) {
+        final Comparable<Object> value = pendingWatermarkValues.remove(record);
+        if (failedRecords.contains(record)) {
+          watermark.reject(value);
+        } else {
+          watermark.acknowledge(value);
+        }
+      }
+    }
+    if (deferred.isEmpty()) {
+      // Every row up to the batch has now been either accepted or written to the error output.
+      progressJournal.commit(journalRows, failures);
+    }
+    return deferred;
+  }
+
+  private void carryLowestWatermarkValue(final SObject sent, final List<SObject> group) {
+    Comparable<Object> lowest = null;
+    for (SObject record : group) {
+      final Comparable<Object> value = pendingWatermarkValues.remove(record);
+      if (value != null && (lowest == null || value.compareTo(lowest) < 0)) {
+        lowest = value;
+      }
+    }
+    if (lowest != null) {
+      pendingWatermarkValues.put(sent, lowest);
+    }
+  }
+
+  private ForceClient forceClient() {
+    if (forceClient == null) {
+      try {
+        forceClient = forceClientFactory.create();
+      } catch (ConnectionException e) {
+        throw new ConfigException(e);
+      }
+    }
+    return forceClient;
+  }
+
+  private DeltaEntry newDeltaEntry() {
+    final List<String> values = new ArrayList<>();
+    for (Column column : pageReader.getSchema().getColumns()) {
+      values.add(pageReader.isNull(column) ? null : readColumnAsString(pageReader, column));
+    }
+    return new DeltaEntry(
+        readColumnAsString(pageReader, deltaKeyColumn), rowHasher.hash(values));
+  }
+
   @Override
   public void finish() {}
 
@@ -139,11 +448,26 @@ public class SForceTransactionalPageOutput implements TransactionalPageOutput {
     if (errorHandler != null) {
       errorHandler.close();
     }
+    batchTrace.close();
+    progress.taskFinished();
+    if (errorHandler != null) {
+      metrics.setErrorCodes(errorHandler.getErrorCodeCounts());
+    }
+    metricsTextfile.taskFinished(this, metrics);
   }
 
   @Override
   public void abort() {}
 
+  // Association source_columns are not Salesforce fields and must be skipped from direct SObject
+  // field assignment. Their values are read separately in the association processing.
+  private List<Column> fieldColumns(Schema schema) {
+    return schema.getColumns().stream()
+        .filter(col -> !associationSourceColumns.contains(col.getName()))
+        .filter(col -> !droppedColumns.contains(col.getName()))
+        .collect(Collectors.toList());
+  }
+
   private Column findColumn(Schema schema, String columnName) {
     return schema.getColumns().stream()
         .filter(col -> col.getName().equals(columnName))
@@ -178,7 +502,33 @@ public class SForceTransactionalPageOutput implements TransactionalPageOutput {
   public TaskReport commit() {
     final TaskReport taskReport = CONFIG_MAPPER_FACTORY.newTaskReport();
     taskReport.set("failed", failed);
+    taskReport.set("aborted", aborted);
     taskReport.set("failures", failures);
+    taskReport.set("unchanged_skipped", unchangedSkipped);
+    taskReport.set("duplicates_coalesced", duplicatesCoalesced);
+    if (syncKeys != null) {
+      taskReport.set("sync_load_id", syncKeys.getLoadId());
+    }
+    if (watermark != null) {
+      taskReport.set("incremental_skipped", incrementalSkipped);
+      taskReport.set("incremental_max", watermark.getMax().orElse(""));
+      taskReport.set("incremental_min_failed", watermark.getMinFailed().orElse(""));
+    }
+    taskReport.set("failure_threshold_exceeded", failureBudget.getExceededReason().orElse(""));
+    taskReport.set("rows_not_sent", rowsNotSent);
+    metrics.setErrorWriteNanos(errorHandler.getWriteNanos());
+    metrics.setErrorCodes(errorHandler.getErrorCodeCounts());
+    taskReport.setNested("metrics", metrics.toTaskReport());
     return taskReport;
   }
+
+  private static class DeltaEntry {
+    private final String key;
+    private final long hash;
+
+    DeltaEntry(String key, long hash) {
+      this.key = key;
+      this.hash = hash;
+    }
+  }
 }
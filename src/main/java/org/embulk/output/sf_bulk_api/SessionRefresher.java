@@ -0,0 +1,128 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.Connector;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs in again when Salesforce reports INVALID_SESSION_ID and replays the failed call once with
+ * the new session. Tasks of the same JVM that use the same credentials share one session, so a
+ * session expiring under several tasks leads to a single login. With the OAuth flows, a token
+ * about to expire is also replaced before the call, so long-lived connections rarely need a replay.
+ */
+public class SessionRefresher {
+  private static final Map<String, SharedSession> SESSIONS = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger(SessionRefresher.class);
+  private final PartnerConnection connection;
+  // null when the credentials cannot be used to log in again
+  private final SharedSession session;
+  private final TaskMetrics metrics;
+
+  SessionRefresher(
+      final PartnerConnection connection, final SharedSession session, final TaskMetrics metrics) {
+    this.connection = connection;
+    this.session = session;
+    this.metrics = metrics;
+  }
+
+  public static SessionRefresher of(
+      final PartnerConnection connection, final PluginTask task, final TaskMetrics metrics) {
+    final String key;
+    switch (task.getAuthMethod()) {
+      case user_password:
+        key =
+            String.format(
+                "%s%s/%s",
+                task.getAuthEndPoint().get(), task.getApiVersion(), task.getUsername().get());
+        break;
+      case oauth_jwt:
+      case oauth_refresh_token:
+        key = OauthTokenProvider.cacheKey(task);
+        break;
+      default:
+        // An access token given in the configuration cannot be renewed.
+        return none(connection);
+    }
+    final OauthTokenProvider tokenProvider =
+        task.getAuthMethod() == AuthMethod.user_password ? null : OauthTokenProvider.of(task);
+    return new SessionRefresher(
+        connection,
+        SESSIONS.computeIfAbsent(
+            key,
+            k -> new SharedSession(ForceClient.connectorConfigCreator(task), tokenProvider)),
+        metrics);
+  }
+
+  /** Returns a refresher that never logs in again, so INVALID_SESSION_ID is passed through. */
+  public static SessionRefresher none(final PartnerConnection connection) {
+    return new SessionRefresher(connection, null, new TaskMetrics());
+  }
+
+  public <T> T call(final ApiCall<T> call) throws ConnectionException {
+    if (session == null) {
+      return call.call();
+    }
+    String sessionId = connection.getConfig().getSessionId();
+    if (session.needsRenewal(sessionId)) {
+      logger.info("Access token expires within token_refresh_margin, renewing it");
+      session.refresh(sessionId, connection);
+      sessionId = connection.getConfig().getSessionId();
+    }
+    try {
+      return call.call();
+    } catch (ApiFault e) {
+      if (e.getExceptionCode() != ExceptionCode.INVALID_SESSION_ID) {
+        throw e;
+      }
+      logger.warn("Session is no longer valid, logging in again: {}", e.getExceptionMessage());
+      session.refresh(sessionId, connection);
+      metrics.recordRetry();
+      return call.call();
+    }
+  }
+
+  static class SharedSession {
+    private final ConnectorConfigCreator connectorConfigCreator;
+    // null unless the session comes from an OAuth flow, whose token expiry is known
+    private final OauthTokenProvider tokenProvider;
+    private String sessionId;
+    private String serviceEndpoint;
+
+    SharedSession(
+        final ConnectorConfigCreator connectorConfigCreator,
+        final OauthTokenProvider tokenProvider) {
+      this.connectorConfigCreator = connectorConfigCreator;
+      this.tokenProvider = tokenProvider;
+    }
+
+    boolean needsRenewal(final String currentSessionId) {
+      return tokenProvider != null && tokenProvider.needsRenewal(currentSessionId);
+    }
+
+    /**
+     * Moves the connection to a valid session. Only logs in when no other task has replaced the
+     * stale session yet.
+     */
+    synchronized void refresh(final String staleSessionId, final PartnerConnection connection)
+        throws ConnectionException {
+      if (sessionId == null || sessionId.equals(staleSessionId)) {
+        connectorConfigCreator.invalidateSession(staleSessionId);
+        final ConnectorConfig config =
+            Connector.newConnection(connectorConfigCreator.createConnectorConfig()).getConfig();
+        sessionId = config.getSessionId();
+        serviceEndpoint = config.getServiceEndpoint();
+      }
+      connection.getConfig().setSessionId(sessionId);
+      connection.getConfig().setServiceEndpoint(serviceEndpoint);
+      connection.setSessionHeader(sessionId);
+    }
+  }
+}
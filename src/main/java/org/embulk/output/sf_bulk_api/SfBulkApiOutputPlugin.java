@@ -1,5 +1,6 @@
 package org.embulk.output.sf_bulk_api;
 
+import com.sforce.soap.partner.PartnerConnection;
 import com.sforce.ws.ConnectionException;
 import java.io.BufferedWriter;
 import java.io.IOException;
@@ -7,9 +8,15 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
@@ -30,6 +37,7 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
 
   public static final ConfigMapperFactory CONFIG_MAPPER_FACTORY =
       ConfigMapperFactory.builder().addDefaultModules().build();
+  private static final int SYNC_QUERY_BATCH_SIZE = 2000;
 
   @SuppressWarnings("deprecation") // For the use of task.dump()
   @Override
@@ -41,6 +49,48 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
     if (batchSize < 1 || batchSize > 200) {
       throw new ConfigException("batch_size must be between 1 and 200");
     }
+    validateAuth(task);
+    if (task.getBatchMaxBytes() < 1) {
+      throw new ConfigException("batch_max_bytes must be positive");
+    }
+    if (task.getCircuitBreakerThreshold() < 0) {
+      throw new ConfigException("circuit_breaker_threshold must not be negative");
+    }
+    if (task.getCircuitBreakerPause() < 0) {
+      throw new ConfigException("circuit_breaker_pause must not be negative");
+    }
+    if (task.getCircuitBreakerProbeSize() < 1) {
+      throw new ConfigException("circuit_breaker_probe_size must be positive");
+    }
+    if (task.getMaxFailures().isPresent() && task.getMaxFailures().get() < 0) {
+      throw new ConfigException("max_failures must not be negative");
+    }
+    if (task.getMaxFailureRatio().isPresent()
+        && !(task.getMaxFailureRatio().get() >= 0 && task.getMaxFailureRatio().get() <= 1)) {
+      throw new ConfigException("max_failure_ratio must be between 0 and 1");
+    }
+    if (task.getProgressLogInterval() < 0) {
+      throw new ConfigException("progress_log_interval must not be negative");
+    }
+    if (task.getMetricsTextfileInterval() < 0) {
+      throw new ConfigException("metrics_textfile_interval must not be negative");
+    }
+    if (task.getAssociationCacheSize() < 0) {
+      throw new ConfigException("association_cache_size must not be negative");
+    }
+    if (task.getReplaceDeleteThreads() < 1) {
+      throw new ConfigException("replace_delete_threads must be positive");
+    }
+    if (task.getHardDelete() && !"replace".equals(task.getActionType())) {
+      throw new ConfigException("hard_delete can only be used with action_type: replace");
+    }
+    if (task.getFailureRatioMinRows() < 1) {
+      throw new ConfigException("failure_ratio_min_rows must be positive");
+    }
+    if (task.getAssignmentRuleId().isPresent() && task.getUseDefaultAssignmentRule()) {
+      throw new ConfigException(
+          "assignment_rule_id and use_default_assignment_rule cannot be used together");
+    }
     if (task.getUpdateKey().isPresent() && !"update".equals(task.getActionType())) {
       throw new ConfigException("update_key can only be used with action_type: update");
     }
@@ -68,6 +118,45 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
         throw new ConfigException("associations cannot be used with action_type: delete");
       }
     }
+    if (task.getDeltaStoreFile().isPresent()) {
+      final String deltaKey;
+      if (ForceClient.usesUpsertKey(task.getActionType())) {
+        deltaKey = task.getUpsertKey();
+      } else if ("update".equals(task.getActionType()) && task.getUpdateKey().isPresent()) {
+        deltaKey = task.getUpdateKey().get();
+      } else {
+        throw new ConfigException(
+            "delta_store_file can only be used with action_type: upsert,"
+                + " or update with update_key");
+      }
+      boolean exists =
+          schema.getColumns().stream().anyMatch(column -> column.getName().equals(deltaKey));
+      if (!exists) {
+        throw new ConfigException(
+            String.format("delta_store_file key '%s' does not exist in input schema", deltaKey));
+      }
+    }
+    if ("sync".equals(task.getActionType()) || "upsert_by_query".equals(task.getActionType())) {
+      String upsertKey = task.getUpsertKey();
+      boolean exists =
+          schema.getColumns().stream().anyMatch(column -> column.getName().equals(upsertKey));
+      if (!exists) {
+        throw new ConfigException(
+            String.format("upsert_key '%s' does not exist in input schema", upsertKey));
+      }
+    }
+    if (task.getIncrementalColumn().isPresent()) {
+      IncrementalWatermark.validate(task, schema);
+    } else if (task.getIncrementalLastValue().isPresent()) {
+      throw new ConfigException("incremental_last_value requires incremental_column");
+    }
+    if (task.getDuplicateKeyHandling() != DuplicateKeyHandling.none
+        && !ForceClient.usesUpsertKey(task.getActionType())
+        && !("update".equals(task.getActionType()) && task.getUpdateKey().isPresent())) {
+      throw new ConfigException(
+          "duplicate_key_handling can only be used with action_type: upsert,"
+              + " or update with update_key");
+    }
     Set<String> seenReferenceFields = new HashSet<>();
     for (AssociationConfig assoc : task.getAssociations()) {
       if (assoc.getReferenceField().isEmpty()) {
@@ -96,21 +185,121 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
             String.format("duplicate association reference_field '%s'", assoc.getReferenceField()));
       }
     }
-    final List<TaskReport> taskReports = control.run(task.dump());
+    if (task.getPreflight() != PreflightMode.none) {
+      runPreflight(task, schema);
+    }
+    // Journals left by a failed run are only honored by resume(); a new transaction starts over.
+    task.getProgressJournalFile().ifPresent(ProgressJournal::deleteAll);
+    task.setTransactionId(Optional.of(UUID.randomUUID().toString()));
+    if (task.getMaxFailures().isPresent() || task.getMaxFailureRatio().isPresent()) {
+      task.setFailureBudgetId(Optional.of(UUID.randomUUID().toString()));
+    }
+    if ("sync".equals(task.getActionType())) {
+      task.setSyncId(Optional.of(UUID.randomUUID().toString()));
+    }
+    if ("replace".equals(task.getActionType())) {
+      // Not in resume(), so that resuming does not delete the rows already inserted.
+      truncateObject(task);
+    }
+    return resume(task.dump(), schema, taskCount, control);
+  }
+
+  @Override
+  public ConfigDiff resume(
+      TaskSource taskSource, org.embulk.spi.Schema schema, int taskCount, Control control) {
+    final PluginTask task =
+        CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
+    final List<TaskReport> taskReports;
+    // Loaded here rather than in transaction() so that a resumed sync has its keys as well.
+    final SyncKeySet syncKeys =
+        task.getSyncId().isPresent() ? loadSyncKeys(task, schema) : null;
+    try {
+      taskReports = control.run(taskSource);
+    } catch (RuntimeException e) {
+      // The index of a failed run is not saved, so the next run starts from the file again.
+      task.getDeltaStoreFile().ifPresent(DeltaStore::release);
+      throw e;
+    } finally {
+      task.getFailureBudgetId().ifPresent(FailureBudget::release);
+      task.getSyncId().ifPresent(SyncKeySet::release);
+    }
     final long failures =
         taskReports.stream().mapToLong(taskReport -> taskReport.get(long.class, "failures")).sum();
     final boolean failed =
         taskReports.stream().anyMatch(taskReport -> taskReport.get(boolean.class, "failed"));
+    final TaskMetrics metrics = new TaskMetrics();
+    taskReports.stream()
+        .filter(taskReport -> taskReport.has("metrics"))
+        .forEach(
+            taskReport ->
+                metrics.merge(TaskMetrics.fromDataSource(taskReport.getNested("metrics"))));
+    if ("replace".equals(task.getActionType())) {
+      logger.info(
+          "sf_bulk_api summary: failures={}, {}, replace deleted={} in {}ms",
+          failures,
+          metrics.summary(),
+          task.getReplaceDeletedRecords(),
+          task.getReplaceDeleteMillis());
+    } else {
+      logger.info("sf_bulk_api summary: failures={}, {}", failures, metrics.summary());
+    }
+    if (task.getDeltaStoreFile().isPresent()) {
+      final long unchangedSkipped =
+          taskReports.stream()
+              .mapToLong(taskReport -> taskReport.get(long.class, "unchanged_skipped", 0L))
+              .sum();
+      logger.info("Skipped {} rows unchanged since the last run", unchangedSkipped);
+      saveDeltaStore(task.getDeltaStoreFile().get());
+    }
+    final Optional<String> exceededReason =
+        taskReports.stream()
+            .map(taskReport -> taskReport.get(String.class, "failure_threshold_exceeded", ""))
+            .filter(reason -> !reason.isEmpty())
+            .findFirst();
+    if (exceededReason.isPresent()) {
+      final long notSent =
+          taskReports.stream()
+              .mapToLong(taskReport -> taskReport.get(long.class, "rows_not_sent", 0L))
+              .sum();
+      throw new DataException(
+          String.format(
+              "Stopped sending because %s: %,d failures, %,d rows not sent",
+              exceededReason.get(), failures, notSent));
+    }
     if (task.getThrowIfFailed() && failed) {
       throw new DataException(String.format("There are %,d failures", failures));
     }
-    return CONFIG_MAPPER_FACTORY.newConfigDiff();
-  }
-
-  @Override
-  public ConfigDiff resume(
-      TaskSource taskSource, org.embulk.spi.Schema schema, int taskCount, Control control) {
-    throw new UnsupportedOperationException("does not support resuming");
+    if (syncKeys != null) {
+      deleteUnseenRecords(task, syncKeys, taskReports);
+    }
+    final ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
+    if (task.getIncrementalColumn().isPresent()) {
+      final long incrementalSkipped =
+          taskReports.stream()
+              .mapToLong(taskReport -> taskReport.get(long.class, "incremental_skipped", 0L))
+              .sum();
+      logger.info(
+          "Skipped {} rows at or below the previous incremental_last_value", incrementalSkipped);
+      if (taskReports.stream()
+          .anyMatch(taskReport -> taskReport.get(boolean.class, "aborted", false))) {
+        // The values of the rows after the error are unknown, so the watermark cannot move.
+        logger.warn("Keeping incremental_last_value: some tasks stopped reading after an error");
+        task.getIncrementalLastValue()
+            .ifPresent(value -> configDiff.set("incremental_last_value", value));
+      } else {
+        IncrementalWatermark.merge(
+                task,
+                schema,
+                taskReports.stream()
+                    .map(taskReport -> taskReport.get(String.class, "incremental_max", ""))
+                    .collect(Collectors.toList()),
+                taskReports.stream()
+                    .map(taskReport -> taskReport.get(String.class, "incremental_min_failed", ""))
+                    .collect(Collectors.toList()))
+            .ifPresent(value -> configDiff.set("incremental_last_value", value));
+      }
+    }
+    return configDiff;
   }
 
   @Override
@@ -123,7 +312,11 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
         CONFIG_MAPPER_FACTORY.createTaskMapper().map(taskSource, PluginTask.class);
 
     // Concatenate error files if error output is configured
-    task.getErrorRecordsDetailOutputFile().ifPresent(this::concatenateErrorFiles);
+    task.getErrorRecordsDetailOutputFile().ifPresent(this::concatenateTaskFiles);
+    task.getBatchTraceFile().ifPresent(this::concatenateTaskFiles);
+
+    // The transaction has been committed, so there is nothing left to resume.
+    task.getProgressJournalFile().ifPresent(ProgressJournal::deleteAll);
   }
 
   // For the use of org.embulk.spi.PageReaderのPageReader(org.embulk.spi.Schema).
@@ -138,19 +331,199 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
           task.getErrorRecordsDetailOutputFile()
               .map(outputPath -> new ErrorHandler(schema, outputPath, taskIndex))
               .orElse(new ErrorHandler(schema));
-      final ForceClient client = new ForceClient(task, handler);
+      final ProgressJournal journal =
+          task.getProgressJournalFile().isPresent()
+              ? new ProgressJournal(task.getProgressJournalFile().get(), taskIndex)
+              : new ProgressJournal();
+      final TaskMetrics metrics = new TaskMetrics();
+      final BatchTrace batchTrace =
+          task.getBatchTraceFile()
+              .map(batchTraceFile -> BatchTrace.open(batchTraceFile, taskIndex))
+              .orElse(BatchTrace.none());
       PageReader pageReader = new PageReader(schema);
-      return new SForceTransactionalPageOutput(client, pageReader, task, handler);
-    } catch (ConnectionException e) {
-      logger.error(e.getMessage(), e);
-      throw new ConfigException(e);
+      return new SForceTransactionalPageOutput(
+          () -> new ForceClient(task, handler, metrics, batchTrace),
+          pageReader,
+          task,
+          handler,
+          journal,
+          metrics,
+          batchTrace);
     } catch (final Exception e) {
       logger.error(e.getMessage(), e);
       throw new ExecutionInterruptedException(e);
     }
   }
 
-  private void concatenateErrorFiles(String outputFile) {
+  private void validateAuth(PluginTask task) {
+    switch (task.getAuthMethod()) {
+      case oauth_jwt:
+        if (!task.getClientId().isPresent() || !task.getUsername().isPresent()) {
+          throw new ConfigException("auth_method: oauth_jwt requires client_id and username");
+        }
+        if (task.getPrivateKey().isPresent() == task.getPrivateKeyFile().isPresent()) {
+          throw new ConfigException(
+              "auth_method: oauth_jwt requires exactly one of private_key or private_key_file");
+        }
+        break;
+      case oauth_refresh_token:
+        if (!task.getClientId().isPresent() || !task.getRefreshToken().isPresent()) {
+          throw new ConfigException(
+              "auth_method: oauth_refresh_token requires client_id and refresh_token");
+        }
+        break;
+      default:
+        break;
+    }
+    if (task.getTokenRequestTimeout() < 1) {
+      throw new ConfigException("token_request_timeout must be positive");
+    }
+  }
+
+  private void truncateObject(PluginTask task) {
+    final ObjectTruncator.Result result;
+    try {
+      result = new ObjectTruncator(task).truncate();
+    } catch (ConnectionException e) {
+      throw new DataException("Failed to delete the records of " + task.getObject(), e);
+    }
+    logger.info(
+        "Deleted {} records of {} in {}ms with {} threads, {} failed{}",
+        result.getDeleted(),
+        task.getObject(),
+        result.getMillis(),
+        task.getReplaceDeleteThreads(),
+        result.getFailed(),
+        task.getHardDelete()
+            ? String.format(", %d not removed from the recycle bin", result.getNotPurged())
+            : "");
+    if (task.getThrowIfFailed() && result.getFailed() > 0) {
+      throw new DataException(
+          String.format(
+              "Failed to delete %,d records of %s before replacing them",
+              result.getFailed(), task.getObject()));
+    }
+    task.setReplaceDeletedRecords(result.getDeleted());
+    task.setReplaceDeleteMillis(result.getMillis());
+  }
+
+  private SyncKeySet loadSyncKeys(PluginTask task, org.embulk.spi.Schema schema) {
+    try {
+      final PartnerConnection connection = ForceClient.newConnection(task);
+      connection.setQueryOptions(SYNC_QUERY_BATCH_SIZE);
+      final SfIdResolver resolver =
+          new SfIdResolver(
+              connection,
+              task.getObject(),
+              task.getUpsertKey(),
+              "upsert_key",
+              new ErrorHandler(schema),
+              new TaskMetrics(),
+              SessionRefresher.of(connection, task, new TaskMetrics()));
+      final SyncKeySet syncKeys = SyncKeySet.load(task.getSyncId().get(), resolver);
+      logger.info("Loaded {} keys of {} for sync", syncKeys.getLoaded(), task.getObject());
+      return syncKeys;
+    } catch (ConnectionException e) {
+      throw new ConfigException("Failed to load the keys of " + task.getObject(), e);
+    }
+  }
+
+  // Deletes the records whose key no task has seen. Tasks that reported another load of the keys
+  // ran in an earlier attempt of a resumed transaction; their keys are unknown, so nothing is
+  // deleted then.
+  private void deleteUnseenRecords(
+      PluginTask task, SyncKeySet syncKeys, List<TaskReport> taskReports) {
+    final boolean complete =
+        taskReports.stream()
+            .allMatch(
+                taskReport ->
+                    syncKeys.getLoadId().equals(taskReport.get(String.class, "sync_load_id", "")));
+    if (!complete) {
+      logger.warn(
+          "Not deleting records absent from the input: some tasks ran in an earlier attempt."
+              + " Run the job again to delete them.");
+      return;
+    }
+    if (taskReports.stream()
+        .anyMatch(taskReport -> taskReport.get(boolean.class, "aborted", false))) {
+      // The keys of the rows after the error were never marked as seen.
+      logger.warn(
+          "Not deleting records absent from the input: some tasks stopped reading their input"
+              + " after an error. Run the job again to delete them.");
+      return;
+    }
+    final List<String> unseenIds = syncKeys.getUnseenIds();
+    final long failures;
+    try {
+      final PartnerConnection connection = ForceClient.newConnection(task);
+      failures =
+          syncKeys.delete(
+              unseenIds, connection, SessionRefresher.of(connection, task, new TaskMetrics()));
+    } catch (ConnectionException e) {
+      throw new DataException("Failed to delete records absent from the input", e);
+    }
+    logger.info(
+        "Deleted {} records of {} absent from the input, {} failed",
+        unseenIds.size() - failures,
+        task.getObject(),
+        failures);
+    if (task.getThrowIfFailed() && failures > 0) {
+      throw new DataException(
+          String.format("Failed to delete %,d records absent from the input", failures));
+    }
+  }
+
+  private void runPreflight(PluginTask task, org.embulk.spi.Schema schema) {
+    try {
+      final PartnerConnection connection = ForceClient.newConnection(task);
+      final DescribeCache describeCache =
+          new DescribeCache(connection, task.getDescribeCacheDir(), task.getDescribeCacheTtl());
+      final ObjectMetadata target = describeCache.describe(task.getObject());
+      final Map<String, ObjectMetadata> referencedObjects = new HashMap<>();
+      for (AssociationConfig assoc : task.getAssociations()) {
+        if (!referencedObjects.containsKey(assoc.getReferencedObject())) {
+          referencedObjects.put(
+              assoc.getReferencedObject(), describeCache.describe(assoc.getReferencedObject()));
+        }
+      }
+      final Preflight.Result result =
+          new Preflight(task, schema, target, referencedObjects).check();
+      final List<String> problems = new ArrayList<>(result.getFatalProblems());
+      if (task.getPreflight() == PreflightMode.fail) {
+        problems.addAll(result.getColumnProblems().values());
+      }
+      if (!problems.isEmpty()) {
+        throw new ConfigException("preflight failed: " + String.join("; ", problems));
+      }
+      result
+          .getColumnProblems()
+          .forEach((column, problem) -> logger.warn("Dropping column '{}': {}", column, problem));
+      task.setDroppedColumns(new ArrayList<>(result.getColumnProblems().keySet()));
+      // Lets the tasks encode each column for its field type without describing again.
+      task.setObjectMetadata(Optional.of(target.toJson()));
+    } catch (ConnectionException e) {
+      logger.error(e.getMessage(), e);
+      throw new ConfigException(e);
+    }
+  }
+
+  private void saveDeltaStore(String deltaStoreFile) {
+    try {
+      DeltaStore.open(deltaStoreFile).save();
+    } catch (IOException e) {
+      // Rows missing from the store are simply sent again on the next run.
+      logger.error("Failed to save delta store: " + deltaStoreFile, e);
+    } finally {
+      // The next transaction reads the file, which may have been changed or removed meanwhile.
+      DeltaStore.release(deltaStoreFile);
+    }
+  }
+
+  // Concatenates the per-task files <outputFile>_taskNNN.jsonl into outputFile.
+  private void concatenateTaskFiles(String outputFile) {
+    final FlightRecorderEvents.ConcatenateSpan span = FlightRecorderEvents.beginConcatenate();
+    long files = 0;
+    long lineCount = 0;
     Path outputPath = Paths.get(outputFile);
     Path directory = outputPath.getParent();
     String baseFileName = outputPath.getFileName().toString();
@@ -160,7 +533,7 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
           Files.list(directory)
               .filter(path -> path.getFileName().toString().startsWith(baseFileName + "_task"))
               .sorted()
-              .collect(java.util.stream.Collectors.toList());
+              .collect(Collectors.toList());
 
       // If no task files exist, don't create output file
       if (taskFiles.isEmpty()) {
@@ -172,6 +545,8 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
         for (Path taskFile : taskFiles) {
           try {
             List<String> lines = Files.readAllLines(taskFile);
+            files++;
+            lineCount += lines.size();
             if (!lines.isEmpty()) {
               hasContent = true;
               for (String line : lines) {
@@ -192,7 +567,9 @@ public class SfBulkApiOutputPlugin implements OutputPlugin {
         }
       }
     } catch (IOException e) {
-      logger.error("Failed to concatenate error files", e);
+      logger.error("Failed to concatenate files into " + outputFile, e);
+    } finally {
+      span.end(outputFile, files, lineCount);
     }
   }
 
@@ -5,12 +5,14 @@ import com.sforce.soap.partner.QueryResult;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +24,12 @@ public class SfIdResolver {
   private final String keyField;
   private final String keyLabel;
   private final ErrorHandler errorHandler;
+  private final TaskMetrics metrics;
+  private final SessionRefresher sessionRefresher;
+  private final BatchTrace batchTrace;
+  // Calls made so far, for the flight recorder events of resolve()
+  private long queries;
+  private long queryMorePages;
 
   public SfIdResolver(
       PartnerConnection connection,
@@ -29,15 +37,100 @@ public class SfIdResolver {
       String keyField,
       String keyLabel,
       ErrorHandler errorHandler) {
+    this(connection, objectType, keyField, keyLabel, errorHandler, new TaskMetrics());
+  }
+
+  public SfIdResolver(
+      PartnerConnection connection,
+      String objectType,
+      String keyField,
+      String keyLabel,
+      ErrorHandler errorHandler,
+      TaskMetrics metrics) {
+    this(
+        connection,
+        objectType,
+        keyField,
+        keyLabel,
+        errorHandler,
+        metrics,
+        SessionRefresher.none(connection));
+  }
+
+  public SfIdResolver(
+      PartnerConnection connection,
+      String objectType,
+      String keyField,
+      String keyLabel,
+      ErrorHandler errorHandler,
+      TaskMetrics metrics,
+      SessionRefresher sessionRefresher) {
+    this(
+        connection,
+        objectType,
+        keyField,
+        keyLabel,
+        errorHandler,
+        metrics,
+        sessionRefresher,
+        BatchTrace.none());
+  }
+
+  public SfIdResolver(
+      PartnerConnection connection,
+      String objectType,
+      String keyField,
+      String keyLabel,
+      ErrorHandler errorHandler,
+      TaskMetrics metrics,
+      SessionRefresher sessionRefresher,
+      BatchTrace batchTrace) {
     this.connection = connection;
     this.objectType = objectType;
     this.keyField = keyField;
     this.keyLabel = keyLabel;
     this.errorHandler = errorHandler;
+    this.metrics = metrics;
+    this.sessionRefresher = sessionRefresher;
+    this.batchTrace = batchTrace;
   }
 
   public ResolveResult resolve(List<SObject> records) throws ConnectionException {
+    return resolve(records, false);
+  }
+
+  /**
+   * Resolves like {@link #resolve(List)}, except that records whose key matches no record are
+   * returned as unmatched rather than reported as failed.
+   */
+  public ResolveResult resolveAllowingUnmatched(List<SObject> records)
+      throws ConnectionException {
+    return resolve(records, true);
+  }
+
+  private ResolveResult resolve(List<SObject> records, boolean allowUnmatched)
+      throws ConnectionException {
+    FlightRecorderEvents.ResolveSpan span = FlightRecorderEvents.beginResolve();
+    long queriesBefore = queries;
+    long queryMorePagesBefore = queryMorePages;
+    ResolveResult result = null;
+    try {
+      result = resolveIds(records, allowUnmatched);
+      return result;
+    } finally {
+      span.end(
+          objectType,
+          records.size(),
+          queries - queriesBefore,
+          queryMorePages - queryMorePagesBefore,
+          result != null ? result.getUnresolvedCount() : records.size());
+    }
+  }
+
+  private ResolveResult resolveIds(List<SObject> records, boolean allowUnmatched)
+      throws ConnectionException {
     List<SObject> resolved = new ArrayList<>();
+    List<SObject> unmatched = new ArrayList<>();
     long unresolvedCount = 0;
 
     // 1. Collect key values and check for null keys
@@ -67,13 +160,13 @@ public class SfIdResolver {
     duplicateInputKeys.forEach(keyToRecords::remove);
 
     if (keyToRecords.isEmpty()) {
-      return new ResolveResult(resolved, unresolvedCount);
+      return new ResolveResult(resolved, unmatched, unresolvedCount);
     }
 
     // 3. Query Salesforce for SFIDs
     String soql = buildQuery(keyToRecords.keySet());
     logger.info("Resolving IDs with SOQL: {}", soql);
-    QueryResult queryResult = connection.query(soql);
+    QueryResult queryResult = timedQuery("query", soql.length(), () -> connection.query(soql));
 
     // 4. Build key -> SFID mapping and count duplicates
     Map<String, String> keyToId = new HashMap<>();
@@ -81,7 +174,10 @@ public class SfIdResolver {
     processQueryResults(queryResult, keyToId, keyCounts);
 
     while (!queryResult.isDone()) {
-      queryResult = connection.queryMore(queryResult.getQueryLocator());
+      final String queryLocator = queryResult.getQueryLocator();
+      queryResult =
+          timedQuery(
+              "queryMore", queryLocator.length(), () -> connection.queryMore(queryLocator));
       processQueryResults(queryResult, keyToId, keyCounts);
     }
 
@@ -91,7 +187,9 @@ public class SfIdResolver {
       List<SObject> recordsForKey = entry.getValue();
 
       int count = keyCounts.getOrDefault(keyValue, 0);
-      if (count == 0) {
+      if (count == 0 && allowUnmatched) {
+        unmatched.addAll(recordsForKey);
+      } else if (count == 0) {
         for (SObject r : recordsForKey) {
           errorHandler.handleIdResolveError(r, "No record found for " + keyField + "=" + keyValue);
           unresolvedCount++;
@@ -111,7 +209,54 @@ public class SfIdResolver {
       }
     }
 
-    return new ResolveResult(resolved, unresolvedCount);
+    return new ResolveResult(resolved, unmatched, unresolvedCount);
+  }
+
+  /** Streams the key and Id of every record of the object whose key is not null. */
+  public void forEachKey(BiConsumer<String, String> consumer) throws ConnectionException {
+    String soql =
+        String.format(
+            "SELECT Id, %s FROM %s WHERE %s != null", keyField, objectType, keyField);
+    logger.info("Loading keys with SOQL: {}", soql);
+    QueryResult queryResult = timedQuery("query", soql.length(), () -> connection.query(soql));
+    while (true) {
+      for (SObject result : queryResult.getRecords()) {
+        Object fieldValue = result.getField(keyField);
+        if (fieldValue != null) {
+          consumer.accept(fieldValue.toString(), result.getId());
+        }
+      }
+      if (queryResult.isDone()) {
+        return;
+      }
+      final String queryLocator = queryResult.getQueryLocator();
+      queryResult =
+          timedQuery(
+              "queryMore", queryLocator.length(), () -> connection.queryMore(queryLocator));
+    }
+  }
+
+  /** Streams the key and Id of the records whose key is one of the given values. */
+  public void forEachMatch(Set<String> keyValues, BiConsumer<String, String> consumer)
+      throws ConnectionException {
+    String soql = buildQuery(keyValues);
+    logger.info("Resolving IDs with SOQL: {}", soql);
+    QueryResult queryResult = timedQuery("query", soql.length(), () -> connection.query(soql));
+    while (true) {
+      for (SObject result : queryResult.getRecords()) {
+        Object fieldValue = result.getField(keyField);
+        if (fieldValue != null) {
+          consumer.accept(fieldValue.toString(), result.getId());
+        }
+      }
+      if (queryResult.isDone()) {
+        return;
+      }
+      final String queryLocator = queryResult.getQueryLocator();
+      queryResult =
+          timedQuery(
+              "queryMore", queryLocator.length(), () -> connection.queryMore(queryLocator));
+    }
   }
 
   private void processQueryResults(
@@ -127,6 +272,35 @@ public class SfIdResolver {
     }
   }
 
+  // Traced rows are the records returned, and bytes the length of the SOQL or query locator.
+  private QueryResult timedQuery(String call, long bytes, ApiCall<QueryResult> query)
+      throws ConnectionException {
+    if ("query".equals(call)) {
+      queries++;
+    } else {
+      queryMorePages++;
+    }
+    long start = System.nanoTime();
+    try {
+      QueryResult result = sessionRefresher.call(query);
+      long nanos = System.nanoTime() - start;
+      metrics.recordQueryCall(call, nanos);
+      int records = result.getRecords() != null ? result.getRecords().length : 0;
+      batchTrace.record(call, records, bytes, 0, nanos, 0, Collections.emptyMap());
+      return result;
+    } catch (ConnectionException | RuntimeException e) {
+      batchTrace.record(
+          call,
+          0,
+          bytes,
+          0,
+          System.nanoTime() - start,
+          0,
+          Collections.singletonMap(ForceClient.errorCode(e), 1L));
+      throw e;
+    }
+  }
+
   private String buildQuery(Set<String> keyValues) {
     String inClause =
         keyValues.stream().map(v -> "'" + escapeSoql(v) + "'").collect(Collectors.joining(","));
@@ -140,10 +314,17 @@ public class SfIdResolver {
 
   public static class ResolveResult {
     private final List<SObject> resolvedRecords;
+    private final List<SObject> unmatchedRecords;
     private final long unresolvedCount;
 
     public ResolveResult(List<SObject> resolvedRecords, long unresolvedCount) {
+      this(resolvedRecords, Collections.emptyList(), unresolvedCount);
+    }
+
+    public ResolveResult(
+        List<SObject> resolvedRecords, List<SObject> unmatchedRecords, long unresolvedCount) {
       this.resolvedRecords = resolvedRecords;
+      this.unmatchedRecords = unmatchedRecords;
       this.unresolvedCount = unresolvedCount;
     }
 
@@ -151,6 +332,11 @@ public class SfIdResolver {
       return resolvedRecords;
     }
 
+    /** Records whose key matched no record, when resolved with resolveAllowingUnmatched. */
+    public List<SObject> getUnmatchedRecords() {
+      return unmatchedRecords;
+    }
+
     public long getUnresolvedCount() {
       return unresolvedCount;
     }
@@ -0,0 +1,123 @@
+package org.embulk.output.sf_bulk_api;
+
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.IError;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.ws.ConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.embulk.config.ConfigException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keys of the records of the target object when a sync transaction started. Tasks mark the
+ * upsert_key values of their input rows as seen, and the records whose key was never seen are
+ * deleted once every task has committed. Keys are compared case-insensitively, like Salesforce
+ * matches External IDs, so a record the upsert may have matched is never deleted.
+ */
+public class SyncKeySet {
+  static final int DELETE_BATCH_SIZE = 200;
+  private static final Map<String, SyncKeySet> SETS = new ConcurrentHashMap<>();
+
+  private final Logger logger = LoggerFactory.getLogger(SyncKeySet.class);
+  // Identifies this load, so that reports of tasks run against an earlier load are recognized.
+  private final String loadId = UUID.randomUUID().toString();
+  // Lower-cased key -> Ids of the records not seen yet. Records sharing a key are joined by ','.
+  private final Map<String, String> unseen = new ConcurrentHashMap<>();
+  private long loaded;
+
+  SyncKeySet() {}
+
+  /** Streams the keys of the target object into a new set shared by the tasks of this JVM. */
+  public static SyncKeySet load(final String id, final SfIdResolver resolver)
+      throws ConnectionException {
+    final SyncKeySet set = new SyncKeySet();
+    resolver.forEachKey(set::add);
+    SETS.put(id, set);
+    return set;
+  }
+
+  public static SyncKeySet of(final PluginTask task) {
+    final SyncKeySet set = SETS.get(task.getSyncId().get());
+    if (set == null) {
+      throw new ConfigException(
+          "action_type: sync requires the tasks to run in the JVM of the transaction");
+    }
+    return set;
+  }
+
+  public static void release(final String id) {
+    SETS.remove(id);
+  }
+
+  void add(final String key, final String recordId) {
+    loaded++;
+    unseen.merge(normalize(key), recordId, (ids, other) -> ids + "," + other);
+  }
+
+  public void markSeen(final String key) {
+    unseen.remove(normalize(key));
+  }
+
+  public String getLoadId() {
+    return loadId;
+  }
+
+  public long getLoaded() {
+    return loaded;
+  }
+
+  public List<String> getUnseenIds() {
+    return unseen.values().stream()
+        .flatMap(ids -> Arrays.stream(ids.split(",")))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Deletes the given records, DELETE_BATCH_SIZE Ids per call.
+   *
+   * @return the number of records that could not be deleted
+   */
+  public long delete(
+      final List<String> ids,
+      final PartnerConnection connection,
+      final SessionRefresher refresher)
+      throws ConnectionException {
+    long failures = 0;
+    for (int from = 0; from < ids.size(); from += DELETE_BATCH_SIZE) {
+      final String[] batch =
+          ids.subList(from, Math.min(from + DELETE_BATCH_SIZE, ids.size())).toArray(new String[0]);
+      final DeleteResult[] results = refresher.call(() -> connection.delete(batch));
+      for (int i = 0; i < results.length; i++) {
+        if (!results[i].isSuccess()) {
+          failures++;
+          logger.error(
+              "[output sf_bulk_api failure] sync could not delete {}: {}",
+              batch[i],
+              describe(results[i].getErrors()));
+        }
+      }
+    }
+    return failures;
+  }
+
+  private static String describe(final IError[] errors) {
+    final List<String> messages = new ArrayList<>();
+    for (IError error : errors != null ? errors : new IError[0]) {
+      messages.add(error.getStatusCode() + " " + error.getMessage());
+    }
+    return String.join(", ", messages);
+  }
+
+  private static String normalize(final String key) {
+    return key.toLowerCase(Locale.ROOT);
+  }
+}
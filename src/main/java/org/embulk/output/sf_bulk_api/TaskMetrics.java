@@ -0,0 +1,267 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.embulk.output.sf_bulk_api.SfBulkApiOutputPlugin.CONFIG_MAPPER_FACTORY;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.embulk.config.DataSource;
+import org.embulk.config.TaskReport;
+
+/**
+ * Performance counters of one task, reported under the "metrics" key of the TaskReport and merged
+ * into a single summary by the transaction.
+ */
+public class TaskMetrics {
+  private long rowsSent;
+  private long rowsSucceeded;
+  private long soqlQueries;
+  private long requestBytes;
+  private long conversionNanos;
+  private long errorWriteNanos;
+  private long sizeLimitedBatches;
+  private long circuitOpened;
+  private long circuitClosed;
+  private long circuitWaitNanos;
+  private long retries;
+  private long associationCacheHits;
+  private final Map<String, Long> apiCalls = new TreeMap<>();
+  private final Map<String, Long> errorCodes = new TreeMap<>();
+  private final LatencyHistogram dmlLatency = new LatencyHistogram();
+  private final LatencyHistogram resolveLatency = new LatencyHistogram();
+
+  public void recordBatch(final long rows, final long failures) {
+    rowsSent += rows;
+    rowsSucceeded += rows - failures;
+  }
+
+  /** Records a create/upsert/update/delete call. */
+  public void recordDmlCall(final String action, final long nanos, final long bytes) {
+    apiCalls.merge(action, 1L, Long::sum);
+    requestBytes += bytes;
+    dmlLatency.record(nanos);
+  }
+
+  /** Records a query/queryMore call made to resolve keys to record Ids. */
+  public void recordQueryCall(final String call, final long nanos) {
+    apiCalls.merge(call, 1L, Long::sum);
+    soqlQueries++;
+    resolveLatency.record(nanos);
+  }
+
+  /** Records a batch sent before reaching batch_size because of batch_max_bytes. */
+  public void recordSizeLimitedBatch() {
+    sizeLimitedBatches++;
+  }
+
+  /** Records a transition of the circuit breaker caused by a call of this task. */
+  public void recordCircuitTransition(final boolean opened) {
+    if (opened) {
+      circuitOpened++;
+    } else {
+      circuitClosed++;
+    }
+  }
+
+  public void addCircuitWaitNanos(final long nanos) {
+    circuitWaitNanos += nanos;
+  }
+
+  /** Records a call replayed after logging in again. */
+  public void recordRetry() {
+    retries++;
+  }
+
+  /** Records association keys resolved from the cache, without a query. */
+  public void recordAssociationCacheHits(final long hits) {
+    associationCacheHits += hits;
+  }
+
+  public void addConversionNanos(final long nanos) {
+    conversionNanos += nanos;
+  }
+
+  public void setErrorWriteNanos(final long nanos) {
+    errorWriteNanos = nanos;
+  }
+
+  /** Sets the number of failed rows by error code, as counted by the ErrorHandler. */
+  public void setErrorCodes(final Map<String, Long> counts) {
+    errorCodes.clear();
+    errorCodes.putAll(counts);
+  }
+
+  public long getRowsSent() {
+    return rowsSent;
+  }
+
+  public long getRowsSucceeded() {
+    return rowsSucceeded;
+  }
+
+  public long getSoqlQueries() {
+    return soqlQueries;
+  }
+
+  public long getRequestBytes() {
+    return requestBytes;
+  }
+
+  public long getSizeLimitedBatches() {
+    return sizeLimitedBatches;
+  }
+
+  /** Returns the average estimated payload of a create/upsert/update/delete call, in bytes. */
+  public long getAverageRequestBytes() {
+    return dmlLatency.getCount() == 0 ? 0 : requestBytes / dmlLatency.getCount();
+  }
+
+  public long getCircuitOpened() {
+    return circuitOpened;
+  }
+
+  public long getCircuitClosed() {
+    return circuitClosed;
+  }
+
+  public long getCircuitWaitNanos() {
+    return circuitWaitNanos;
+  }
+
+  public long getRetries() {
+    return retries;
+  }
+
+  public long getAssociationCacheHits() {
+    return associationCacheHits;
+  }
+
+  public long getTotalApiCalls() {
+    return apiCalls.values().stream().mapToLong(Long::longValue).sum();
+  }
+
+  public Map<String, Long> getApiCalls() {
+    return apiCalls;
+  }
+
+  public Map<String, Long> getErrorCodes() {
+    return errorCodes;
+  }
+
+  public LatencyHistogram getDmlLatency() {
+    return dmlLatency;
+  }
+
+  public LatencyHistogram getResolveLatency() {
+    return resolveLatency;
+  }
+
+  public void merge(final TaskMetrics other) {
+    rowsSent += other.rowsSent;
+    rowsSucceeded += other.rowsSucceeded;
+    soqlQueries += other.soqlQueries;
+    requestBytes += other.requestBytes;
+    conversionNanos += other.conversionNanos;
+    errorWriteNanos += other.errorWriteNanos;
+    sizeLimitedBatches += other.sizeLimitedBatches;
+    circuitOpened += other.circuitOpened;
+    circuitClosed += other.circuitClosed;
+    circuitWaitNanos += other.circuitWaitNanos;
+    retries += other.retries;
+    associationCacheHits += other.associationCacheHits;
+    other.apiCalls.forEach((action, calls) -> apiCalls.merge(action, calls, Long::sum));
+    other.errorCodes.forEach((code, rows) -> errorCodes.merge(code, rows, Long::sum));
+    dmlLatency.merge(other.dmlLatency);
+    resolveLatency.merge(other.resolveLatency);
+  }
+
+  /** Returns an independent copy, which other threads may read while this task goes on. */
+  public TaskMetrics copy() {
+    final TaskMetrics copy = new TaskMetrics();
+    copy.merge(this);
+    return copy;
+  }
+
+  public String summary() {
+    return String.format(
+        "rows sent=%,d succeeded=%,d, api calls=%s, soql queries=%,d, request bytes=%,d"
+            + " (avg %,d per call, %,d size-limited batches), dml latency %s, resolve latency %s,"
+            + " conversion=%,dms, error writes=%,dms, circuit breaker opened=%,d closed=%,d"
+            + " waited=%,dms, retries=%,d, association cache hits=%,d, error codes=%s",
+        rowsSent,
+        rowsSucceeded,
+        apiCalls,
+        soqlQueries,
+        requestBytes,
+        getAverageRequestBytes(),
+        sizeLimitedBatches,
+        dmlLatency.summary(),
+        resolveLatency.summary(),
+        TimeUnit.NANOSECONDS.toMillis(conversionNanos),
+        TimeUnit.NANOSECONDS.toMillis(errorWriteNanos),
+        circuitOpened,
+        circuitClosed,
+        TimeUnit.NANOSECONDS.toMillis(circuitWaitNanos),
+        retries,
+        associationCacheHits,
+        errorCodes);
+  }
+
+  public TaskReport toTaskReport() {
+    final TaskReport report = CONFIG_MAPPER_FACTORY.newTaskReport();
+    report.set("rows_sent", rowsSent);
+    report.set("rows_succeeded", rowsSucceeded);
+    report.set("soql_queries", soqlQueries);
+    report.set("request_bytes", requestBytes);
+    report.set("avg_request_bytes", getAverageRequestBytes());
+    report.set("size_limited_batches", sizeLimitedBatches);
+    report.set("conversion_ms", TimeUnit.NANOSECONDS.toMillis(conversionNanos));
+    report.set("error_write_ms", TimeUnit.NANOSECONDS.toMillis(errorWriteNanos));
+    report.set("circuit_opened", circuitOpened);
+    report.set("circuit_closed", circuitClosed);
+    report.set("circuit_wait_ms", TimeUnit.NANOSECONDS.toMillis(circuitWaitNanos));
+    report.set("retries", retries);
+    report.set("association_cache_hits", associationCacheHits);
+    final TaskReport calls = CONFIG_MAPPER_FACTORY.newTaskReport();
+    apiCalls.forEach(calls::set);
+    report.setNested("api_calls", calls);
+    final TaskReport codes = CONFIG_MAPPER_FACTORY.newTaskReport();
+    errorCodes.forEach(codes::set);
+    report.setNested("error_codes", codes);
+    report.setNested("dml_latency", dmlLatency.toTaskReport());
+    report.setNested("resolve_latency", resolveLatency.toTaskReport());
+    return report;
+  }
+
+  public static TaskMetrics fromDataSource(final DataSource source) {
+    final TaskMetrics metrics = new TaskMetrics();
+    metrics.rowsSent = source.get(long.class, "rows_sent", 0L);
+    metrics.rowsSucceeded = source.get(long.class, "rows_succeeded", 0L);
+    metrics.soqlQueries = source.get(long.class, "soql_queries", 0L);
+    metrics.requestBytes = source.get(long.class, "request_bytes", 0L);
+    metrics.sizeLimitedBatches = source.get(long.class, "size_limited_batches", 0L);
+    metrics.conversionNanos =
+        TimeUnit.MILLISECONDS.toNanos(source.get(long.class, "conversion_ms", 0L));
+    metrics.errorWriteNanos =
+        TimeUnit.MILLISECONDS.toNanos(source.get(long.class, "error_write_ms", 0L));
+    metrics.circuitOpened = source.get(long.class, "circuit_opened", 0L);
+    metrics.circuitClosed = source.get(long.class, "circuit_closed", 0L);
+    metrics.circuitWaitNanos =
+        TimeUnit.MILLISECONDS.toNanos(source.get(long.class, "circuit_wait_ms", 0L));
+    metrics.retries = source.get(long.class, "retries", 0L);
+    metrics.associationCacheHits = source.get(long.class, "association_cache_hits", 0L);
+    final DataSource calls = source.getNestedOrGetEmpty("api_calls");
+    for (String action : calls.getAttributeNames()) {
+      metrics.apiCalls.put(action, calls.get(long.class, action));
+    }
+    final DataSource codes = source.getNestedOrGetEmpty("error_codes");
+    for (String code : codes.getAttributeNames()) {
+      metrics.errorCodes.put(code, codes.get(long.class, code));
+    }
+    metrics.dmlLatency.merge(
+        LatencyHistogram.fromDataSource(source.getNestedOrGetEmpty("dml_latency")));
+    metrics.resolveLatency.merge(
+        LatencyHistogram.fromDataSource(source.getNestedOrGetEmpty("resolve_latency")));
+    return metrics;
+  }
+}
@@ -0,0 +1,123 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.embulk.spi.Schema;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestAssociationResolver {
+  private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY =
+      ConfigMapperFactory.builder().addDefaultModules().build();
+
+  @After
+  public void clearCaches() {
+    AssociationResolver.clearCaches();
+  }
+
+  @Test
+  public void testResolveQueriesOnlyKeysMissingFromCache() throws ConnectionException {
+    PartnerConnection connection = connection();
+    QueryResult result = new QueryResult();
+    // SOQL matches External IDs case-insensitively; ext003 matches two records
+    result.setRecords(
+        new SObject[] {
+          account("001A", "EXT001"), account("001C", "ext003"), account("001D", "EXT003")
+        });
+    result.setDone(true);
+    when(connection.query(anyString())).thenReturn(result);
+    TaskMetrics metrics = new TaskMetrics();
+    AssociationResolver resolver =
+        new AssociationResolver(
+            connection,
+            task(),
+            new ErrorHandler(new Schema(Collections.emptyList())),
+            metrics,
+            SessionRefresher.none(connection),
+            BatchTrace.none());
+
+    SObject first = contact("ext001");
+    SObject missing = contact("ext002");
+    SObject ambiguous = contact("ext003");
+    SfIdResolver.ResolveResult resolved =
+        resolver.resolve(Arrays.asList(first, missing, ambiguous));
+
+    assertEquals(Collections.singletonList(first), resolved.getResolvedRecords());
+    assertEquals(2, resolved.getUnresolvedCount());
+    assertEquals("001A", first.getField("AccountId"));
+
+    // Another task of the JVM finds ext001 in the cache
+    SObject second = contact("ext001");
+    SfIdResolver.ResolveResult cached =
+        new AssociationResolver(
+                connection,
+                task(),
+                new ErrorHandler(new Schema(Collections.emptyList())),
+                metrics,
+                SessionRefresher.none(connection),
+                BatchTrace.none())
+            .resolve(Collections.singletonList(second));
+
+    assertEquals(Collections.singletonList(second), cached.getResolvedRecords());
+    assertEquals("001A", second.getField("AccountId"));
+    assertEquals(1, metrics.getAssociationCacheHits());
+    verify(connection, times(1)).query(anyString());
+  }
+
+  private static PartnerConnection connection() {
+    PartnerConnection connection = mock(PartnerConnection.class);
+    ConnectorConfig config = new ConnectorConfig();
+    config.setServiceEndpoint("https://example.my.salesforce.com/services/Soap/u/58.0");
+    when(connection.getConfig()).thenReturn(config);
+    return connection;
+  }
+
+  private static SObject account(String id, String key) {
+    SObject record = new SObject("Account");
+    record.setId(id);
+    record.addField("External_Id__c", key);
+    return record;
+  }
+
+  private static SObject contact(String accountKey) {
+    SObject record = new SObject("Contact");
+    record.setField("AccountId", accountKey);
+    return record;
+  }
+
+  private static PluginTask task() {
+    Map<String, String> assoc = new HashMap<>();
+    assoc.put("reference_field", "AccountId");
+    assoc.put("referenced_object", "Account");
+    assoc.put("unique_key", "External_Id__c");
+    assoc.put("source_column", "account_code");
+    return CONFIG_MAPPER_FACTORY
+        .createConfigMapper()
+        .map(
+            CONFIG_MAPPER_FACTORY
+                .newConfigSource()
+                .set("auth_method", "oauth")
+                .set("access_token", "token")
+                .set("server_url", "https://example.my.salesforce.com")
+                .set("object", "Contact")
+                .set("action_type", "insert")
+                .set("resolve_associations", true)
+                .set("associations", Arrays.asList(assoc)),
+            PluginTask.class);
+  }
+}
@@ -0,0 +1,69 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBatchTrace {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testRecord() throws IOException {
+    Path traceFile = tempFolder.getRoot().toPath().resolve("trace.jsonl");
+    BatchTrace trace = BatchTrace.open(traceFile.toString(), 2);
+    assertTrue(trace.isEnabled());
+
+    trace.addConversionNanos(TimeUnit.MICROSECONDS.toNanos(1500));
+    trace.addConversionNanos(TimeUnit.MICROSECONDS.toNanos(1000));
+    trace.record(
+        "upsert",
+        200,
+        40000,
+        TimeUnit.MILLISECONDS.toNanos(5),
+        TimeUnit.MILLISECONDS.toNanos(812),
+        3,
+        Collections.singletonMap("REQUIRED_FIELD_MISSING", 3L));
+    trace.record("query", 10, 300, 0, TimeUnit.MILLISECONDS.toNanos(40), 0, Collections.emptyMap());
+    trace.close();
+
+    List<String> lines = Files.readAllLines(traceFile.resolveSibling("trace.jsonl_task002.jsonl"));
+    assertEquals(2, lines.size());
+    JsonObject upsert = new JsonParser().parse(lines.get(0)).getAsJsonObject();
+    assertEquals(2, upsert.get("task_index").getAsInt());
+    assertEquals("upsert", upsert.get("action").getAsString());
+    assertEquals(200, upsert.get("rows").getAsLong());
+    assertEquals(40000, upsert.get("bytes").getAsLong());
+    assertEquals(2.5, upsert.get("conversion_ms").getAsDouble(), 0);
+    assertEquals(5.0, upsert.get("queue_wait_ms").getAsDouble(), 0);
+    assertEquals(812.0, upsert.get("network_ms").getAsDouble(), 0);
+    assertEquals(197, upsert.get("succeeded").getAsLong());
+    assertEquals(3, upsert.get("failed").getAsLong());
+    assertEquals(
+        3, upsert.getAsJsonObject("error_codes").get("REQUIRED_FIELD_MISSING").getAsLong());
+    assertTrue(upsert.has("time"));
+
+    // The conversion time is attributed to the next call only
+    JsonObject query = new JsonParser().parse(lines.get(1)).getAsJsonObject();
+    assertEquals(0.0, query.get("conversion_ms").getAsDouble(), 0);
+  }
+
+  @Test
+  public void testNoneWritesNothing() {
+    BatchTrace trace = BatchTrace.none();
+    assertFalse(trace.isEnabled());
+    trace.record("create", 1, 1, 0, 0, 0, Collections.emptyMap());
+    trace.close();
+  }
+}
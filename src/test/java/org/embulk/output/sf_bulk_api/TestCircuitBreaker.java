@@ -0,0 +1,91 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+import com.sforce.ws.ConnectionException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class TestCircuitBreaker {
+  private final AtomicLong clock = new AtomicLong(1000000L);
+  private final TaskMetrics metrics = new TaskMetrics();
+
+  @Test
+  public void testOpensAfterConsecutiveOutagesAndClosesOnProbe() throws ConnectionException {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000, clock::get);
+
+    fail(breaker, timeout());
+    assertEquals("ok", breaker.call(() -> "ok", metrics));
+    // A success in between resets the count
+    fail(breaker, timeout());
+    assertFalse(breaker.isOpen());
+    fail(breaker, timeout());
+    assertTrue(breaker.isOpen());
+    assertEquals(1, metrics.getCircuitOpened());
+
+    clock.addAndGet(60000);
+    assertEquals("ok", breaker.call(() -> "ok", metrics));
+    assertFalse(breaker.isOpen());
+    assertEquals(1, metrics.getCircuitClosed());
+  }
+
+  @Test
+  public void testFailedProbeOpensAgain() throws ConnectionException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 60000, clock::get);
+
+    fail(breaker, fault(ExceptionCode.SERVER_UNAVAILABLE));
+    assertTrue(breaker.isOpen());
+
+    clock.addAndGet(60000);
+    fail(breaker, timeout());
+    assertTrue(breaker.isOpen());
+    assertEquals(2, metrics.getCircuitOpened());
+    assertEquals(0, metrics.getCircuitClosed());
+  }
+
+  @Test
+  public void testFaultsAnsweredBySalesforceDoNotCount() throws ConnectionException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 60000, clock::get);
+
+    fail(breaker, fault(ExceptionCode.INVALID_FIELD));
+    assertFalse(breaker.isOpen());
+    assertFalse(CircuitBreaker.isOutage(fault(ExceptionCode.INVALID_SESSION_ID)));
+    assertTrue(CircuitBreaker.isOutage(timeout()));
+  }
+
+  @Test
+  public void testNone() throws ConnectionException {
+    CircuitBreaker breaker = CircuitBreaker.none();
+    for (int i = 0; i < 10; i++) {
+      fail(breaker, timeout());
+    }
+    assertFalse(breaker.isOpen());
+  }
+
+  private void fail(CircuitBreaker breaker, ConnectionException exception) {
+    assertThrows(
+        ConnectionException.class,
+        () ->
+            breaker.call(
+                () -> {
+                  throw exception;
+                },
+                metrics));
+  }
+
+  private ConnectionException timeout() {
+    return new ConnectionException("Failed to send request", new SocketTimeoutException());
+  }
+
+  private ApiFault fault(ExceptionCode code) {
+    ApiFault fault = new ApiFault();
+    fault.setExceptionCode(code);
+    return fault;
+  }
+}
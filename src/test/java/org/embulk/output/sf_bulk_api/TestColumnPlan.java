@@ -0,0 +1,153 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import com.sforce.soap.partner.sobject.SObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.type.Types;
+import org.junit.Test;
+
+public class TestColumnPlan {
+  private static final ObjectMetadata CONTACT =
+      ObjectMetadata.fromJson(
+          "{\"name\":\"Contact\",\"fetched_at\":0,\"fields\":["
+              + "{\"name\":\"NumberOfEmployees\",\"type\":\"int\"},"
+              + "{\"name\":\"Amount__c\",\"type\":\"currency\",\"scale\":2},"
+              + "{\"name\":\"Code__c\",\"type\":\"string\",\"length\":5},"
+              + "{\"name\":\"Birthdate\",\"type\":\"date\"},"
+              + "{\"name\":\"LastSeen__c\",\"type\":\"datetime\"},"
+              + "{\"name\":\"Level__c\",\"type\":\"picklist\","
+              + "\"picklist_values\":[\"Primary\",\"Secondary\"]},"
+              + "{\"name\":\"Tags__c\",\"type\":\"multipicklist\","
+              + "\"picklist_values\":[\"Red\",\"Blue\"]},"
+              + "{\"name\":\"AccountId\",\"type\":\"reference\"}"
+              + "]}");
+
+  private final PageReader pageReader = mock(PageReader.class);
+
+  @Test
+  public void testNumbers() {
+    final Column count = new Column(0, "NumberOfEmployees", Types.LONG);
+    final Column amount = new Column(1, "Amount__c", Types.DOUBLE);
+    final Column code = new Column(2, "Code__c", Types.LONG);
+    doReturn(42L).when(pageReader).getLong(count);
+    doReturn(12.346).when(pageReader).getDouble(amount);
+    doReturn(123L).when(pageReader).getLong(code);
+
+    final SObject record = encode(count, amount, code);
+
+    assertEquals(42, record.getField("NumberOfEmployees"));
+    assertEquals(12.35, record.getField("Amount__c"));
+    assertEquals("123", record.getField("Code__c"));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testRoundingLargeValues() {
+    // 1e11 * 10^8 does not fit in a long
+    assertEquals(1.0e11, ColumnPlan.round(1.0e11, 8), 0.0);
+    assertEquals(123456789012.35, ColumnPlan.round(123456789012.345, 2), 0.0);
+    assertEquals(1.23456789, ColumnPlan.round(1.234567891, 8), 0.0);
+    assertEquals(-2.5, ColumnPlan.round(-2.45, 1), 0.0);
+    assertTrue(Double.isNaN(ColumnPlan.round(Double.NaN, 2)));
+  }
+
+  @Test
+  public void testTimestamps() {
+    final Column birthdate = new Column(0, "Birthdate", Types.TIMESTAMP);
+    final Column lastSeen = new Column(1, "LastSeen__c", Types.TIMESTAMP);
+    final org.embulk.spi.time.Timestamp timestamp =
+        org.embulk.spi.time.Timestamp.ofEpochMilli(1700000000123L);
+    doReturn(timestamp).when(pageReader).getTimestamp(birthdate);
+    doReturn(timestamp).when(pageReader).getTimestamp(lastSeen);
+
+    final SObject record = encode(birthdate, lastSeen);
+
+    assertEquals("2023-11-14", record.getField("Birthdate"));
+    assertEquals("2023-11-14T22:13:20.123Z", record.getField("LastSeen__c"));
+  }
+
+  @Test
+  public void testTextTruncationAndPicklists() {
+    final Column code = new Column(0, "Code__c", Types.STRING);
+    final Column level = new Column(1, "Level__c", Types.STRING);
+    final Column tags = new Column(2, "Tags__c", Types.STRING);
+    doReturn("ABCDEFG").when(pageReader).getString(code);
+    doReturn(" primary ").when(pageReader).getString(level);
+    doReturn("blue;RED;Green").when(pageReader).getString(tags);
+
+    final SObject record = encode(code, level, tags);
+
+    assertEquals("ABCDE", record.getField("Code__c"));
+    assertEquals("Primary", record.getField("Level__c"));
+    assertEquals("Blue;Red;Green", record.getField("Tags__c"));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testUnknownFieldKeepsEmbulkTypeMapping() {
+    final Column count = new Column(0, "Other__c", Types.LONG);
+    final Column timestamp = new Column(1, "When__c", Types.TIMESTAMP);
+    doReturn(1L).when(pageReader).getLong(count);
+    doReturn(org.embulk.spi.time.Timestamp.ofEpochMilli(100))
+        .when(pageReader)
+        .getTimestamp(timestamp);
+
+    final SObject record = encode(count, timestamp);
+
+    assertEquals(1.0, record.getField("Other__c"));
+    assertEquals(100L, ((Calendar) record.getField("When__c")).getTimeInMillis());
+  }
+
+  @Test
+  public void testNulls() {
+    final Column code = new Column(0, "Code__c", Types.STRING);
+    doReturn(true).when(pageReader).isNull(code);
+
+    final List<String> nulls = new ArrayList<>();
+    new ColumnPlan(Arrays.asList(code), CONTACT, false, true)
+        .encode(pageReader, new SObject(), nulls);
+    assertEquals(Arrays.asList("Code__c"), nulls);
+
+    nulls.clear();
+    new ColumnPlan(Arrays.asList(code), CONTACT, true, true)
+        .encode(pageReader, new SObject(), nulls);
+    assertTrue(nulls.isEmpty());
+  }
+
+  @Test
+  public void testEmptyLookupIsNull() {
+    final Column account = new Column(0, "AccountId", Types.STRING);
+    doReturn("").when(pageReader).getString(account);
+
+    final SObject record = new SObject();
+    final List<String> nulls = new ArrayList<>();
+    new ColumnPlan(Arrays.asList(account), CONTACT, false, true)
+        .encode(pageReader, record, nulls);
+    assertEquals(Arrays.asList("AccountId"), nulls);
+    assertNull(record.getField("AccountId"));
+  }
+
+  @Test
+  public void testTruncateKeepsSurrogatePairs() {
+    assertEquals("a\uD83D\uDE00", ColumnPlan.truncate("a\uD83D\uDE00b", 2));
+    assertEquals("abc", ColumnPlan.truncate("abc", 5));
+  }
+
+  private SObject encode(final Column... columns) {
+    final SObject record = new SObject();
+    final List<String> nulls = new ArrayList<>();
+    new ColumnPlan(Arrays.asList(columns), CONTACT, false, true)
+        .encode(pageReader, record, nulls);
+    assertTrue(nulls.isEmpty());
+    return record;
+  }
+}
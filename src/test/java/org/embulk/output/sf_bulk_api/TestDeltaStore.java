@@ -0,0 +1,60 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestDeltaStore {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    Path path = tempFolder.getRoot().toPath().resolve("delta.bin");
+    DeltaStore store = new DeltaStore(path);
+    store.put("key1", 100L);
+    store.put("key2", -1L);
+    store.save();
+
+    DeltaStore reloaded = new DeltaStore(path);
+
+    assertEquals(2, reloaded.size());
+    assertTrue(reloaded.isUnchanged("key1", 100L));
+    assertTrue(reloaded.isUnchanged("key2", -1L));
+    assertFalse(reloaded.isUnchanged("key1", 101L));
+    assertFalse(reloaded.isUnchanged("key3", 100L));
+  }
+
+  @Test
+  public void testReleaseReloadsFile() throws IOException {
+    String path = tempFolder.getRoot().toPath().resolve("released.bin").toString();
+    DeltaStore store = DeltaStore.open(path);
+    store.put("key1", 100L);
+
+    assertSame(store, DeltaStore.open(path));
+
+    // Never saved, so the next transaction starts from the missing file
+    DeltaStore.release(path);
+    assertEquals(0, DeltaStore.open(path).size());
+    DeltaStore.release(path);
+  }
+
+  @Test
+  public void testRowHasher() {
+    DeltaStore.RowHasher hasher = new DeltaStore.RowHasher();
+
+    long hash = hasher.hash(Arrays.asList("a", "b", null));
+
+    assertEquals(hash, hasher.hash(Arrays.asList("a", "b", null)));
+    assertNotEquals(hash, hasher.hash(Arrays.asList("a", "b", "")));
+    assertNotEquals(hash, hasher.hash(Arrays.asList("ab", null, null)));
+  }
+}
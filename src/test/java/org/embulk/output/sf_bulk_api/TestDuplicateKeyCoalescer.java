@@ -0,0 +1,110 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.sforce.soap.partner.sobject.SObject;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TestDuplicateKeyCoalescer {
+  private static final String KEY = "External_Id__c";
+
+  @Test
+  public void testNoDuplicates() {
+    SObject a = newRecord("a", "Name", "A");
+    SObject b = newRecord("b", "Name", "B");
+
+    DuplicateKeyCoalescer.Result result = coalesce(DuplicateKeyHandling.last_wins, a, b);
+
+    assertEquals(Arrays.asList(a, b), result.getRecords());
+    assertEquals(0, result.getDropped().size());
+  }
+
+  @Test
+  public void testLastWins() {
+    SObject first = newRecord("a", "Name", "first");
+    SObject other = newRecord("b", "Name", "other");
+    SObject last = newRecord("a", "Name", "last");
+
+    DuplicateKeyCoalescer.Result result =
+        coalesce(DuplicateKeyHandling.last_wins, first, other, last);
+
+    assertEquals(Arrays.asList(last, other), result.getRecords());
+    assertEquals(Arrays.asList(first), result.getDropped());
+    assertEquals(Arrays.asList(first, last), result.getGroups().get(last));
+    assertEquals(1, result.getGroups().size());
+    assertEquals(1, result.getCoalescedCount());
+  }
+
+  @Test
+  public void testFirstWins() {
+    SObject first = newRecord("a", "Name", "first");
+    SObject last = newRecord("a", "Name", "last");
+
+    DuplicateKeyCoalescer.Result result = coalesce(DuplicateKeyHandling.first_wins, first, last);
+
+    assertEquals(Arrays.asList(first), result.getRecords());
+    assertEquals(Arrays.asList(last), result.getDropped());
+  }
+
+  @Test
+  public void testMerge() {
+    SObject first = newRecord("a", "Name", "first");
+    first.addField("Phone", "000");
+    SObject last = newRecord("a", "Name", "last");
+    last.setFieldsToNull(new String[] {"Phone"});
+    last.addField("Email", "a@example.com");
+
+    DuplicateKeyCoalescer.Result result = coalesce(DuplicateKeyHandling.merge, first, last);
+
+    assertEquals(1, result.getRecords().size());
+    SObject merged = result.getRecords().get(0);
+    assertEquals("a", merged.getField(KEY));
+    assertEquals("last", merged.getField("Name"));
+    assertEquals("a@example.com", merged.getField("Email"));
+    assertArrayEquals(new String[] {"Phone"}, merged.getFieldsToNull());
+    assertEquals(2, result.getDropped().size());
+    assertEquals(Arrays.asList(first, last), result.getGroups().get(merged));
+    // Two rows became one
+    assertEquals(1, result.getCoalescedCount());
+  }
+
+  @Test
+  public void testDefer() {
+    SObject first = newRecord("a", "Name", "first");
+    SObject second = newRecord("a", "Name", "second");
+    SObject third = newRecord("a", "Name", "third");
+
+    DuplicateKeyCoalescer.Result result =
+        coalesce(DuplicateKeyHandling.defer, first, second, third);
+
+    assertEquals(Arrays.asList(first), result.getRecords());
+    assertEquals(Arrays.asList(second, third), result.getDeferred());
+  }
+
+  @Test
+  public void testRecordWithoutKeyIsSentAsIs() {
+    SObject noKey = new SObject("Account");
+    noKey.addField("Name", "no key");
+
+    DuplicateKeyCoalescer.Result result = coalesce(DuplicateKeyHandling.last_wins, noKey);
+
+    assertSame(noKey, result.getRecords().get(0));
+  }
+
+  private DuplicateKeyCoalescer.Result coalesce(
+      DuplicateKeyHandling handling, SObject... records) {
+    List<SObject> batch = Arrays.asList(records);
+    return new DuplicateKeyCoalescer(handling, KEY).coalesce(batch);
+  }
+
+  private SObject newRecord(String key, String field, String value) {
+    SObject record = new SObject("Account");
+    record.addField(KEY, key);
+    record.addField(field, value);
+    return record;
+  }
+}
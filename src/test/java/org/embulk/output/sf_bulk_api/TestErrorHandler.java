@@ -21,7 +21,10 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
 import org.embulk.spi.Column;
 import org.embulk.spi.Schema;
 import org.embulk.spi.type.Types;
@@ -294,6 +297,73 @@ public class TestErrorHandler {
     assertTrue(!Files.exists(taskFilePath2));
   }
 
+  @Test
+  public void testErrorFileIsCreatedOnFirstFailure() throws IOException {
+    ErrorHandler handler = new ErrorHandler(schema, errorFilePath.toString(), 6);
+    Path taskFilePath = Paths.get(errorFilePath.toString() + "_task006.jsonl");
+
+    handler.handleErrors(
+        Arrays.asList(createTestSObject("12", "Ok", "ok@example.com", true, 1.0)),
+        new SaveResult[] {createSuccessSaveResult()});
+    assertTrue(!Files.exists(taskFilePath));
+
+    handler.handleIdResolveError(
+        createTestSObject("13", "Ng", "ng@example.com", true, 1.0), "No record found");
+    handler.close();
+    assertEquals(1, Files.readAllLines(taskFilePath).size());
+  }
+
+  @Test
+  public void testTimestampEncodedAsString() throws IOException {
+    List<Column> columns = new ArrayList<>();
+    columns.add(new Column(0, "birthdate", Types.TIMESTAMP));
+    columns.add(new Column(1, "last_seen", Types.TIMESTAMP));
+    ErrorHandler handler = new ErrorHandler(new Schema(columns), errorFilePath.toString(), 7);
+    SObject sObject = new SObject();
+    sObject.setType("Contact");
+    // ColumnPlan sends date and datetime fields as ISO-8601 strings, not as Calendar
+    sObject.setField("birthdate", "2023-11-14");
+    Calendar lastSeen = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    lastSeen.setTimeInMillis(1700000000123L);
+    sObject.setField("last_seen", lastSeen);
+
+    handler.handleIdResolveError(sObject, "No record found");
+    handler.close();
+
+    JsonObject recordData =
+        new JsonParser()
+            .parse(
+                Files.readAllLines(Paths.get(errorFilePath.toString() + "_task007.jsonl")).get(0))
+            .getAsJsonObject()
+            .getAsJsonObject("record_data");
+    assertEquals("2023-11-14", recordData.get("birthdate").getAsString());
+    assertEquals(
+        org.embulk.spi.time.Timestamp.ofEpochMilli(1700000000123L).toString(),
+        recordData.get("last_seen").getAsString());
+  }
+
+  @Test
+  public void testTakeFailedRecords() {
+    ErrorHandler handler = new ErrorHandler(schema);
+
+    SObject succeeded = createTestSObject("10", "Ok", "ok@example.com", true, 1.0);
+    SObject rejected = createTestSObject("11", "Ng", "ng@example.com", true, 2.0);
+    SaveResult[] results = {
+      createSuccessSaveResult(),
+      createFailedSaveResult(StatusCode.REQUIRED_FIELD_MISSING, "Required", new String[] {"Name"})
+    };
+    handler.handleErrors(Arrays.asList(succeeded, rejected), results);
+
+    Set<SObject> failedRecords = handler.takeFailedRecords();
+    assertEquals(1, failedRecords.size());
+    assertTrue(failedRecords.contains(rejected));
+    // Taking the failed records forgets them
+    assertTrue(handler.takeFailedRecords().isEmpty());
+
+    handler.handleIdResolveError(succeeded, "No record found");
+    assertTrue(handler.takeFailedRecords().contains(succeeded));
+  }
+
   private SObject createTestSObject(
       String id, String name, String email, boolean active, double score) {
     SObject obj = new SObject();
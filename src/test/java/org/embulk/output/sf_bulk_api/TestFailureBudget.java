@@ -0,0 +1,50 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Optional;
+import org.junit.Test;
+
+public class TestFailureBudget {
+  @Test
+  public void testMaxFailures() {
+    FailureBudget budget = new FailureBudget(Optional.of(2L), Optional.empty(), 1000);
+
+    assertFalse(budget.record(10, 2, 10, 2));
+    assertTrue(budget.record(10, 1, 10, 1));
+    assertEquals("3 failures in all tasks exceed max_failures 2", budget.getExceededReason().get());
+    // Once exceeded, it stays exceeded
+    assertTrue(budget.record(10, 0, 20, 1));
+  }
+
+  @Test
+  public void testMaxFailureRatioWaitsForMinRows() {
+    FailureBudget budget = new FailureBudget(Optional.empty(), Optional.of(0.5), 100);
+
+    assertFalse(budget.record(50, 50, 50, 50));
+    assertTrue(budget.record(50, 10, 100, 60));
+    assertEquals(
+        "60 failures out of 100 rows in all tasks exceed max_failure_ratio 0.5",
+        budget.getExceededReason().get());
+  }
+
+  @Test
+  public void testMaxFailureRatioPerTask() {
+    FailureBudget budget = new FailureBudget(Optional.empty(), Optional.of(0.5), 10);
+
+    // Another task has sent 1000 rows without failures
+    assertFalse(budget.record(1000, 0, 1000, 0));
+    assertTrue(budget.record(10, 10, 10, 10));
+    assertTrue(budget.getExceededReason().get().contains("in a task"));
+  }
+
+  @Test
+  public void testUnlimited() {
+    FailureBudget budget = new FailureBudget(Optional.empty(), Optional.empty(), 1);
+
+    assertFalse(budget.record(200, 200, 200, 200));
+    assertFalse(budget.getExceededReason().isPresent());
+  }
+}
@@ -0,0 +1,59 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFlightRecorderEvents {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testNoOpWithoutRecording() {
+    // Nothing is recording, so the shared no-op spans are returned
+    assertEquals(FlightRecorderEvents.NO_ACTION, FlightRecorderEvents.beginAction());
+    assertEquals(FlightRecorderEvents.NO_RESOLVE, FlightRecorderEvents.beginResolve());
+  }
+
+  @Test
+  public void testEventsAreRecorded() throws IOException {
+    assumeTrue(FlightRecorderEvents.isAvailable());
+    Path file = tempFolder.getRoot().toPath().resolve("recording.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("org.embulk.output.sf_bulk_api.Action");
+      recording.enable("org.embulk.output.sf_bulk_api.Resolve");
+      recording.start();
+      FlightRecorderEvents.beginAction().end("upsert", 200, 3);
+      FlightRecorderEvents.beginResolve().end("Account", 200, 1, 2, 5);
+      recording.stop();
+      recording.dump(file);
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+    RecordedEvent action = single(events, "org.embulk.output.sf_bulk_api.Action");
+    assertEquals("upsert", action.getString("action"));
+    assertEquals(200, action.getLong("rows"));
+    assertEquals(3, action.getLong("failures"));
+    RecordedEvent resolve = single(events, "org.embulk.output.sf_bulk_api.Resolve");
+    assertEquals("Account", resolve.getString("object"));
+    assertEquals(2, resolve.getLong("queryMorePages"));
+  }
+
+  private RecordedEvent single(List<RecordedEvent> events, String name) {
+    List<RecordedEvent> matched =
+        events.stream()
+            .filter(event -> event.getEventType().getName().equals(name))
+            .collect(Collectors.toList());
+    assertEquals(1, matched.size());
+    return matched.get(0);
+  }
+}
@@ -2,17 +2,24 @@ package org.embulk.output.sf_bulk_api;
 
 import static org.embulk.output.sf_bulk_api.Util.actionRequestBody;
 import static org.embulk.output.sf_bulk_api.Util.mockActionSuccessResponse;
+import static org.embulk.output.sf_bulk_api.Util.mockFaultResponse;
 import static org.embulk.output.sf_bulk_api.Util.mockResponse;
 import static org.embulk.output.sf_bulk_api.Util.readResource;
 import static org.embulk.output.sf_bulk_api.Util.toStringFromGZip;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
+import com.sforce.soap.partner.fault.ApiFault;
 import com.sforce.soap.partner.sobject.SObject;
 import com.sforce.ws.ConnectionException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import okhttp3.mockwebserver.MockWebServer;
 import org.embulk.config.ConfigSource;
 import org.embulk.spi.Schema;
@@ -108,6 +115,178 @@ public class TestForceClient {
         readResource("loginRequestBody.xml"), toStringFromGZip(mockWebServer.takeRequest()));
   }
 
+  @Test
+  public void testCallHeaders() throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockActionSuccessResponse("insert", 2));
+
+    ConfigSource config =
+        Util.newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("update_mru", true)
+            .set("all_or_none", true);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+    new ForceClient(task, new ErrorHandler(new Schema(Collections.emptyList())))
+        .action(newRecords(2));
+
+    mockWebServer.takeRequest();
+    String body = toStringFromGZip(mockWebServer.takeRequest());
+    assertTrue(body.contains("<updateMru>true</updateMru>"));
+    assertTrue(body.contains("<allOrNone>true</allOrNone>"));
+    assertFalse(body.contains("DuplicateRuleHeader"));
+  }
+
+  @Test
+  public void testSessionRefresh() throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockFaultResponse("INVALID_SESSION_ID", "Session expired"));
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockActionSuccessResponse("insert", 2));
+
+    assertEquals(0, newForceClient("insert").action(newRecords(2)));
+
+    // login, insert rejected for the session, login again, replayed insert
+    assertEquals(4, mockWebServer.getRequestCount());
+    mockWebServer.takeRequest();
+    String rejected = toStringFromGZip(mockWebServer.takeRequest());
+    assertEquals(
+        readResource("loginRequestBody.xml"), toStringFromGZip(mockWebServer.takeRequest()));
+    assertEquals(rejected, toStringFromGZip(mockWebServer.takeRequest()));
+  }
+
+  @Test
+  public void testCircuitBreakerProbesWithSmallCall()
+      throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockFaultResponse("SERVER_UNAVAILABLE", "Service unavailable"));
+    mockWebServer.enqueue(mockActionSuccessResponse("insert", 1));
+    mockWebServer.enqueue(mockActionSuccessResponse("insert", 1));
+
+    ConfigSource config =
+        Util.newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("circuit_breaker_threshold", 1)
+            .set("circuit_breaker_pause", 0);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+    TaskMetrics metrics = new TaskMetrics();
+    ForceClient client =
+        new ForceClient(task, new ErrorHandler(new Schema(Collections.emptyList())), metrics);
+
+    assertThrows(ApiFault.class, () -> client.action(newRecords(2)));
+    assertEquals(1, metrics.getCircuitOpened());
+    assertEquals(0, client.action(newRecords(2)));
+    assertEquals(1, metrics.getCircuitClosed());
+
+    // login, failed insert, probe with a single record, then the rest of the batch
+    assertEquals(4, mockWebServer.getRequestCount());
+    mockWebServer.takeRequest();
+    mockWebServer.takeRequest();
+    assertTrue(toStringFromGZip(mockWebServer.takeRequest()).contains("id0"));
+    String rest = toStringFromGZip(mockWebServer.takeRequest());
+    assertTrue(rest.contains("id1"));
+    assertFalse(rest.contains("id0"));
+  }
+
+  @Test
+  public void testFaultAfterProbeFailsOnlyTheRest()
+      throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockFaultResponse("SERVER_UNAVAILABLE", "Service unavailable"));
+    mockWebServer.enqueue(mockActionSuccessResponse("insert", 1));
+    mockWebServer.enqueue(mockFaultResponse("UNKNOWN_EXCEPTION", "insert failed"));
+
+    ConfigSource config =
+        Util.newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("circuit_breaker_threshold", 1)
+            .set("circuit_breaker_pause", 0);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+    ErrorHandler errorHandler = new ErrorHandler(new Schema(Collections.emptyList()));
+    ForceClient client = new ForceClient(task, errorHandler);
+
+    assertThrows(ApiFault.class, () -> client.action(newRecords(3)));
+    List<SObject> records = newRecords(3);
+
+    // The probe record was written; only the other two fail
+    assertEquals(2, client.action(records));
+    assertEquals(
+        new HashSet<>(records.subList(1, 3)), new HashSet<>(errorHandler.takeFailedRecords()));
+  }
+
+  @Test
+  public void testUpsertByQueryRoutesMatchedAndUnmatchedRecords()
+      throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockQueryResponse("001000000000000001", "k0"));
+    mockWebServer.enqueue(Util.mockUpdateResponse(new Boolean[] {true}));
+    mockWebServer.enqueue(Util.mockInsertResponse(new Boolean[] {true}));
+
+    assertEquals(0, newForceClient("upsert_by_query").action(newKeyedRecords(2)));
+
+    // login, query, update of the matched record, create of the other one
+    assertEquals(4, mockWebServer.getRequestCount());
+    mockWebServer.takeRequest();
+    mockWebServer.takeRequest();
+    String update = toStringFromGZip(mockWebServer.takeRequest());
+    assertTrue(update.contains("<m:update "));
+    assertTrue(update.contains("001000000000000001"));
+    assertTrue(update.contains("k0"));
+    assertFalse(update.contains("k1"));
+    String create = toStringFromGZip(mockWebServer.takeRequest());
+    assertTrue(create.contains("<m:create "));
+    assertTrue(create.contains("k1"));
+    assertFalse(create.contains("k0"));
+  }
+
+  @Test
+  public void testUpsertByQueryFaultFailsOnlyItsCall()
+      throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockQueryResponse("001000000000000001", "k0"));
+    mockWebServer.enqueue(Util.mockUpdateResponse(new Boolean[] {true}));
+    mockWebServer.enqueue(mockFaultResponse("UNKNOWN_EXCEPTION", "create failed"));
+
+    ErrorHandler errorHandler = new ErrorHandler(new Schema(Collections.emptyList()));
+    List<SObject> records = newKeyedRecords(2);
+    long failures =
+        new ForceClient(newTask("upsert_by_query", Optional.empty()), errorHandler)
+            .action(records);
+
+    // Only the created record failed; the updated one is not counted again.
+    assertEquals(1, failures);
+    assertEquals(Collections.singleton(records.get(1)), errorHandler.takeFailedRecords());
+  }
+
+  @Test
+  public void testUpsertByQueryChecksRequiredFieldsOfCreatedRecords()
+      throws ConnectionException, InterruptedException, IOException {
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockQueryResponse("001000000000000001", "k0"));
+    mockWebServer.enqueue(Util.mockUpdateResponse(new Boolean[] {true}));
+
+    // "test" is required but only updated records may leave it out
+    String metadata =
+        "{\"name\":\"object__c\",\"fetched_at\":0,\"fields\":["
+            + "{\"name\":\"key\",\"type\":\"string\",\"createable\":true,\"nillable\":true},"
+            + "{\"name\":\"test\",\"type\":\"string\",\"createable\":true}"
+            + "]}";
+    ErrorHandler errorHandler = new ErrorHandler(new Schema(Collections.emptyList()));
+    List<SObject> records = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      SObject record = new SObject(Util.OBJECT);
+      record.addField("key", String.format("k%d", i));
+      records.add(record);
+    }
+    long failures =
+        new ForceClient(newTask("upsert_by_query", Optional.of(metadata)), errorHandler)
+            .action(records);
+
+    // login, query and update; the record to create is rejected without a call
+    assertEquals(1, failures);
+    assertEquals(3, mockWebServer.getRequestCount());
+    assertEquals(Collections.singleton(records.get(1)), errorHandler.takeFailedRecords());
+  }
+
   private void testAction(String actionType)
       throws ConnectionException, InterruptedException, IOException {
     mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
@@ -137,6 +316,12 @@ public class TestForceClient {
     return new ForceClient(task, new ErrorHandler(schema));
   }
 
+  private PluginTask newTask(String actionType, Optional<String> objectMetadata) {
+    ConfigSource config = Util.newDefaultConfigSource(mockWebServer).set("action_type", actionType);
+    objectMetadata.ifPresent(metadata -> config.set("object_metadata", metadata));
+    return CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+  }
+
   private ForceClient newDeleteForceClient(String deleteKey) throws ConnectionException {
     ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
     ConfigSource config =
@@ -159,4 +344,15 @@ public class TestForceClient {
     }
     return records;
   }
+
+  private List<SObject> newKeyedRecords(int count) {
+    List<SObject> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      SObject record = new SObject(Util.OBJECT);
+      record.addField("key", String.format("k%d", i));
+      record.addField("test", String.format("test%d", i));
+      records.add(record);
+    }
+    return records;
+  }
 }
@@ -0,0 +1,126 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMetricsTextfile {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testRender() {
+    TaskMetrics metrics = new TaskMetrics();
+    metrics.recordBatch(200, 3);
+    metrics.recordDmlCall("upsert", TimeUnit.MILLISECONDS.toNanos(40), 1000);
+    metrics.recordDmlCall("upsert", TimeUnit.MILLISECONDS.toNanos(3000), 1000);
+    metrics.recordQueryCall("query", TimeUnit.MILLISECONDS.toNanos(30));
+    metrics.recordRetry();
+    metrics.addCircuitWaitNanos(TimeUnit.MILLISECONDS.toNanos(1500));
+    metrics.setErrorCodes(Collections.singletonMap("REQUIRED_FIELD_MISSING", 3L));
+
+    List<String> lines = lines(MetricsTextfile.render(metrics, 2));
+
+    assertTrue(lines.contains("# TYPE sf_bulk_api_rows_total counter"));
+    assertTrue(lines.contains("sf_bulk_api_rows_total{outcome=\"succeeded\"} 197"));
+    assertTrue(lines.contains("sf_bulk_api_rows_total{outcome=\"failed\"} 3"));
+    assertTrue(lines.contains("sf_bulk_api_api_calls_total{call=\"upsert\"} 2"));
+    assertTrue(lines.contains("sf_bulk_api_api_calls_total{call=\"query\"} 1"));
+    assertTrue(lines.contains("sf_bulk_api_soql_queries_total 1"));
+    assertTrue(lines.contains("# TYPE sf_bulk_api_dml_latency_seconds histogram"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_bucket{le=\"0.025\"} 0"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_bucket{le=\"0.05\"} 1"));
+    // Buckets are cumulative
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_bucket{le=\"2.5\"} 1"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_bucket{le=\"5\"} 2"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_bucket{le=\"+Inf\"} 2"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_sum 3.04"));
+    assertTrue(lines.contains("sf_bulk_api_dml_latency_seconds_count 2"));
+    assertTrue(lines.contains("sf_bulk_api_resolve_latency_seconds_count 1"));
+    assertTrue(lines.contains("sf_bulk_api_retries_total 1"));
+    assertTrue(lines.contains("sf_bulk_api_throttle_seconds_total 1.5"));
+    assertTrue(lines.contains("sf_bulk_api_errors_total{code=\"REQUIRED_FIELD_MISSING\"} 3"));
+    assertTrue(lines.contains("sf_bulk_api_active_tasks 2"));
+  }
+
+  @Test
+  public void testLastTaskWritesTotalsAtomically() throws IOException {
+    Path file = tempFolder.getRoot().toPath().resolve("sf_bulk_api.prom");
+    MetricsTextfile textfile = new MetricsTextfile(file);
+    Object task0 = new Object();
+    Object task1 = new Object();
+    textfile.taskStarted(task0, "t1", 0);
+    textfile.taskStarted(task1, "t1", 0);
+
+    TaskMetrics metrics0 = new TaskMetrics();
+    metrics0.recordBatch(100, 1);
+    textfile.publish(task0, metrics0);
+    // The published copy does not follow later changes of the task
+    metrics0.recordBatch(100, 0);
+    assertEquals(100, textfile.total().getRowsSent());
+
+    TaskMetrics metrics1 = new TaskMetrics();
+    metrics1.recordBatch(50, 0);
+    textfile.taskFinished(task1, metrics1);
+    assertFalse(Files.exists(file));
+
+    textfile.taskFinished(task0, metrics0);
+    List<String> lines = lines(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    assertTrue(lines.contains("sf_bulk_api_rows_total{outcome=\"succeeded\"} 249"));
+    assertTrue(lines.contains("sf_bulk_api_rows_total{outcome=\"failed\"} 1"));
+    assertTrue(lines.contains("sf_bulk_api_active_tasks 0"));
+    // No temporary file is left next to the textfile
+    try (Stream<Path> files = Files.list(tempFolder.getRoot().toPath())) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void testTotalsCoverTasksRunOneAfterAnother() throws IOException {
+    Path file = tempFolder.getRoot().toPath().resolve("sf_bulk_api.prom");
+    MetricsTextfile textfile = new MetricsTextfile(file);
+    TaskMetrics metrics = new TaskMetrics();
+    metrics.recordBatch(100, 0);
+
+    Object task0 = new Object();
+    textfile.taskStarted(task0, "t1", 0);
+    textfile.taskFinished(task0, metrics);
+    Object task1 = new Object();
+    textfile.taskStarted(task1, "t1", 0);
+    textfile.taskFinished(task1, metrics);
+    assertEquals(200, textfile.total().getRowsSent());
+
+    // A task of the next transaction starts over
+    Object task2 = new Object();
+    textfile.taskStarted(task2, "t2", 0);
+    textfile.taskFinished(task2, metrics);
+    List<String> lines = lines(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    assertTrue(lines.contains("sf_bulk_api_rows_total{outcome=\"succeeded\"} 100"));
+  }
+
+  @Test
+  public void testDisabled() {
+    MetricsTextfile textfile = MetricsTextfile.none();
+    assertFalse(textfile.isEnabled());
+    Object task = new Object();
+    textfile.taskStarted(task, "t1", 15);
+    textfile.publish(task, new TaskMetrics());
+    textfile.taskFinished(task, new TaskMetrics());
+  }
+
+  private static List<String> lines(String text) {
+    return Stream.of(text.split("\n")).collect(Collectors.toList());
+  }
+}
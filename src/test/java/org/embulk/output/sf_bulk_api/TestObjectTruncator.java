@@ -0,0 +1,115 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.EmptyRecycleBinResult;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.Test;
+
+public class TestObjectTruncator {
+  private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY =
+      ConfigMapperFactory.builder().addDefaultModules().build();
+  private static final String FAILING_ID = "001000000000000300";
+
+  @Test
+  public void testTruncateStreamsIdsIntoParallelDeletes() throws ConnectionException {
+    PartnerConnection connection = mock(PartnerConnection.class);
+    QueryResult page1 = page(0, 300);
+    page1.setDone(false);
+    page1.setQueryLocator("locator123");
+    QueryResult page2 = page(300, 150);
+    page2.setDone(true);
+    when(connection.query("SELECT Id FROM object__c")).thenReturn(page1);
+    when(connection.queryMore("locator123")).thenReturn(page2);
+    when(connection.delete(any()))
+        .thenAnswer(
+            invocation -> {
+              String[] ids = invocation.getArgument(0);
+              DeleteResult[] results = new DeleteResult[ids.length];
+              for (int i = 0; i < ids.length; i++) {
+                results[i] = new DeleteResult();
+                results[i].setId(ids[i]);
+                results[i].setSuccess(!FAILING_ID.equals(ids[i]));
+              }
+              return results;
+            });
+    when(connection.emptyRecycleBin(any()))
+        .thenAnswer(
+            invocation -> {
+              String[] ids = invocation.getArgument(0);
+              EmptyRecycleBinResult[] results = new EmptyRecycleBinResult[ids.length];
+              for (int i = 0; i < ids.length; i++) {
+                results[i] = new EmptyRecycleBinResult();
+                results[i].setId(ids[i]);
+                results[i].setSuccess(true);
+              }
+              return results;
+            });
+
+    ObjectTruncator.Result result = new ObjectTruncator(task(2), () -> connection).truncate();
+
+    assertEquals(449, result.getDeleted());
+    assertEquals(1, result.getFailed());
+    assertEquals(0, result.getNotPurged());
+    // 450 Ids in batches of 200
+    verify(connection, times(3)).delete(any());
+    verify(connection, times(3)).emptyRecycleBin(any());
+  }
+
+  @Test
+  public void testFailedBatchStopsTheQuery() throws ConnectionException {
+    PartnerConnection connection = mock(PartnerConnection.class);
+    QueryResult page = page(0, 800);
+    page.setDone(true);
+    when(connection.query("SELECT Id FROM object__c")).thenReturn(page);
+    when(connection.delete(any())).thenThrow(new ConnectionException("delete failed"));
+
+    ConnectionException e =
+        assertThrows(
+            ConnectionException.class,
+            () -> new ObjectTruncator(task(1), () -> connection).truncate());
+
+    assertEquals("delete failed", e.getMessage());
+    // One thread holds two batches at most; the third is not submitted after the first failed.
+    verify(connection, atMost(2)).delete(any());
+  }
+
+  private static QueryResult page(int from, int size) {
+    SObject[] records = new SObject[size];
+    for (int i = 0; i < size; i++) {
+      records[i] = new SObject("object__c");
+      records[i].setId(String.format("001%015d", from + i));
+    }
+    QueryResult result = new QueryResult();
+    result.setRecords(records);
+    return result;
+  }
+
+  private static PluginTask task(int threads) {
+    return CONFIG_MAPPER_FACTORY
+        .createConfigMapper()
+        .map(
+            CONFIG_MAPPER_FACTORY
+                .newConfigSource()
+                .set("auth_method", "oauth")
+                .set("access_token", "token")
+                .set("server_url", "https://example.my.salesforce.com")
+                .set("object", "object__c")
+                .set("action_type", "replace")
+                .set("hard_delete", true)
+                .set("replace_delete_threads", threads),
+            PluginTask.class);
+  }
+}
@@ -0,0 +1,167 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
+import org.embulk.util.config.ConfigMapperFactory;
+import org.junit.Test;
+
+public class TestPreflight {
+  private static final ConfigMapperFactory CONFIG_MAPPER_FACTORY =
+      ConfigMapperFactory.builder().addDefaultModules().build();
+
+  private static final ObjectMetadata CONTACT =
+      ObjectMetadata.fromJson(
+          "{\"name\":\"Contact\",\"fetched_at\":0,\"fields\":["
+              + field("Employee_Code__c", "string", true, true, true)
+              + ","
+              + field("LastName", "string", true, true, false)
+              + ","
+              + field("Birthdate", "date", true, true, false)
+              + ","
+              + field("Active__c", "boolean", true, true, false)
+              + ","
+              + field("CreatedDate", "datetime", false, false, false)
+              + ","
+              + field("AccountId", "reference", true, true, false)
+              + ","
+              // An idLookup field that is not an External ID
+              + "{\"name\":\"Email\",\"type\":\"email\",\"createable\":true,"
+              + "\"updateable\":true,\"external_id\":false,\"id_lookup\":true}"
+              + "]}");
+
+  private static final ObjectMetadata ACCOUNT =
+      ObjectMetadata.fromJson(
+          "{\"name\":\"Account\",\"fetched_at\":0,\"fields\":["
+              + field("External_Id__c", "string", true, true, true)
+              + ","
+              + field("Name", "string", true, true, false)
+              + "]}");
+
+  @Test
+  public void testValidSchema() {
+    Preflight.Result result =
+        check(
+            upsertConfig(),
+            new Column(0, "Employee_Code__c", Types.STRING),
+            new Column(1, "lastname", Types.STRING),
+            new Column(2, "Birthdate", Types.TIMESTAMP));
+
+    assertTrue(result.getColumnProblems().isEmpty());
+    assertTrue(result.getFatalProblems().isEmpty());
+  }
+
+  @Test
+  public void testColumnProblems() {
+    Preflight.Result result =
+        check(
+            upsertConfig(),
+            new Column(0, "Employee_Code__c", Types.STRING),
+            new Column(1, "Unknown__c", Types.STRING),
+            new Column(2, "CreatedDate", Types.TIMESTAMP),
+            new Column(3, "Active__c", Types.LONG));
+
+    assertEquals(
+        Arrays.asList("Unknown__c", "CreatedDate", "Active__c"),
+        Arrays.asList(result.getColumnProblems().keySet().toArray()));
+    assertTrue(result.getFatalProblems().isEmpty());
+  }
+
+  @Test
+  public void testUpsertKeyMustBeExternalId() {
+    Preflight.Result result =
+        check(
+            upsertConfig().set("upsert_key", "LastName"),
+            new Column(0, "LastName", Types.STRING));
+
+    assertEquals(1, result.getFatalProblems().size());
+  }
+
+  @Test
+  public void testUpsertKeyMustNotBeIdLookupOnly() {
+    Preflight.Result result =
+        check(upsertConfig().set("upsert_key", "Email"), new Column(0, "Email", Types.STRING));
+
+    assertEquals(1, result.getFatalProblems().size());
+  }
+
+  @Test
+  public void testInsertNeedsEveryRequiredField() {
+    Map<String, Object> association = new HashMap<>();
+    association.put("reference_field", "AccountId");
+    association.put("referenced_object", "Account");
+    association.put("unique_key", "External_Id__c");
+    association.put("source_column", "account_code");
+    ConfigSource config =
+        upsertConfig()
+            .set("action_type", "insert")
+            .set("associations", Collections.singletonList(association));
+
+    // Active__c is dropped for its type, so only AccountId is written besides the columns
+    Preflight.Result result =
+        check(
+            config,
+            new Column(0, "Employee_Code__c", Types.STRING),
+            new Column(1, "lastname", Types.STRING),
+            new Column(2, "Birthdate", Types.TIMESTAMP),
+            new Column(3, "Active__c", Types.LONG),
+            new Column(4, "account_code", Types.STRING));
+
+    assertEquals(
+        Arrays.asList(
+            "required field Contact.Active__c has no column",
+            "required field Contact.Email has no column"),
+        result.getFatalProblems());
+  }
+
+  @Test
+  public void testAssociationUniqueKey() {
+    Map<String, Object> association = new HashMap<>();
+    association.put("reference_field", "AccountId");
+    association.put("referenced_object", "Account");
+    association.put("unique_key", "Name");
+    association.put("source_column", "account_name");
+    ConfigSource config =
+        upsertConfig().set("associations", Collections.singletonList(association));
+
+    Preflight.Result result =
+        check(
+            config,
+            new Column(0, "Employee_Code__c", Types.STRING),
+            new Column(1, "account_name", Types.STRING));
+
+    assertTrue(result.getColumnProblems().isEmpty());
+    assertEquals(1, result.getFatalProblems().size());
+  }
+
+  private Preflight.Result check(ConfigSource config, Column... columns) {
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+    Map<String, ObjectMetadata> referenced = new HashMap<>();
+    referenced.put("Account", ACCOUNT);
+    return new Preflight(task, new Schema(Arrays.asList(columns)), CONTACT, referenced).check();
+  }
+
+  private ConfigSource upsertConfig() {
+    return CONFIG_MAPPER_FACTORY
+        .newConfigSource()
+        .set("object", "Contact")
+        .set("action_type", "upsert")
+        .set("upsert_key", "Employee_Code__c");
+  }
+
+  private static String field(
+      String name, String type, boolean createable, boolean updateable, boolean externalId) {
+    return String.format(
+        "{\"name\":\"%s\",\"type\":\"%s\",\"createable\":%b,\"updateable\":%b,"
+            + "\"external_id\":%b}",
+        name, type, createable, updateable, externalId);
+  }
+}
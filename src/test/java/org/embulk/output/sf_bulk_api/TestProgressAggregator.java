@@ -0,0 +1,78 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+public class TestProgressAggregator {
+  private final AtomicLong clock = new AtomicLong(1700000000000L);
+
+  @Test
+  public void testTotalsAndRate() {
+    ProgressAggregator progress = new ProgressAggregator(clock::get);
+    progress.taskStarted("t1", 0);
+    progress.taskStarted("t1", 0);
+    assertEquals(-1, progress.getSecondsSinceLastBatch());
+
+    clock.addAndGet(10000);
+    progress.recordBatch(200, 10, 1);
+    clock.addAndGet(10000);
+    progress.recordBatch(200, 0, 2);
+
+    assertEquals(400, progress.getRowsSent());
+    assertEquals(10, progress.getRowsFailed());
+    assertEquals(0.025, progress.getFailureRate(), 1e-9);
+    assertEquals(3, progress.getApiCalls());
+    assertEquals(2, progress.getActiveTasks());
+    // 400 rows over the first 20 seconds
+    assertEquals(20.0, progress.getRowsPerSecond(), 1e-9);
+
+    // Batches older than the window no longer count
+    clock.addAndGet(55000);
+    assertEquals(200 / 60.0, progress.getRowsPerSecond(), 1e-9);
+    assertEquals(55, progress.getSecondsSinceLastBatch());
+    assertEquals(75, progress.getElapsedSeconds());
+  }
+
+  @Test
+  public void testRestartsWithTransaction() {
+    ProgressAggregator progress = new ProgressAggregator(clock::get);
+    progress.taskStarted("t1", 0);
+    progress.recordBatch(100, 1, 1);
+    progress.taskFinished();
+    assertEquals(100, progress.getRowsSent());
+
+    // The next task of the same transaction, run after the first one has closed
+    clock.addAndGet(5000);
+    progress.taskStarted("t1", 0);
+    assertEquals(100, progress.getRowsSent());
+    assertEquals(5, progress.getSecondsSinceLastBatch());
+    progress.recordBatch(50, 0, 1);
+    progress.taskFinished();
+
+    progress.taskStarted("t2", 0);
+    assertEquals(0, progress.getRowsSent());
+    assertEquals(-1, progress.getSecondsSinceLastBatch());
+    assertEquals(1, progress.getActiveTasks());
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    ProgressAggregator progress = ProgressAggregator.getInstance();
+    progress.taskStarted("testMBean", 0);
+    try {
+      progress.recordBatch(5, 0, 1);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(ProgressAggregator.OBJECT_NAME);
+      assertTrue(server.isRegistered(name));
+      assertEquals(5L, server.getAttribute(name, "RowsSent"));
+    } finally {
+      progress.taskFinished();
+    }
+  }
+}
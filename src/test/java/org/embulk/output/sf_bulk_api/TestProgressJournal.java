@@ -0,0 +1,68 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestProgressJournal {
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private String journalFile;
+
+  @Before
+  public void setup() {
+    journalFile = tempFolder.getRoot().toPath().resolve("progress").toString();
+  }
+
+  @Test
+  public void testNewJournalStartsFromZero() throws IOException {
+    ProgressJournal journal = new ProgressJournal(journalFile, 0);
+
+    assertEquals(0, journal.getCommittedRows());
+    assertEquals(0, journal.getCommittedFailures());
+  }
+
+  @Test
+  public void testCommitIsReadBackOnResume() throws IOException {
+    new ProgressJournal(journalFile, 1).commit(400, 3);
+
+    ProgressJournal resumed = new ProgressJournal(journalFile, 1);
+
+    assertEquals(400, resumed.getCommittedRows());
+    assertEquals(3, resumed.getCommittedFailures());
+    // Other tasks keep their own journal
+    assertEquals(0, new ProgressJournal(journalFile, 2).getCommittedRows());
+  }
+
+  @Test
+  public void testDisabledJournalWritesNothing() {
+    ProgressJournal journal = new ProgressJournal();
+    journal.commit(200, 0);
+
+    assertEquals(0, journal.getCommittedRows());
+    assertFalse(Files.exists(ProgressJournal.taskJournalPath(journalFile, 0)));
+  }
+
+  @Test
+  public void testDeleteAll() throws IOException {
+    new ProgressJournal(journalFile, 0).commit(200, 0);
+    new ProgressJournal(journalFile, 1).commit(100, 1);
+    Path unrelated = tempFolder.newFile("progress_other.txt").toPath();
+    Path tmp = tempFolder.newFile("progress_task002.journal.tmp").toPath();
+
+    ProgressJournal.deleteAll(journalFile);
+
+    assertFalse(Files.exists(ProgressJournal.taskJournalPath(journalFile, 0)));
+    assertFalse(Files.exists(ProgressJournal.taskJournalPath(journalFile, 1)));
+    assertFalse(Files.exists(tmp));
+    assertTrue(Files.exists(unrelated));
+  }
+}
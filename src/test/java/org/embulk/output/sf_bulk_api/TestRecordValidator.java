@@ -0,0 +1,133 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import com.sforce.soap.partner.sobject.SObject;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TestRecordValidator {
+  private static final ObjectMetadata CONTACT =
+      ObjectMetadata.fromJson(
+          "{\"name\":\"Contact\",\"fetched_at\":0,\"fields\":["
+              + "{\"name\":\"Id\",\"type\":\"id\",\"nillable\":false},"
+              + "{\"name\":\"LastName\",\"type\":\"string\",\"length\":10,\"createable\":true},"
+              + "{\"name\":\"AccountId\",\"type\":\"reference\",\"createable\":true,"
+              + "\"nillable\":true},"
+              + "{\"name\":\"Level__c\",\"type\":\"picklist\",\"createable\":true,"
+              + "\"nillable\":true,\"restricted_picklist\":true,"
+              + "\"picklist_values\":[\"Primary\",\"Secondary\"]}"
+              + "]}");
+
+  private static final List<String> FIELDS = Arrays.asList("LastName", "AccountId", "Level__c");
+
+  private final ErrorHandler errorHandler = mock(ErrorHandler.class);
+
+  @Test
+  public void testValidRecord() {
+    RecordValidator validator = new RecordValidator(CONTACT, "insert", FIELDS, errorHandler);
+    SObject record = contact("Smith");
+    record.setField("AccountId", "001000000000001AAA");
+    record.setField("Level__c", "Primary");
+
+    assertFalse(validator.validate(record).isPresent());
+  }
+
+  @Test
+  public void testRequiredFieldOnInsertOnly() {
+    SObject record = contact(null);
+
+    assertEquals(
+        "Required field LastName is missing",
+        new RecordValidator(CONTACT, "insert", FIELDS, errorHandler).validate(record).get());
+    assertFalse(
+        new RecordValidator(CONTACT, "upsert", FIELDS, errorHandler).validate(record).isPresent());
+
+    // Setting a required field to null is rejected for every action
+    record.setFieldsToNull(new String[] {"LastName"});
+    assertTrue(
+        new RecordValidator(CONTACT, "update", FIELDS, errorHandler).validate(record).isPresent());
+  }
+
+  @Test
+  public void testEmptyReferenceIsNull() {
+    RecordValidator validator = new RecordValidator(CONTACT, "insert", FIELDS, errorHandler);
+    SObject record = contact("Smith");
+    record.setField("AccountId", "");
+
+    assertFalse(validator.validate(record).isPresent());
+  }
+
+  @Test
+  public void testRequiredFieldOfDifferentCase() {
+    RecordValidator validator = new RecordValidator(CONTACT, "insert", FIELDS, errorHandler);
+    SObject record = new SObject();
+    record.setType("Contact");
+    record.setField("lastname", "Smith");
+
+    assertFalse(validator.validate(record).isPresent());
+  }
+
+  @Test
+  public void testFieldValues() {
+    RecordValidator validator = new RecordValidator(CONTACT, "insert", FIELDS, errorHandler);
+
+    assertTrue(validator.validate(contact("Smith-Johnson")).isPresent());
+
+    SObject badId = contact("Smith");
+    badId.setField("AccountId", "not-an-id");
+    assertTrue(validator.validate(badId).isPresent());
+
+    SObject badPicklist = contact("Smith");
+    badPicklist.setField("Level__c", "Tertiary");
+    assertTrue(validator.validate(badPicklist).isPresent());
+  }
+
+  @Test
+  public void testFilter() {
+    RecordValidator validator = new RecordValidator(CONTACT, "insert", FIELDS, errorHandler);
+    SObject valid = contact("Smith");
+    SObject invalid = contact(null);
+
+    assertEquals(Arrays.asList(valid), validator.filter(Arrays.asList(valid, invalid)));
+    verify(errorHandler).handleValidationError(invalid, "Required field LastName is missing");
+    verifyNoMoreInteractions(errorHandler);
+  }
+
+  @Test
+  public void testFilterForCreate() {
+    // upsert_by_query does not check the required fields of every record, only of those it creates
+    RecordValidator validator =
+        new RecordValidator(CONTACT, "upsert_by_query", FIELDS, errorHandler);
+    SObject valid = contact("Smith");
+    SObject invalid = contact(null);
+
+    assertEquals(Arrays.asList(valid, invalid), validator.filter(Arrays.asList(valid, invalid)));
+    assertEquals(Arrays.asList(valid), validator.filterForCreate(Arrays.asList(valid, invalid)));
+    verify(errorHandler).handleValidationError(invalid, "Required field LastName is missing");
+    verifyNoMoreInteractions(errorHandler);
+  }
+
+  @Test
+  public void testIsValidId() {
+    assertTrue(RecordValidator.isValidId("001000000000001"));
+    assertTrue(RecordValidator.isValidId("001000000000001AAA"));
+    assertTrue(RecordValidator.isValidId("001000000000001aaa"));
+    assertFalse(RecordValidator.isValidId("001000000000001AA9"));
+    assertFalse(RecordValidator.isValidId("0010000000001"));
+    assertFalse(RecordValidator.isValidId("001-00000000001"));
+  }
+
+  private SObject contact(String lastName) {
+    SObject record = new SObject();
+    record.setType("Contact");
+    if (lastName != null) {
+      record.setField("LastName", lastName);
+    }
+    return record;
+  }
+}
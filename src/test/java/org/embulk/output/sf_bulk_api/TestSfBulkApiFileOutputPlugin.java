@@ -24,6 +24,7 @@ import org.embulk.exec.PartialExecutionException;
 import org.embulk.input.file.LocalFileInputPlugin;
 import org.embulk.parser.csv.CsvParserPlugin;
 import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.FileInputPlugin;
 import org.embulk.spi.OutputPlugin;
 import org.embulk.spi.ParserPlugin;
@@ -149,6 +150,192 @@ public class TestSfBulkApiFileOutputPlugin {
     assertEquals(expectedBody, Util.toStringFromGZip(mockWebServer.takeRequest()));
   }
 
+  @Test
+  public void testMaxFailuresStopsSending() throws IOException {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("batch_size", 1)
+            .set("throw_if_failed", false)
+            .set("max_failures", 0);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockActionResponse(task.getActionType(), new Boolean[] {false}));
+    File in = Util.createInputFile(testFolder, "id:string", "id0", "id1", "id2");
+    // The threshold fails the transaction even with throw_if_failed: false
+    PartialExecutionException e =
+        assertThrows(PartialExecutionException.class, () -> embulk.runOutput(config, in.toPath()));
+    assertEquals(DataException.class, e.getCause().getClass());
+
+    // login + the first action only; the other rows are not sent
+    assertEquals(2, mockWebServer.getRequestCount());
+  }
+
+  @Test
+  public void testProgressJournalIgnoredByNewTransaction()
+      throws IOException, InterruptedException {
+    String journalFile = testFolder.getRoot().toPath().resolve("progress").toString();
+    // Left behind by a run that failed before its transaction was committed
+    new ProgressJournal(journalFile, 0).commit(1, 0);
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("progress_journal_file", journalFile);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockActionResponse(task.getActionType(), new Boolean[] {true, true}));
+    File in = Util.createInputFile(testFolder, "id:string", "id0", "id1");
+    embulk.runOutput(config, in.toPath());
+
+    mockWebServer.takeRequest();
+    String body = Util.toStringFromGZip(mockWebServer.takeRequest());
+    assertTrue(body.contains("id0"));
+    assertTrue(body.contains("id1"));
+  }
+
+  @Test
+  public void testProgressJournalOfBatchCutBySize() throws IOException {
+    String journalFile = testFolder.getRoot().toPath().resolve("progress").toString();
+    // Each record is estimated at well over 50 bytes, so every record gets its own call.
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("batch_max_bytes", 50)
+            .set("progress_journal_file", journalFile);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockActionSuccessResponse(task.getActionType(), 1));
+    // The call of id1 gets a response that cannot be parsed, which aborts the task
+    mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("<broken"));
+    File in = Util.createInputFile(testFolder, "id:string", "id0", "id1", "id2");
+    assertThrows(PartialExecutionException.class, () -> embulk.runOutput(config, in.toPath()));
+
+    // id0 was sent when id1 was read; resuming must still send id1.
+    assertEquals(1, new ProgressJournal(journalFile, 0).getCommittedRows());
+  }
+
+  @Test
+  public void testSyncDoesNotDeleteAfterAbortedTask() throws IOException {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "sync")
+            .set("batch_size", 1)
+            .set("throw_if_failed", false);
+
+    // Keys loaded by the transaction: k1 is the key of the second input row
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockQueryResponse("001000000000000001", "k1"));
+    // The task's first upsert gets a response that cannot be parsed, so k1 is never read
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("<broken"));
+    File in = Util.createInputFile(testFolder, "key:string", "k0", "k1");
+    embulk.runOutput(config, in.toPath());
+
+    // No login and delete for the record of k1
+    assertEquals(4, mockWebServer.getRequestCount());
+  }
+
+  @Test
+  public void testMaxFailureRatioOutOfRange() {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("max_failure_ratio", 1.5);
+    PartialExecutionException e =
+        assertThrows(
+            PartialExecutionException.class,
+            () ->
+                embulk.runOutput(
+                    config, Util.createInputFile(testFolder, "id:string", "id0").toPath()));
+    assertEquals(ConfigException.class, e.getCause().getClass());
+  }
+
+  @Test
+  public void testIncrementalColumn() throws IOException, InterruptedException {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("throw_if_failed", false)
+            .set("incremental_column", "seq")
+            .set("incremental_last_value", "1");
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(mockActionResponse(task.getActionType(), new Boolean[] {true, false}));
+    File in = Util.createInputFile(testFolder, "id:string,seq:long", "id0,1", "id1,2", "id2,3");
+    TestingEmbulk.RunResult result = embulk.runOutput(config, in.toPath());
+
+    // id0 is at the previous watermark and is not sent
+    mockWebServer.takeRequest();
+    String body = Util.toStringFromGZip(mockWebServer.takeRequest());
+    assertFalse(body.contains("id0"));
+    assertTrue(body.contains("id1"));
+    // id2 failed, so the watermark only moves to the acknowledged id1
+    assertEquals(
+        "2", result.getConfigDiff().getNested("out").get(String.class, "incremental_last_value"));
+  }
+
+  @Test
+  public void testIncrementalColumnStopsBelowFailedRow() throws IOException {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("throw_if_failed", false)
+            .set("incremental_column", "seq")
+            .set("incremental_last_value", "1");
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(
+        mockActionResponse(task.getActionType(), new Boolean[] {true, false, true}));
+    File in =
+        Util.createInputFile(testFolder, "id:string,seq:long", "id0,2", "id1,5", "id2,1000");
+    TestingEmbulk.RunResult result = embulk.runOutput(config, in.toPath());
+
+    // id2 succeeded, but the next run must still send the failed id1
+    assertEquals(
+        "2", result.getConfigDiff().getNested("out").get(String.class, "incremental_last_value"));
+  }
+
+  @Test
+  public void testIncrementalColumnStopsBelowFailedMergedRows() throws IOException {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "upsert")
+            .set("duplicate_key_handling", "merge")
+            .set("throw_if_failed", false)
+            .set("incremental_column", "seq")
+            .set("incremental_last_value", "1");
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    // The rows of k0 are merged into one record, which fails; k1 succeeds
+    mockWebServer.enqueue(mockActionResponse(task.getActionType(), new Boolean[] {false, true}));
+    File in = Util.createInputFile(testFolder, "key:string,seq:long", "k0,2", "k1,3", "k0,4");
+    TestingEmbulk.RunResult result = embulk.runOutput(config, in.toPath());
+
+    assertEquals(
+        "1", result.getConfigDiff().getNested("out").get(String.class, "incremental_last_value"));
+  }
+
+  @Test
+  public void testIncrementalColumnNotInSchema() {
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("incremental_column", "seq");
+    PartialExecutionException e =
+        assertThrows(
+            PartialExecutionException.class,
+            () ->
+                embulk.runOutput(
+                    config, Util.createInputFile(testFolder, "id:string", "id0").toPath()));
+    assertEquals(ConfigException.class, e.getCause().getClass());
+  }
+
   @Test
   public void testAllEmbulkTypes() throws IOException, InterruptedException {
     testSuccessRun(
@@ -215,6 +402,34 @@ public class TestSfBulkApiFileOutputPlugin {
     assertEquals(3, mockWebServer.getRequestCount());
   }
 
+  @Test
+  public void testBatchMaxBytes() throws IOException, InterruptedException {
+    // Each record is estimated at well over 50 bytes, so every record gets its own call.
+    ConfigSource config =
+        newDefaultConfigSource(mockWebServer)
+            .set("action_type", "insert")
+            .set("batch_max_bytes", 50);
+    PluginTask task = CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+
+    mockWebServer.enqueue(mockResponse("loginResponseBody.xml"));
+    mockWebServer.enqueue(Util.mockActionSuccessResponse(task.getActionType(), 1));
+    mockWebServer.enqueue(Util.mockActionSuccessResponse(task.getActionType(), 1));
+    File in = Util.createInputFile(testFolder, "id:string", "id0", "id1");
+    embulk.runOutput(config, in.toPath());
+
+    // login + 2 action calls
+    assertEquals(3, mockWebServer.getRequestCount());
+  }
+
+  @Test
+  public void testEmptyInputDoesNotLogIn() throws IOException {
+    ConfigSource config = newDefaultConfigSource(mockWebServer).set("action_type", "insert");
+    File in = Util.createInputFile(testFolder, "id:string");
+    embulk.runOutput(config, in.toPath());
+
+    assertEquals(0, mockWebServer.getRequestCount());
+  }
+
   // ========== Delete tests ==========
 
   @Test
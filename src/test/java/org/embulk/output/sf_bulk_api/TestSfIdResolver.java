@@ -69,6 +69,38 @@ public class TestSfIdResolver {
     assertEquals("001000000000002", result.getResolvedRecords().get(1).getId());
   }
 
+  @Test
+  public void testResolveAllowingUnmatched() throws ConnectionException {
+    SfIdResolver resolver =
+        new SfIdResolver(mockConnection, OBJECT_TYPE, UPDATE_KEY, "upsert_key", errorHandler);
+
+    List<SObject> records = new ArrayList<>();
+    SObject matched = new SObject(OBJECT_TYPE);
+    matched.addField(UPDATE_KEY, "ext001");
+    records.add(matched);
+    SObject unmatched = new SObject(OBJECT_TYPE);
+    unmatched.addField(UPDATE_KEY, "ext_new");
+    records.add(unmatched);
+
+    QueryResult queryResult = new QueryResult();
+    SObject sfRecord = new SObject(OBJECT_TYPE);
+    sfRecord.setId("001000000000001");
+    sfRecord.addField(UPDATE_KEY, "ext001");
+    queryResult.setRecords(new SObject[] {sfRecord});
+    queryResult.setDone(true);
+
+    when(mockConnection.query(anyString())).thenReturn(queryResult);
+
+    SfIdResolver.ResolveResult result = resolver.resolveAllowingUnmatched(records);
+
+    // The unmatched record is left for insert instead of being reported as failed
+    assertEquals(Collections.singletonList(matched), result.getResolvedRecords());
+    assertEquals("001000000000001", matched.getId());
+    assertEquals(Collections.singletonList(unmatched), result.getUnmatchedRecords());
+    assertEquals(0, result.getUnresolvedCount());
+    assertEquals(0, errorHandler.takeFailedRecords().size());
+  }
+
   @Test
   public void testResolveNoMatchingRecord() throws ConnectionException {
     SfIdResolver resolver =
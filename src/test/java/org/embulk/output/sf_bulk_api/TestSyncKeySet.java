@@ -0,0 +1,93 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.sforce.soap.partner.DeleteResult;
+import com.sforce.soap.partner.PartnerConnection;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+import com.sforce.ws.ConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.embulk.spi.Schema;
+import org.junit.Test;
+
+public class TestSyncKeySet {
+  private static final String OBJECT_TYPE = "Account";
+  private static final String UPSERT_KEY = "External_Id__c";
+
+  @Test
+  public void testLoadAndMarkSeen() throws ConnectionException {
+    PartnerConnection connection = mock(PartnerConnection.class);
+    QueryResult page1 = new QueryResult();
+    page1.setRecords(new SObject[] {record("001A", "ext001"), record("001B", "EXT002")});
+    page1.setDone(false);
+    page1.setQueryLocator("locator123");
+    QueryResult page2 = new QueryResult();
+    // Records sharing a key are kept or deleted together
+    page2.setRecords(new SObject[] {record("001C", "ext003"), record("001D", "ext003")});
+    page2.setDone(true);
+    when(connection.query(
+            "SELECT Id, External_Id__c FROM Account WHERE External_Id__c != null"))
+        .thenReturn(page1);
+    when(connection.queryMore("locator123")).thenReturn(page2);
+
+    SyncKeySet set =
+        SyncKeySet.load(
+            "testLoadAndMarkSeen",
+            new SfIdResolver(
+                connection,
+                OBJECT_TYPE,
+                UPSERT_KEY,
+                "upsert_key",
+                new ErrorHandler(new Schema(Collections.emptyList()))));
+    SyncKeySet.release("testLoadAndMarkSeen");
+    assertEquals(4, set.getLoaded());
+
+    // Salesforce matches External IDs case-insensitively
+    set.markSeen("ext002");
+    set.markSeen("ext999");
+    assertEquals(Arrays.asList("001A", "001C", "001D"), set.getUnseenIds());
+  }
+
+  @Test
+  public void testDeleteInBatches() throws ConnectionException {
+    PartnerConnection connection = mock(PartnerConnection.class);
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < SyncKeySet.DELETE_BATCH_SIZE + 1; i++) {
+      ids.add(String.format("001%015d", i));
+    }
+    when(connection.delete(any()))
+        .thenAnswer(
+            invocation -> {
+              String[] batch = invocation.getArgument(0);
+              DeleteResult[] results = new DeleteResult[batch.length];
+              for (int i = 0; i < batch.length; i++) {
+                results[i] = new DeleteResult();
+                results[i].setId(batch[i]);
+                // The last record cannot be deleted
+                results[i].setSuccess(batch.length != 1);
+              }
+              return results;
+            });
+
+    long failures = new SyncKeySet().delete(ids, connection, SessionRefresher.none(connection));
+
+    assertEquals(1, failures);
+    verify(connection, times(2)).delete(any());
+  }
+
+  private static SObject record(String id, String key) {
+    SObject record = new SObject(OBJECT_TYPE);
+    record.setId(id);
+    record.addField(UPSERT_KEY, key);
+    return record;
+  }
+}
@@ -0,0 +1,68 @@
+package org.embulk.output.sf_bulk_api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestTaskMetrics {
+  @Test
+  public void testLatencyPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 90; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(40));
+    }
+    for (int i = 0; i < 9; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(400));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3000));
+
+    assertEquals(100, histogram.getCount());
+    assertEquals(50, histogram.percentile(50));
+    assertEquals(500, histogram.percentile(95));
+    assertEquals(500, histogram.percentile(99));
+    assertEquals(3000, histogram.percentile(100));
+  }
+
+  @Test
+  public void testEmptyHistogram() {
+    assertEquals(0, new LatencyHistogram().percentile(99));
+  }
+
+  @Test
+  public void testTaskReportRoundTripAndMerge() {
+    TaskMetrics task0 = new TaskMetrics();
+    task0.recordBatch(200, 3);
+    task0.recordDmlCall("upsert", TimeUnit.MILLISECONDS.toNanos(120), 1000);
+    task0.recordQueryCall("query", TimeUnit.MILLISECONDS.toNanos(30));
+    task0.recordSizeLimitedBatch();
+    task0.recordCircuitTransition(true);
+    task0.recordCircuitTransition(false);
+    task0.recordRetry();
+    task0.setErrorCodes(Collections.singletonMap("REQUIRED_FIELD_MISSING", 3L));
+
+    TaskMetrics task1 = new TaskMetrics();
+    task1.recordBatch(50, 0);
+    task1.recordDmlCall("upsert", TimeUnit.MILLISECONDS.toNanos(80), 250);
+
+    TaskMetrics merged = new TaskMetrics();
+    merged.merge(TaskMetrics.fromDataSource(task0.toTaskReport()));
+    merged.merge(TaskMetrics.fromDataSource(task1.toTaskReport()));
+
+    assertEquals(250, merged.getRowsSent());
+    assertEquals(247, merged.getRowsSucceeded());
+    assertEquals(1, merged.getSoqlQueries());
+    assertEquals(1250, merged.getRequestBytes());
+    assertEquals(625, merged.getAverageRequestBytes());
+    assertEquals(1, merged.getSizeLimitedBatches());
+    assertEquals(1, merged.getCircuitOpened());
+    assertEquals(1, merged.getCircuitClosed());
+    assertEquals(1, merged.getRetries());
+    assertEquals(Long.valueOf(3), merged.getErrorCodes().get("REQUIRED_FIELD_MISSING"));
+    assertEquals(Long.valueOf(2), merged.getApiCalls().get("upsert"));
+    assertEquals(Long.valueOf(1), merged.getApiCalls().get("query"));
+    assertEquals(2, merged.getDmlLatency().getCount());
+    assertEquals(1, merged.getResolveLatency().getCount());
+  }
+}
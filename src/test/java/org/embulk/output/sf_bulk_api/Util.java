@@ -165,6 +165,52 @@ public class Util {
     return mockResponse;
   }
 
+  public static MockResponse mockFaultResponse(String exceptionCode, String exceptionMessage) {
+    MockResponse mockResponse = new MockResponse();
+    mockResponse.setBody(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns:sf=\"urn:fault.partner.soap.sforce.com\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<soapenv:Body><soapenv:Fault>"
+            + String.format("<faultcode>sf:%s</faultcode>", exceptionCode)
+            + String.format("<faultstring>%s: %s</faultstring>", exceptionCode, exceptionMessage)
+            + "<detail><sf:UnexpectedErrorFault xsi:type=\"sf:UnexpectedErrorFault\">"
+            + String.format("<sf:exceptionCode>%s</sf:exceptionCode>", exceptionCode)
+            + String.format("<sf:exceptionMessage>%s</sf:exceptionMessage>", exceptionMessage)
+            + "</sf:UnexpectedErrorFault></detail></soapenv:Fault>"
+            + "</soapenv:Body></soapenv:Envelope>");
+    mockResponse.setResponseCode(500);
+    return mockResponse;
+  }
+
+  /** Returns a query response with one record per id/key pair, the key in the "key" field. */
+  public static MockResponse mockQueryResponse(String... idsAndKeys) {
+    StringBuilder records = new StringBuilder();
+    for (int i = 0; i < idsAndKeys.length; i += 2) {
+      records
+          .append("<records xsi:type=\"sf:sObject\"><sf:type>")
+          .append(OBJECT)
+          .append("</sf:type>")
+          .append(String.format("<sf:Id>%s</sf:Id><sf:Id>%s</sf:Id>", idsAndKeys[i], idsAndKeys[i]))
+          .append(String.format("<sf:key>%s</sf:key></records>", idsAndKeys[i + 1]));
+    }
+    MockResponse mockResponse = new MockResponse();
+    mockResponse.setBody(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns=\"urn:partner.soap.sforce.com\""
+            + " xmlns:sf=\"urn:sobject.partner.soap.sforce.com\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<soapenv:Body><queryResponse><result xsi:type=\"QueryResult\">"
+            + "<done>true</done><queryLocator xsi:nil=\"true\"/>"
+            + records
+            + String.format("<size>%d</size>", idsAndKeys.length / 2)
+            + "</result></queryResponse></soapenv:Body></soapenv:Envelope>");
+    mockResponse.setResponseCode(200);
+    return mockResponse;
+  }
+
   public static MockResponse mockResponse(String resourceName) {
     MockResponse mockResponse = new MockResponse();
     mockResponse.setBody(Util.readResource(resourceName));